@@ -0,0 +1,102 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.benchmark;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.AsyncBatchLimitUsageStorage;
+import com.coveo.spillway.storage.AsyncLimitUsageStorage;
+import com.coveo.spillway.storage.InMemoryStorage;
+import com.coveo.spillway.storage.LimitUsageStorage;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+/**
+ * Measures the {@link AsyncLimitUsageStorage} and the {@link AsyncBatchLimitUsageStorage}
+ * wrapping an {@link InMemoryStorage} that stands in for the distributed storage.
+ *
+ * @since 2.1.2
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AsyncStorageBenchmark {
+  private static final int KEY_COUNT = 1000;
+
+  @Param({"async", "asyncBatch"})
+  public String storageType;
+
+  @Param({"1", "4"})
+  public int limitsPerRequest;
+
+  private LimitUsageStorage storage;
+  private List<Collection<AddAndGetRequest>> requests;
+
+  @Setup
+  public void setup() {
+    if (storageType.equals("async")) {
+      storage = new AsyncLimitUsageStorage(new InMemoryStorage());
+    } else {
+      storage = new AsyncBatchLimitUsageStorage(new InMemoryStorage(), Duration.ofMillis(100));
+    }
+    requests = BenchmarkContexts.givenRequests(KEY_COUNT, limitsPerRequest);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    if (storage instanceof AsyncLimitUsageStorage) {
+      ((AsyncLimitUsageStorage) storage).shutdownStorage();
+    }
+    storage.close();
+  }
+
+  @Benchmark
+  public Map<LimitKey, Integer> addAndGet(BenchmarkContexts contexts) {
+    return storage.addAndGet(requests.get(contexts.nextIndex(KEY_COUNT)));
+  }
+
+  @Benchmark
+  public Map<LimitKey, Integer> addAndGetIfWithinLimits(BenchmarkContexts contexts) {
+    return storage.addAndGetIfWithinLimits(requests.get(contexts.nextIndex(KEY_COUNT)));
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.benchmark;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.coveo.spillway.limit.override.LimitOverride;
+import com.coveo.spillway.limit.override.LimitOverrideBuilder;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+/**
+ * Per thread cursor over the contexts used by the benchmarks, so that
+ * consecutive calls are spread over many keys like real traffic would be.
+ *
+ * @since 2.1.2
+ */
+@State(Scope.Thread)
+public class BenchmarkContexts {
+  // Long enough for the keys to stay in the same bucket during a whole run
+  /*package*/ static final Duration EXPIRATION = Duration.ofDays(365);
+  /*package*/ static final String RESOURCE = "benchmark";
+
+  private static final int CONTEXT_COUNT = 1024;
+  private static final String[] CONTEXTS = new String[CONTEXT_COUNT];
+
+  static {
+    for (int i = 0; i < CONTEXT_COUNT; i++) {
+      CONTEXTS[i] = "context" + i;
+    }
+  }
+
+  private int next;
+
+  public String next() {
+    next = (next + 1) % CONTEXT_COUNT;
+    return CONTEXTS[next];
+  }
+
+  public int nextIndex(int count) {
+    next = (next + 1) % count;
+    return next;
+  }
+
+  /*package*/ static LimitOverride givenOverride(int index) {
+    return LimitOverrideBuilder.of("context" + index).to(Integer.MAX_VALUE).per(EXPIRATION).build();
+  }
+
+  /*package*/ static List<Collection<AddAndGetRequest>> givenRequests(
+      int keyCount, int limitsPerRequest) {
+    Instant now = Instant.now();
+    List<Collection<AddAndGetRequest>> requests = new ArrayList<>(keyCount);
+    for (int i = 0; i < keyCount; i++) {
+      List<AddAndGetRequest> limitRequests = new ArrayList<>(limitsPerRequest);
+      for (int j = 0; j < limitsPerRequest; j++) {
+        limitRequests.add(
+            new AddAndGetRequest.Builder()
+                .withResource(RESOURCE)
+                .withLimitName("limit" + j)
+                .withProperty("property" + i)
+                .withDistributed(true)
+                .withExpiration(EXPIRATION)
+                .withEventTimestamp(now)
+                .withCost(1)
+                .withLimit(Integer.MAX_VALUE)
+                .build());
+      }
+      requests.add(limitRequests);
+    }
+    return requests;
+  }
+}
@@ -0,0 +1,128 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.CompactInMemoryStorage;
+import com.coveo.spillway.storage.InMemoryStorage;
+import com.coveo.spillway.storage.LimitUsageStorage;
+import com.coveo.spillway.storage.MappedFileStorage;
+import com.coveo.spillway.storage.OffHeapStorage;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+/**
+ * Measures the {@link InMemoryStorage}, the {@link CompactInMemoryStorage}, the
+ * {@link OffHeapStorage} and the {@link MappedFileStorage} with few and with many live keys, from
+ * a single thread and from several contending threads.
+ *
+ * @since 2.1.2
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InMemoryStorageBenchmark {
+
+  @Param({"100", "100000"})
+  public int keyCount;
+
+  @Param({"map", "compact", "offheap", "mapped"})
+  public String backend;
+
+  private LimitUsageStorage storage;
+  private List<Collection<AddAndGetRequest>> requests;
+  private Path file;
+
+  @Setup
+  public void setup() throws IOException {
+    if (backend.equals("compact")) {
+      storage = new CompactInMemoryStorage();
+    } else if (backend.equals("offheap")) {
+      storage = new OffHeapStorage();
+    } else if (backend.equals("mapped")) {
+      file = Files.createTempFile("spillway", ".benchmark");
+      storage =
+          MappedFileStorage.builder().withPath(file).withCapacity(Math.max(keyCount, 1 << 16)).build();
+    } else {
+      storage = new InMemoryStorage();
+    }
+    requests = BenchmarkContexts.givenRequests(keyCount, 1);
+    for (Collection<AddAndGetRequest> request : requests) {
+      storage.addAndGet(request);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    storage.close();
+    if (file != null) {
+      Files.delete(file);
+    }
+  }
+
+  @Benchmark
+  public Map<LimitKey, Integer> addAndGet(BenchmarkContexts contexts) {
+    return storage.addAndGet(requests.get(contexts.nextIndex(keyCount)));
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Map<LimitKey, Integer> addAndGetContended(BenchmarkContexts contexts) {
+    return storage.addAndGet(requests.get(contexts.nextIndex(keyCount)));
+  }
+
+  @Benchmark
+  public Map<LimitKey, Integer> addAndGetIfWithinLimits(BenchmarkContexts contexts) {
+    return storage.addAndGetIfWithinLimits(requests.get(contexts.nextIndex(keyCount)));
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Map<LimitKey, Integer> addAndGetIfWithinLimitsContended(BenchmarkContexts contexts) {
+    return storage.addAndGetIfWithinLimits(requests.get(contexts.nextIndex(keyCount)));
+  }
+}
@@ -0,0 +1,102 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.benchmark;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.RedisStorage;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+import redis.clients.jedis.JedisPool;
+import redis.embedded.RedisServer;
+
+/**
+ * Measures the {@link RedisStorage} against the embedded Redis server used by the tests.
+ *
+ * @since 2.1.2
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RedisStorageBenchmark {
+  // Not the port of the RedisStorageTest so both can run at the same time
+  private static final int REDIS_PORT = 6390;
+  private static final int KEY_COUNT = 1000;
+
+  @Param({"1", "4"})
+  public int limitsPerRequest;
+
+  private RedisServer redisServer;
+  private RedisStorage storage;
+  private List<Collection<AddAndGetRequest>> requests;
+
+  @Setup
+  public void setup() throws IOException {
+    redisServer = new RedisServer(REDIS_PORT);
+    redisServer.start();
+    storage = RedisStorage.builder().withJedisPool(new JedisPool("localhost", REDIS_PORT)).build();
+    requests = BenchmarkContexts.givenRequests(KEY_COUNT, limitsPerRequest);
+  }
+
+  @TearDown
+  public void tearDown() {
+    storage.close();
+    redisServer.stop();
+  }
+
+  @Benchmark
+  public Map<LimitKey, Integer> addAndGet(BenchmarkContexts contexts) {
+    return storage.addAndGet(requests.get(contexts.nextIndex(KEY_COUNT)));
+  }
+
+  @Benchmark
+  public Map<LimitKey, Integer> addAndGetWithLimit(BenchmarkContexts contexts) {
+    return storage.addAndGetWithLimit(requests.get(contexts.nextIndex(KEY_COUNT)));
+  }
+
+  @Benchmark
+  public Map<LimitKey, Integer> addAndGetIfWithinLimits(BenchmarkContexts contexts) {
+    return storage.addAndGetIfWithinLimits(requests.get(contexts.nextIndex(KEY_COUNT)));
+  }
+}
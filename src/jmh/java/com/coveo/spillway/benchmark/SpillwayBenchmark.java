@@ -0,0 +1,109 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.benchmark;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coveo.spillway.Spillway;
+import com.coveo.spillway.SpillwayFactory;
+import com.coveo.spillway.exception.SpillwayLimitExceededException;
+import com.coveo.spillway.limit.Limit;
+import com.coveo.spillway.limit.LimitBuilder;
+import com.coveo.spillway.storage.InMemoryStorage;
+
+/**
+ * Measures the {@link Spillway} methods on top of an {@link InMemoryStorage},
+ * with a varying number of limits and of overrides per limit.
+ *
+ * @since 2.1.2
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpillwayBenchmark {
+
+  @Param({"1", "4", "16"})
+  public int limitCount;
+
+  @Param({"0", "1000"})
+  public int overrideCount;
+
+  private Spillway<String> spillway;
+
+  @Setup
+  public void setup() {
+    @SuppressWarnings("unchecked")
+    Limit<String>[] limits = new Limit[limitCount];
+    for (int i = 0; i < limitCount; i++) {
+      LimitBuilder<String> limitBuilder =
+          LimitBuilder.of("limit" + i).to(Integer.MAX_VALUE).per(BenchmarkContexts.EXPIRATION);
+      for (int j = 0; j < overrideCount; j++) {
+        limitBuilder.withLimitOverride(BenchmarkContexts.givenOverride(j));
+      }
+      limits[i] = limitBuilder.build();
+    }
+
+    spillway = new SpillwayFactory(new InMemoryStorage()).enforce("benchmark", limits);
+  }
+
+  @Benchmark
+  public boolean call(BenchmarkContexts contexts) {
+    try {
+      spillway.call(contexts.next());
+      return true;
+    } catch (SpillwayLimitExceededException e) {
+      return false;
+    }
+  }
+
+  @Benchmark
+  public boolean tryCall(BenchmarkContexts contexts) {
+    return spillway.tryCall(contexts.next());
+  }
+
+  @Benchmark
+  public boolean tryUpdateAndVerifyLimit(BenchmarkContexts contexts) {
+    return spillway.tryUpdateAndVerifyLimit(contexts.next());
+  }
+
+  @Benchmark
+  public boolean checkLimit(BenchmarkContexts contexts) {
+    return spillway.checkLimit(contexts.next());
+  }
+}
@@ -30,7 +30,9 @@ import com.coveo.spillway.limit.Limit;
 import com.coveo.spillway.limit.LimitBuilder;
 import com.coveo.spillway.limit.LimitDefinition;
 import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
 import com.coveo.spillway.storage.LimitUsageStorage;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
 import com.coveo.spillway.storage.utils.AddAndGetRequest;
 import com.coveo.spillway.trigger.LimitTrigger;
 
@@ -41,8 +43,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Contains methods to easily interact with the defined limits in the storage
@@ -65,14 +66,30 @@ public class Spillway<T> {
 
   private final LimitUsageStorage storage;
   private final String resource;
-  private final List<Limit<T>> limits;
+  // The limits are evaluated by position: the request, the result and the capacity
+  // of a limit all share the index of the limit in this array.
+  private final Limit<T>[] limits;
+  // Reused by each thread so the hot path does not allocate its requests
+  private final ThreadLocal<AddAndGetBatch> batches;
 
   @SafeVarargs
   public Spillway(Clock clock, LimitUsageStorage storage, String resourceName, Limit<T>... limits) {
+    // A distributed GCRA limit would silently be enforced by each instance on its own
+    if (!storage.isSharingGcraKeys()) {
+      for (Limit<T> limit : limits) {
+        if (limit.isDistributed() && limit.getDefinition().getType() == LimitType.GCRA) {
+          throw new IllegalArgumentException(
+              "The GCRA limit '"
+                  + limit.getName()
+                  + "' can't be distributed by this storage, it must be built as not distributed");
+        }
+      }
+    }
     this.clock = clock;
     this.storage = storage;
     this.resource = resourceName;
-    this.limits = Collections.unmodifiableList(Arrays.asList(limits));
+    this.limits = limits.clone();
+    this.batches = ThreadLocal.withInitial(() -> new AddAndGetBatch(this.limits.length));
   }
 
   /**
@@ -154,6 +171,85 @@ public class Spillway<T> {
     return getExceededLimits(context, cost, true).isEmpty();
   }
 
+  /**
+   * Behaves like {@link #callAsync(Object, int)} with {@code cost} of one.
+   *
+   * @see #callAsync(Object, int)
+   *
+   * @param context Either the name of the limit OR the object on which the propertyExtractor ({@link LimitBuilder#of(String, java.util.function.Function)})
+   *                will be applied if it was specified
+   * @return A future completed exceptionally with a {@link SpillwayLimitExceededException} if one
+   *         the enforced limits is exceeded
+   *
+   * @since 2.1.2
+   */
+  public CompletableFuture<Void> callAsync(T context) {
+    return callAsync(context, 1);
+  }
+
+  /**
+   * Behaves like {@link #call(Object, int)}, but returns without waiting for the storage.
+   * <p>
+   * The triggers are called by the thread completing the future, which is the thread of the
+   * storage client when the storage is not local.
+   *
+   * @param context Either the name of the limit OR the object on which the propertyExtractor ({@link LimitBuilder#of(String, java.util.function.Function)})
+   *                will be applied if it was specified
+   * @param cost The cost of the query, must be greater than zero
+   * @return A future completed exceptionally with a {@link SpillwayLimitExceededException} if one
+   *         the enforced limits is exceeded
+   *
+   * @since 2.1.2
+   */
+  public CompletableFuture<Void> callAsync(T context, int cost) {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    getExceededLimitsAsync(context, cost)
+        .whenComplete(
+            (exceededLimits, throwable) -> {
+              if (throwable != null) {
+                result.completeExceptionally(throwable);
+              } else if (!exceededLimits.isEmpty()) {
+                result.completeExceptionally(
+                    new SpillwayLimitExceededException(exceededLimits, context, cost));
+              } else {
+                result.complete(null);
+              }
+            });
+    return result;
+  }
+
+  /**
+   * Behaves like {@link #tryCallAsync(Object, int)} with {@code cost} of one.
+   *
+   * @see #tryCallAsync(Object, int)
+   *
+   * @param context Either the name of the limit OR the object on which the propertyExtractor ({@link LimitBuilder#of(String, java.util.function.Function)})
+   *                will be applied if it was specified
+   * @return A future of false if one the enforced limits is exceeded, true otherwise
+   *
+   * @since 2.1.2
+   */
+  public CompletableFuture<Boolean> tryCallAsync(T context) {
+    return tryCallAsync(context, 1);
+  }
+
+  /**
+   * Behaves like {@link #tryCall(Object, int)}, but returns without waiting for the storage.
+   * <p>
+   * The triggers are called by the thread completing the future, which is the thread of the
+   * storage client when the storage is not local.
+   *
+   * @param context Either the name of the limit OR the object on which the propertyExtractor ({@link LimitBuilder#of(String, java.util.function.Function)})
+   *                will be applied if it was specified
+   * @param cost The cost of the query, greater than zero
+   * @return A future of false if one the enforced limits is exceeded, true otherwise
+   *
+   * @since 2.1.2
+   */
+  public CompletableFuture<Boolean> tryCallAsync(T context, int cost) {
+    return getExceededLimitsAsync(context, cost).thenApply(List::isEmpty);
+  }
+
   /**
    * Behaves like {@link #tryUpdateAndVerifyLimit(Object, int)} with {@code cost} of one.
    *
@@ -209,44 +305,127 @@ public class Spillway<T> {
       throw new IllegalArgumentException("'cost' must be greater than zero");
     }
 
-    Instant now = Instant.now(clock);
-    List<AddAndGetRequest> requests = buildRequestsFromLimits(context, 0, now);
+    if (shouldUpdateLimit) {
+      return updateExceededLimits(context, cost);
+    }
+
+    Instant now = Instant.ofEpochMilli(clock.millis());
+    String[] properties = getProperties(context);
+    LimitDefinition[] definitions = getDefinitions(properties);
 
+    // When only checking, the counters are read as they are.
+    List<AddAndGetRequest> requests = buildRequests(0, properties, definitions, false, now);
     Map<LimitKey, Integer> results = storage.addAndGet(requests);
 
     List<LimitDefinition> exceededLimits = new ArrayList<>();
-    if (results.size() == limits.size()) {
-      for (Entry<LimitKey, Integer> result : results.entrySet()) {
-        Limit<T> limit =
-            limits
-                .stream()
-                .filter(entry -> entry.getName().equals(result.getKey().getLimitName()))
-                .findFirst()
-                .get();
-
-        if (shouldUpdateLimit) {
-          handleTriggers(context, cost, now, result.getValue() + cost, limit);
+    int[] values = matchResults(requests, results);
+    if (values != null) {
+      for (int i = 0; i < limits.length; i++) {
+        if (values[i] + cost > definitions[i].getCapacity()) {
+          exceededLimits.add(limits[i].getDefinition());
+        }
+      }
+    }
+
+    return exceededLimits;
+  }
+
+  // The hot path of call and tryCall. The requests are written in the batch of the thread and the
+  // storage only adds the cost if no limit is exceeded, so nothing is allocated unless a limit is
+  // exceeded or a limit has triggers.
+  private List<LimitDefinition> updateExceededLimits(T context, int cost) {
+    long now = clock.millis();
+
+    AddAndGetBatch batch = batches.get();
+    if (batch.size() != 0) {
+      // A trigger of this thread is calling us again while the batch is still being read.
+      batch = new AddAndGetBatch(limits.length);
+    }
+
+    try {
+      for (int i = 0; i < limits.length; i++) {
+        String property = limits[i].getProperty(context);
+        LimitDefinition definition = limits[i].getDefinitionForProperty(property);
+        batch.add(
+            resource,
+            limits[i].getName(),
+            property,
+            limits[i].isDistributed(),
+            definition.getExpiration(),
+            now,
+            cost,
+            definition.getCapacity(),
+            definition.getType());
+      }
+
+      List<LimitDefinition> exceededLimits = Collections.emptyList();
+      if (!storage.addAndGetIfWithinLimits(batch)) {
+        logger.error(
+            "Something went very wrong. The backend did not return a counter for each of the {} limits. Assuming that no limits were exceeded. Limits: {}.",
+            limits.length,
+            Arrays.toString(limits));
+        return exceededLimits;
+      }
+
+      Instant timestamp = null;
+      for (int i = 0; i < limits.length; i++) {
+        String property = batch.getLimitKey(i).getProperty();
+        int currentValue = batch.getCounter(i);
+        if (!limits[i].getLimitTriggersForProperty(property).isEmpty()) {
+          if (timestamp == null) {
+            timestamp = Instant.ofEpochMilli(now);
+          }
+          handleTriggers(
+              context,
+              cost,
+              timestamp,
+              currentValue,
+              limits[i],
+              property,
+              limits[i].getDefinitionForProperty(property));
         }
 
-        if (result.getValue() + cost > limit.getCapacity(context)) {
-          exceededLimits.add(limit.getDefinition());
+        if (currentValue > batch.getLimit(i)) {
+          if (exceededLimits.isEmpty()) {
+            exceededLimits = new ArrayList<>();
+          }
+          exceededLimits.add(limits[i].getDefinition());
         }
       }
-    } else {
-      logger.error(
-          "Something went very wrong. We sent {} limits to the backend but received {} responses. Assuming that no limits were exceeded. Limits: {}. Results: {}.",
-          limits.size(),
-          results.size(),
-          limits,
-          results);
+      return exceededLimits;
+    } finally {
+      batch.clear();
     }
+  }
 
-    if (shouldUpdateLimit && exceededLimits.isEmpty()) {
-      requests = buildRequestsFromLimits(context, cost, now);
-      storage.addAndGet(requests);
+  // The batches of the threads can't outlive the call, the async calls use requests instead.
+  private CompletableFuture<List<LimitDefinition>> getExceededLimitsAsync(T context, int cost) {
+    if (cost < 1) {
+      throw new IllegalArgumentException("'cost' must be greater than zero");
     }
 
-    return exceededLimits;
+    Instant now = Instant.ofEpochMilli(clock.millis());
+    String[] properties = getProperties(context);
+    LimitDefinition[] definitions = getDefinitions(properties);
+    List<AddAndGetRequest> requests = buildRequests(cost, properties, definitions, false, now);
+
+    return storage
+        .addAndGetIfWithinLimitsAsync(requests)
+        .thenApply(
+            results -> {
+              List<LimitDefinition> exceededLimits = new ArrayList<>();
+              int[] values = matchResults(requests, results);
+              if (values != null) {
+                for (int i = 0; i < limits.length; i++) {
+                  handleTriggers(
+                      context, cost, now, values[i], limits[i], properties[i], definitions[i]);
+                  if (values[i] > definitions[i].getCapacity()) {
+                    exceededLimits.add(limits[i].getDefinition());
+                  }
+                }
+              }
+              return exceededLimits;
+            });
   }
 
   private List<LimitDefinition> updateAndVerifyExceededLimits(T context, int cost) {
@@ -254,65 +433,114 @@ public class Spillway<T> {
       throw new IllegalArgumentException("'cost' must be greater than zero");
     }
 
-    Instant now = Instant.now(clock);
-    List<AddAndGetRequest> requests = buildRequestsFromLimits(context, cost, now);
+    Instant now = Instant.ofEpochMilli(clock.millis());
+    String[] properties = getProperties(context);
+    LimitDefinition[] definitions = getDefinitions(properties);
+    // The existing API respect the minimum limit of all the limits
+    List<AddAndGetRequest> requests = buildRequests(cost, properties, definitions, true, now);
 
     Map<LimitKey, Integer> results = storage.addAndGetWithLimit(requests);
 
     List<LimitDefinition> exceededLimits = new ArrayList<>();
-    if (results.size() == limits.size()) {
-      for (Entry<LimitKey, Integer> result : results.entrySet()) {
-        Limit<T> limit =
-            limits
-                .stream()
-                .filter(entry -> entry.getName().equals(result.getKey().getLimitName()))
-                .findFirst()
-                .get();
-
-        handleTriggers(context, cost, now, result.getValue(), limit);
-        if (result.getValue() > limit.getCapacity(context)) {
-          exceededLimits.add(limit.getDefinition());
+    int[] values = matchResults(requests, results);
+    if (values != null) {
+      for (int i = 0; i < limits.length; i++) {
+        handleTriggers(context, cost, now, values[i], limits[i], properties[i], definitions[i]);
+        if (values[i] > definitions[i].getCapacity()) {
+          exceededLimits.add(limits[i].getDefinition());
         }
       }
-    } else {
+    }
+    return exceededLimits;
+  }
+
+  private String[] getProperties(T context) {
+    String[] properties = new String[limits.length];
+    for (int i = 0; i < limits.length; i++) {
+      properties[i] = limits[i].getProperty(context);
+    }
+    return properties;
+  }
+
+  // Resolves the overrides once per call, the definitions then hold the capacity and
+  // the expiration to use for each limit.
+  private LimitDefinition[] getDefinitions(String[] properties) {
+    LimitDefinition[] definitions = new LimitDefinition[limits.length];
+    for (int i = 0; i < limits.length; i++) {
+      definitions[i] = limits[i].getDefinitionForProperty(properties[i]);
+    }
+    return definitions;
+  }
+
+  private List<AddAndGetRequest> buildRequests(
+      int cost,
+      String[] properties,
+      LimitDefinition[] definitions,
+      boolean useMinimumCapacity,
+      Instant now) {
+    int minimumCapacity = Integer.MAX_VALUE;
+    if (useMinimumCapacity) {
+      for (LimitDefinition definition : definitions) {
+        minimumCapacity = Math.min(minimumCapacity, definition.getCapacity());
+      }
+    }
+
+    // The capacity of a GCRA limit sets the pace of its calls, so it always gets its own.
+    List<AddAndGetRequest> requests = new ArrayList<>(limits.length);
+    for (int i = 0; i < limits.length; i++) {
+      requests.add(
+          new AddAndGetRequest.Builder()
+              .withResource(resource)
+              .withLimitName(limits[i].getName())
+              .withLimit(
+                  useMinimumCapacity && definitions[i].getType() != LimitType.GCRA
+                      ? minimumCapacity
+                      : definitions[i].getCapacity())
+              .withProperty(properties[i])
+              .withDistributed(limits[i].isDistributed())
+              .withExpiration(definitions[i].getExpiration())
+              .withEventTimestamp(now)
+              .withCost(cost)
+              .withLimitType(definitions[i].getType())
+              .build());
+    }
+    return requests;
+  }
+
+  // Returns the counter of each limit in the same order as the limits, or null if the storage
+  // did not answer with exactly one counter per request.
+  private int[] matchResults(List<AddAndGetRequest> requests, Map<LimitKey, Integer> results) {
+    int[] values = new int[limits.length];
+    boolean coherent = results.size() == limits.length;
+    for (int i = 0; coherent && i < limits.length; i++) {
+      Integer value = results.get(LimitKey.fromRequest(requests.get(i)));
+      coherent = value != null;
+      values[i] = coherent ? value : 0;
+    }
+
+    if (!coherent) {
       logger.error(
           "Something went very wrong. We sent {} limits to the backend but received {} responses. Assuming that no limits were exceeded. Limits: {}. Results: {}.",
-          limits.size(),
+          limits.length,
           results.size(),
-          limits,
+          Arrays.toString(limits),
           results);
+      return null;
     }
-    return exceededLimits;
-  }
-
-  private List<AddAndGetRequest> buildRequestsFromLimits(T context, int cost, Instant now) {
-    // The existing API respect the minimum limit of all the limits
-    // Here, we select the minimum limit
-    int minLimit =
-        limits.stream().map(limit -> limit.getCapacity(context)).min(Integer::compareTo).orElse(0);
-    return limits
-        .stream()
-        .map(
-            limit
-                -> new AddAndGetRequest.Builder()
-                    .withResource(resource)
-                    .withLimitName(limit.getName())
-                    .withLimit(minLimit)
-                    .withProperty(limit.getProperty(context))
-                    .withDistributed(limit.isDistributed())
-                    .withExpiration(limit.getExpiration(context))
-                    .withEventTimestamp(now)
-                    .withCost(cost)
-                    .build())
-        .collect(Collectors.toList());
+    return values;
   }
 
   private void handleTriggers(
-      T context, int cost, Instant timestamp, int currentValue, Limit<T> limit) {
-    for (LimitTrigger trigger : limit.getLimitTriggers(context)) {
+      T context,
+      int cost,
+      Instant timestamp,
+      int currentValue,
+      Limit<T> limit,
+      String property,
+      LimitDefinition definition) {
+    for (LimitTrigger trigger : limit.getLimitTriggersForProperty(property)) {
       try {
-        trigger.callbackIfRequired(
-            context, cost, timestamp, currentValue, limit.getDefinition(context));
+        trigger.callbackIfRequired(context, cost, timestamp, currentValue, definition);
       } catch (RuntimeException ex) {
         logger.warn(
             "Trigger callback {} for limit {} threw an exception. Ignoring.", trigger, limit, ex);
@@ -23,8 +23,9 @@
 package com.coveo.spillway.limit;
 
 import java.time.Duration;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
 
@@ -52,6 +53,8 @@ public class Limit<T> {
   private boolean distributed;
   private Function<T, String> propertyExtractor;
   private Set<LimitOverride> limitOverrides;
+  private Map<String, LimitOverride> limitOverridesByProperty;
+  private Map<String, LimitDefinition> overriddenDefinitionsByProperty;
 
   private List<LimitTrigger> limitTriggers;
 
@@ -66,6 +69,19 @@ public class Limit<T> {
     this.propertyExtractor = propertyExtractor;
     this.limitOverrides = limitOverrides;
     this.limitTriggers = limitTriggers;
+
+    limitOverridesByProperty = new HashMap<>();
+    overriddenDefinitionsByProperty = new HashMap<>();
+    for (LimitOverride limitOverride : limitOverrides) {
+      limitOverridesByProperty.put(limitOverride.getProperty(), limitOverride);
+      overriddenDefinitionsByProperty.put(
+          limitOverride.getProperty(),
+          new LimitDefinition(
+              getName(),
+              limitOverride.getCapacity(),
+              limitOverride.getExpiration(),
+              definition.getType()));
+    }
   }
 
   /**
@@ -85,9 +101,18 @@ public class Limit<T> {
    * @return The found {@link LimitDefinition}
    */
   public LimitDefinition getDefinition(T context) {
-    return findLimitOverride(context)
-        .map(p -> new LimitDefinition(getName(), p.getCapacity(), p.getExpiration()))
-        .orElse(getDefinition());
+    return getDefinitionForProperty(getProperty(context));
+  }
+
+  /**
+   * Getter for the {@link LimitDefinition} considering overrides, using a property
+   * already extracted with {@link #getProperty(Object)}.
+   *
+   * @param property The property of the context
+   * @return The found {@link LimitDefinition}
+   */
+  public LimitDefinition getDefinitionForProperty(String property) {
+    return overriddenDefinitionsByProperty.getOrDefault(property, definition);
   }
 
   /**
@@ -118,7 +143,19 @@ public class Limit<T> {
    * @return A list of the {@link LimitTrigger}s
    */
   public List<LimitTrigger> getLimitTriggers(T context) {
-    return findLimitOverride(context).map(p -> p.getLimitTriggers()).orElse(getLimitTriggers());
+    return getLimitTriggersForProperty(getProperty(context));
+  }
+
+  /**
+   * Getter for the {@link LimitTrigger}s considering overrides, using a property
+   * already extracted with {@link #getProperty(Object)}.
+   *
+   * @param property The property of the context
+   * @return A list of the {@link LimitTrigger}s
+   */
+  public List<LimitTrigger> getLimitTriggersForProperty(String property) {
+    LimitOverride limitOverride = limitOverridesByProperty.get(property);
+    return limitOverride != null ? limitOverride.getLimitTriggers() : getLimitTriggers();
   }
 
   /**
@@ -158,7 +195,7 @@ public class Limit<T> {
    * @return The found expiration {@link Duration}
    */
   public Duration getExpiration(T context) {
-    return findLimitOverride(context).map(p -> p.getExpiration()).orElse(getExpiration());
+    return getDefinition(context).getExpiration();
   }
 
   /**
@@ -178,7 +215,7 @@ public class Limit<T> {
    * @return The found capacity
    */
   public int getCapacity(T context) {
-    return findLimitOverride(context).map(p -> p.getCapacity()).orElse(getCapacity());
+    return getDefinition(context).getCapacity();
   }
 
   public Set<LimitOverride> getLimitOverrides() {
@@ -189,13 +226,4 @@ public class Limit<T> {
   public String toString() {
     return definition.toString();
   }
-
-  private Optional<LimitOverride> findLimitOverride(T context) {
-    String property = getProperty(context);
-
-    return limitOverrides
-        .stream()
-        .filter(override -> override.getProperty().equals(property))
-        .findAny();
-  }
 }
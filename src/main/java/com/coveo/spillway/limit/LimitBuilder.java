@@ -58,6 +58,7 @@ public class LimitBuilder<T> {
   private Duration limitExpiration;
   private int limitCapacity;
   private boolean distributed = true;
+  private LimitType limitType = LimitType.FIXED_WINDOW;
 
   private Function<T, String> propertyExtractor;
   private List<LimitTrigger> triggers = new ArrayList<>();
@@ -88,6 +89,18 @@ public class LimitBuilder<T> {
     return this;
   }
 
+  /**
+   * Sets how the calls are counted, the limit uses fixed windows by default.
+   * The overrides of the limit use the same type.
+   *
+   * @param limitType The {@link LimitType} of the limit
+   * @return The current {@link LimitBuilder}
+   */
+  public LimitBuilder<T> withLimitType(LimitType limitType) {
+    this.limitType = limitType;
+    return this;
+  }
+
   /**
    * If necessary, adds a custom {@link LimitTrigger}.
    * Some implementations already exists.
@@ -135,10 +148,10 @@ public class LimitBuilder<T> {
    */
   public Limit<T> build() {
     return new Limit<>(
-        new LimitDefinition(limitName, limitCapacity, limitExpiration),
+        new LimitDefinition(limitName, limitCapacity, limitExpiration, limitType),
         distributed,
         propertyExtractor,
-        overrides,
+        new HashSet<>(overrides),
         triggers);
   }
 
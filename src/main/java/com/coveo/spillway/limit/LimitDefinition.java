@@ -36,11 +36,17 @@ public class LimitDefinition {
   private String name;
   private int capacity;
   private Duration expiration;
+  private LimitType type;
 
   public LimitDefinition(String name, int capacity, Duration expiration) {
+    this(name, capacity, expiration, LimitType.FIXED_WINDOW);
+  }
+
+  public LimitDefinition(String name, int capacity, Duration expiration, LimitType type) {
     this.name = name;
     this.capacity = capacity;
     this.expiration = expiration;
+    this.type = type;
   }
 
   public String getName() {
@@ -55,6 +61,10 @@ public class LimitDefinition {
     return expiration;
   }
 
+  public LimitType getType() {
+    return type;
+  }
+
   @Override
   public String toString() {
     return name + "[" + capacity + " calls/" + expiration + "]";
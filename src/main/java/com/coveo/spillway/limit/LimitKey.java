@@ -42,6 +42,7 @@ public class LimitKey {
   private boolean distributed;
   private Instant bucket;
   private Duration expiration;
+  private LimitType type = LimitType.FIXED_WINDOW;
 
   public LimitKey(
       String resource,
@@ -106,6 +107,14 @@ public class LimitKey {
     this.expiration = expiration;
   }
 
+  public LimitType getType() {
+    return type;
+  }
+
+  public void setType(LimitType type) {
+    this.type = type;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
@@ -152,12 +161,15 @@ public class LimitKey {
   }
 
   public static LimitKey fromRequest(AddAndGetRequest request) {
-    return new LimitKey(
-        request.getResource(),
-        request.getLimitName(),
-        request.getProperty(),
-        request.isDistributed(),
-        request.getBucket(),
-        request.getExpiration());
+    LimitKey limitKey =
+        new LimitKey(
+            request.getResource(),
+            request.getLimitName(),
+            request.getProperty(),
+            request.isDistributed(),
+            request.getBucket(),
+            request.getExpiration());
+    limitKey.setType(request.getLimitType());
+    return limitKey;
   }
 }
@@ -0,0 +1,57 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.limit;
+
+/**
+ * How the calls are counted against the capacity of a {@link Limit}.
+ *
+ * @see LimitBuilder#withLimitType(LimitType)
+ *
+ * @since 2.1.2
+ */
+public enum LimitType {
+  /**
+   * The calls are counted in windows aligned on multiples of the expiration and the count is
+   * reset when a window ends. A client can use up to twice the capacity around the end of a
+   * window. This is the default.
+   */
+  FIXED_WINDOW,
+  /**
+   * The count of the previous window is added to the count of the current window, weighted by
+   * the part of the previous window that is still less than one expiration ago. This smooths
+   * the bursts around the end of the windows for the same storage cost.
+   */
+  SLIDING_WINDOW,
+  /**
+   * The generic cell rate algorithm. Each key only holds the theoretical arrival time of the
+   * next call, which moves forward by the expiration divided by the capacity for each unit of
+   * cost. The calls are paced evenly and the full capacity is only available at once after the
+   * limit has been idle for the expiration.
+   * <p>
+   * The counter of a key is the number of units it is still paying for. The keys hold a time
+   * rather than a counter, so they are not part of the current limit counters. The storages
+   * synchronizing a cache can only enforce them in the cache of each instance, a distributed
+   * GCRA limit is refused when a {@code Spillway} is created on such a storage.
+   */
+  GCRA
+}
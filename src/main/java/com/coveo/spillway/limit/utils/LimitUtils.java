@@ -26,6 +26,7 @@ import java.time.Duration;
 import java.time.Instant;
 
 import com.coveo.spillway.limit.Limit;
+import com.coveo.spillway.limit.LimitType;
 
 /**
  * Simple utility class for {@link Limit}s.
@@ -34,8 +35,78 @@ import com.coveo.spillway.limit.Limit;
  * @since 2.0.0
  */
 public class LimitUtils {
+  /**
+   * The scale of the weights of the previous buckets, storages that compute the weighted counters
+   * themselves must use the same integer arithmetic.
+   */
+  public static final long WEIGHT_SCALE = 1_000_000;
+
   public static Instant calculateBucket(Instant timestamp, Duration limitDuration) {
     return Instant.ofEpochMilli(
-        (timestamp.toEpochMilli() / limitDuration.toMillis()) * limitDuration.toMillis());
+        calculateBucket(timestamp.toEpochMilli(), limitDuration.toMillis()));
+  }
+
+  public static long calculateBucket(long timestampMillis, long limitDurationMillis) {
+    return (timestampMillis / limitDurationMillis) * limitDurationMillis;
+  }
+
+  /**
+   * The {@link LimitType#GCRA} keys are not split in buckets, they all use the epoch instead.
+   *
+   * @param timestampMillis The epoch millisecond of the event
+   * @param limitDurationMillis The duration of the limit in milliseconds
+   * @param type The type of the limit
+   * @return The epoch millisecond of the bucket of the event
+   */
+  public static long calculateBucket(
+      long timestampMillis, long limitDurationMillis, LimitType type) {
+    return type == LimitType.GCRA ? 0 : calculateBucket(timestampMillis, limitDurationMillis);
+  }
+
+  /**
+   * The weight of the previous bucket of a sliding window, in millionths. It is the part of the
+   * previous bucket that is less than one limit duration before the timestamp.
+   *
+   * @param timestampMillis The epoch millisecond of the event
+   * @param limitDurationMillis The duration of the limit in milliseconds
+   * @return The weight of the previous bucket, from one million at the start of the current
+   *         bucket down to zero at its end
+   */
+  public static long calculatePreviousBucketWeight(long timestampMillis, long limitDurationMillis) {
+    long elapsed = timestampMillis - calculateBucket(timestampMillis, limitDurationMillis);
+    return (limitDurationMillis - elapsed) * WEIGHT_SCALE / limitDurationMillis;
+  }
+
+  /**
+   * @param previousCounter The counter of the previous bucket
+   * @param weight The weight returned by {@link #calculatePreviousBucketWeight(long, long)}
+   * @return The part of the previous counter that counts against the limit
+   */
+  public static int weighPreviousCounter(int previousCounter, long weight) {
+    return (int) (previousCounter * weight / WEIGHT_SCALE);
+  }
+
+  /**
+   * The time a unit of cost moves the theoretical arrival time of a {@link LimitType#GCRA} key.
+   *
+   * @param limitDuration The duration of the limit
+   * @param capacity The capacity of the limit
+   * @return The emission interval in microseconds, at least one
+   */
+  public static long calculateEmissionInterval(Duration limitDuration, int capacity) {
+    long durationMicros = limitDuration.toNanos() / 1000;
+    return Math.max(1, durationMicros / Math.max(1, capacity));
+  }
+
+  /**
+   * @param arrivalMicros The theoretical arrival time of a {@link LimitType#GCRA} key
+   * @param nowMicros The epoch microsecond of the event
+   * @param intervalMicros The emission interval of the key, see {@link #calculateEmissionInterval}
+   * @return The number of units the key is still paying for
+   */
+  public static int calculateArrivalCounter(
+      long arrivalMicros, long nowMicros, long intervalMicros) {
+    long pending = Math.max(0, arrivalMicros - nowMicros);
+    return (int) Math.min(Integer.MAX_VALUE, (pending + intervalMicros - 1) / intervalMicros);
   }
 }
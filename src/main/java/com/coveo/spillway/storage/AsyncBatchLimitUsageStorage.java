@@ -28,6 +28,7 @@ import java.util.Map;
 import java.util.Timer;
 
 import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
 import com.coveo.spillway.storage.utils.AddAndGetRequest;
 import com.coveo.spillway.storage.utils.CacheSynchronization;
 
@@ -80,16 +81,46 @@ public class AsyncBatchLimitUsageStorage implements LimitUsageStorage {
         forceCacheInit);
   }
 
+  private AsyncBatchLimitUsageStorage(Builder builder) {
+    this(
+        builder.wrappedLimitUsageStorage,
+        new InMemoryStorage(),
+        builder.timeBetweenSynchronizations,
+        builder.timeBetweenIdleRefreshes,
+        Duration.ofMillis(0),
+        builder.forceCacheInit);
+  }
+
+  /*package*/ AsyncBatchLimitUsageStorage(
+      LimitUsageStorage wrappedLimitUsageStorage,
+      InMemoryStorage cache,
+      Duration timeBetweenSynchronisations,
+      Duration delayBeforeFirstSync,
+      boolean forceCacheInit) {
+    this(
+        wrappedLimitUsageStorage,
+        cache,
+        timeBetweenSynchronisations,
+        Duration.ZERO,
+        delayBeforeFirstSync,
+        forceCacheInit);
+  }
+
   /*package*/ AsyncBatchLimitUsageStorage(
       LimitUsageStorage wrappedLimitUsageStorage,
       InMemoryStorage cache,
       Duration timeBetweenSynchronisations,
+      Duration timeBetweenIdleRefreshes,
       Duration delayBeforeFirstSync,
       boolean forceCacheInit) {
     this(
         wrappedLimitUsageStorage,
         cache,
-        new CacheSynchronization(cache, wrappedLimitUsageStorage),
+        new CacheSynchronization(
+            cache,
+            wrappedLimitUsageStorage,
+            CacheSynchronization.DEFAULT_BATCH_SIZE,
+            timeBetweenIdleRefreshes),
         timeBetweenSynchronisations,
         delayBeforeFirstSync,
         forceCacheInit);
@@ -126,10 +157,25 @@ public class AsyncBatchLimitUsageStorage implements LimitUsageStorage {
     return cache.addAndGetWithLimit(requests);
   }
 
+  @Override
+  public Map<LimitKey, Integer> addAndGetIfWithinLimits(Collection<AddAndGetRequest> requests) {
+    return cache.addAndGetIfWithinLimits(requests);
+  }
+
+  @Override
+  public boolean addAndGetIfWithinLimits(AddAndGetBatch batch) {
+    return cache.addAndGetIfWithinLimits(batch);
+  }
+
   public Map<LimitKey, Integer> debugCacheLimitCounters() {
     return cache.getCurrentLimitCounters();
   }
 
+  @Override
+  public boolean isSharingGcraKeys() {
+    return false;
+  }
+
   @Override
   public Map<LimitKey, Integer> getCurrentLimitCounters() {
     return wrappedLimitUsageStorage.getCurrentLimitCounters();
@@ -157,4 +203,78 @@ public class AsyncBatchLimitUsageStorage implements LimitUsageStorage {
     wrappedLimitUsageStorage.close();
     cache.close();
   }
+
+  public static final Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    LimitUsageStorage wrappedLimitUsageStorage;
+    Duration timeBetweenSynchronizations;
+    Duration timeBetweenIdleRefreshes;
+    boolean forceCacheInit;
+
+    private Builder() {
+      this.timeBetweenIdleRefreshes = Duration.ZERO;
+    }
+
+    public void setWrappedLimitUsageStorage(LimitUsageStorage wrappedLimitUsageStorage) {
+      this.wrappedLimitUsageStorage = wrappedLimitUsageStorage;
+    }
+
+    public Builder withWrappedLimitUsageStorage(LimitUsageStorage wrappedLimitUsageStorage) {
+      setWrappedLimitUsageStorage(wrappedLimitUsageStorage);
+      return this;
+    }
+
+    public void setTimeBetweenSynchronizations(Duration timeBetweenSynchronizations) {
+      this.timeBetweenSynchronizations = timeBetweenSynchronizations;
+    }
+
+    public Builder withTimeBetweenSynchronizations(Duration timeBetweenSynchronizations) {
+      setTimeBetweenSynchronizations(timeBetweenSynchronizations);
+      return this;
+    }
+
+    /**
+     * Only the keys used since the previous synchronization are sent to the storage, the idle
+     * keys are refreshed from it at this slower cadence. Zero by default, every key is then
+     * synchronized each time.
+     *
+     * @param timeBetweenIdleRefreshes The time between two synchronizations of every key
+     */
+    public void setTimeBetweenIdleRefreshes(Duration timeBetweenIdleRefreshes) {
+      this.timeBetweenIdleRefreshes = timeBetweenIdleRefreshes;
+    }
+
+    public Builder withTimeBetweenIdleRefreshes(Duration timeBetweenIdleRefreshes) {
+      setTimeBetweenIdleRefreshes(timeBetweenIdleRefreshes);
+      return this;
+    }
+
+    /**
+     * @param forceCacheInit If the cache is initialized with the content of the storage
+     */
+    public void setForceCacheInit(boolean forceCacheInit) {
+      this.forceCacheInit = forceCacheInit;
+    }
+
+    public Builder withForceCacheInit(boolean forceCacheInit) {
+      setForceCacheInit(forceCacheInit);
+      return this;
+    }
+
+    public AsyncBatchLimitUsageStorage build() {
+      if (wrappedLimitUsageStorage == null) {
+        throw new IllegalArgumentException("'wrappedLimitUsageStorage' must be set");
+      }
+      if (timeBetweenSynchronizations == null) {
+        throw new IllegalArgumentException("'timeBetweenSynchronizations' must be set");
+      }
+      if (timeBetweenIdleRefreshes.isNegative()) {
+        throw new IllegalArgumentException("'timeBetweenIdleRefreshes' must not be negative");
+      }
+      return new AsyncBatchLimitUsageStorage(this);
+    }
+  }
 }
@@ -23,19 +23,28 @@
 package com.coveo.spillway.storage;
 
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
 import com.coveo.spillway.storage.utils.AddAndGetRequest;
 import com.coveo.spillway.storage.utils.OverrideKeyRequest;
 
@@ -47,6 +56,11 @@ import com.coveo.spillway.storage.utils.OverrideKeyRequest;
  * <p>
  * This it particularly useful when using a database over the network as
  * the queries are not slowed down by any external problems.
+ * <p>
+ * With a safety margin, {@link #addAndGetIfWithinLimits(Collection)} is only served from the
+ * cache while the distributed fixed window counters stay below their limit minus the margin.
+ * The calls closer to a limit are confirmed synchronously by the distributed storage, so
+ * the limits are not exceeded by the delay of the asynchronous calls.
  *
  * @author Guillaume Simard
  * @author Simon Toussaint
@@ -56,20 +70,99 @@ public class AsyncLimitUsageStorage implements LimitUsageStorage {
 
   private static final Logger logger = LoggerFactory.getLogger(AsyncLimitUsageStorage.class);
 
+  /**
+   * What to do with the requests sent to the wrapped storage when the queue is full.
+   *
+   * @since 2.1.2
+   */
+  public enum OverflowPolicy {
+    /**
+     * The requests are only applied to the cache and counted in {@link #getDroppedRequests()}.
+     */
+    DROP,
+    /**
+     * The requests are merged by limit and sent with the next batch.
+     * This keeps one pending request per limit at most.
+     */
+    MERGE,
+    /**
+     * The requests are sent by the calling thread, which slows down the caller until the
+     * wrapped storage catches up.
+     */
+    RUN_INLINE
+  }
+
   private final LimitUsageStorage wrappedLimitUsageStorage;
-  private final ExecutorService executorService;
+  private final ThreadPoolExecutor executorService;
   private InMemoryStorage cache;
 
+  private final boolean microBatching;
+  private final int maxBatchSize;
+  private final Duration maxLinger;
+  private final OverflowPolicy overflowPolicy;
+  private final boolean fastPath;
+  private final double safetyMargin;
+  private final BlockingQueue<AddAndGetRequest> pendingRequests;
+  private final AtomicBoolean sendScheduled = new AtomicBoolean(false);
+  private final Map<LimitKey, AddAndGetRequest> overflowRequests = new ConcurrentHashMap<>();
+
+  private final LongAdder droppedRequests = new LongAdder();
+  private final LongAdder waitingNanos = new LongAdder();
+
   public AsyncLimitUsageStorage(LimitUsageStorage wrappedLimitUsageStorage) {
-    this.wrappedLimitUsageStorage = wrappedLimitUsageStorage;
-    this.executorService = Executors.newSingleThreadExecutor();
+    this(builder().withWrappedLimitUsageStorage(wrappedLimitUsageStorage));
+  }
+
+  /**
+   * Creates a storage that coalesces the requests in micro-batches instead of sending
+   * each call to the wrapped storage on its own.
+   * <p>
+   * The pending requests are merged by limit so each limit is sent once per batch.
+   *
+   * @param wrappedLimitUsageStorage The distributed storage
+   * @param maxBatchSize The maximum number of requests drained in a single batch
+   * @param maxLinger How long a batch waits for more requests before being sent if it is not full
+   */
+  public AsyncLimitUsageStorage(
+      LimitUsageStorage wrappedLimitUsageStorage, int maxBatchSize, Duration maxLinger) {
+    this(
+        builder()
+            .withWrappedLimitUsageStorage(wrappedLimitUsageStorage)
+            .withMicroBatching(maxBatchSize, maxLinger));
+  }
+
+  AsyncLimitUsageStorage(Builder builder) {
+    if (builder.maxBatchSize < 1) {
+      throw new IllegalArgumentException("'maxBatchSize' must be greater than zero");
+    }
+    if (builder.queueCapacity < 1) {
+      throw new IllegalArgumentException("'queueCapacity' must be greater than zero");
+    }
+    if (builder.safetyMargin < 0 || builder.safetyMargin > 1) {
+      throw new IllegalArgumentException("'safetyMargin' must be between zero and one");
+    }
+
+    this.wrappedLimitUsageStorage = builder.wrappedLimitUsageStorage;
     this.cache = new InMemoryStorage();
+    this.microBatching = builder.microBatching;
+    this.maxBatchSize = builder.maxBatchSize;
+    this.maxLinger = builder.maxLinger;
+    this.overflowPolicy = builder.overflowPolicy;
+    this.fastPath = builder.fastPath;
+    this.safetyMargin = builder.safetyMargin;
+
+    // When micro-batching, the requests are queued and at most one send task is pending
+    int taskCapacity = microBatching ? 1 : builder.queueCapacity;
+    this.pendingRequests = new LinkedBlockingQueue<>(builder.queueCapacity);
+    this.executorService =
+        new ThreadPoolExecutor(
+            1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(taskCapacity));
   }
 
   @Override
   public Map<LimitKey, Integer> addAndGet(Collection<AddAndGetRequest> requests) {
     Map<LimitKey, Integer> cachedEntries = cache.addAndGet(requests);
-    executorService.submit(() -> sendAndCacheRequests(requests));
+    sendAsync(requests);
 
     return cachedEntries;
   }
@@ -77,11 +170,111 @@ public class AsyncLimitUsageStorage implements LimitUsageStorage {
   @Override
   public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
     Map<LimitKey, Integer> cachedEntries = cache.addAndGetWithLimit(requests);
-    executorService.submit(() -> sendAndCacheRequests(requests));
+    sendAsync(requests);
+
+    return cachedEntries;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGetIfWithinLimits(Collection<AddAndGetRequest> requests) {
+    Map<LimitKey, Integer> cachedEntries = cache.addAndGetIfWithinLimits(requests);
+    boolean withinLimits =
+        requests
+            .stream()
+            .allMatch(
+                request -> cachedEntries.get(LimitKey.fromRequest(request)) <= request.getLimit());
+    if (!withinLimits) {
+      return cachedEntries;
+    }
 
+    if (fastPath && isNearALimit(requests, cachedEntries)) {
+      return addAndGetIfWithinLimitsSynchronously(requests, cachedEntries);
+    }
+    sendAsync(requests);
     return cachedEntries;
   }
 
+  private boolean isNearALimit(
+      Collection<AddAndGetRequest> requests, Map<LimitKey, Integer> cachedEntries) {
+    for (AddAndGetRequest request : requests) {
+      if (isConfirmedSynchronously(request)
+          && cachedEntries.get(LimitKey.fromRequest(request))
+              > request.getLimit() * (1 - safetyMargin)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // The cache keeps the raw counters of the sliding windows, only the fixed windows can be
+  // confirmed by the distributed storage and written back in the cache.
+  private boolean isConfirmedSynchronously(AddAndGetRequest request) {
+    return request.isDistributed() && request.getLimitType() == LimitType.FIXED_WINDOW;
+  }
+
+  // The cost is already added to the cache. The distributed counters replace the cached ones,
+  // the other limits are released if the distributed storage refuses the call.
+  private Map<LimitKey, Integer> addAndGetIfWithinLimitsSynchronously(
+      Collection<AddAndGetRequest> requests, Map<LimitKey, Integer> cachedEntries) {
+    List<AddAndGetRequest> synchronousRequests = new ArrayList<>();
+    List<AddAndGetRequest> asynchronousRequests = new ArrayList<>();
+    for (AddAndGetRequest request : requests) {
+      (isConfirmedSynchronously(request) ? synchronousRequests : asynchronousRequests)
+          .add(request);
+    }
+
+    Map<LimitKey, Integer> responses;
+    try {
+      responses = wrappedLimitUsageStorage.addAndGetIfWithinLimits(synchronousRequests);
+    } catch (RuntimeException ex) {
+      logger.warn("Failed to confirm the requests near their limit, using the cache.", ex);
+      sendAsync(requests);
+      return cachedEntries;
+    }
+
+    boolean withinLimits = true;
+    for (AddAndGetRequest request : synchronousRequests) {
+      Integer response = responses.get(LimitKey.fromRequest(request));
+      if (response == null) {
+        logger.warn("The distributed storage did not confirm {}, using the cache.", request);
+        sendAsync(requests);
+        return cachedEntries;
+      }
+      withinLimits &= response <= request.getLimit();
+    }
+
+    Map<LimitKey, Integer> entries = new HashMap<>(cachedEntries);
+    List<OverrideKeyRequest> overrides = new ArrayList<>();
+    for (AddAndGetRequest request : synchronousRequests) {
+      LimitKey limitKey = LimitKey.fromRequest(request);
+      int response = responses.get(limitKey);
+      entries.put(limitKey, response);
+      overrides.add(
+          new OverrideKeyRequest(limitKey, withinLimits ? response : response - request.getCost()));
+    }
+    cache.overrideKeys(overrides);
+
+    if (withinLimits) {
+      if (!asynchronousRequests.isEmpty()) {
+        sendAsync(asynchronousRequests);
+      }
+    } else if (!asynchronousRequests.isEmpty()) {
+      cache.addAndGet(
+          asynchronousRequests
+              .stream()
+              .map(
+                  request ->
+                      new AddAndGetRequest.Builder(request).withCost(-request.getCost()).build())
+              .collect(Collectors.toList()));
+    }
+    return entries;
+  }
+
+  @Override
+  public boolean isSharingGcraKeys() {
+    return false;
+  }
+
   @Override
   public Map<LimitKey, Integer> getCurrentLimitCounters() {
     return wrappedLimitUsageStorage.getCurrentLimitCounters();
@@ -115,11 +308,170 @@ public class AsyncLimitUsageStorage implements LimitUsageStorage {
     return executorService.isTerminated();
   }
 
+  /**
+   * @return The number of requests, or calls when not micro-batching, waiting to be sent to the wrapped storage
+   */
+  public int getQueueDepth() {
+    return (microBatching ? pendingRequests.size() : executorService.getQueue().size())
+        + overflowRequests.size();
+  }
+
+  /**
+   * @return The number of requests that were only applied to the cache because the queue was full
+   */
+  public long getDroppedRequests() {
+    return droppedRequests.sum();
+  }
+
+  /**
+   * @return The total time the sends to the wrapped storage waited in the queue before running
+   */
+  public Duration getWaitingTime() {
+    return Duration.ofNanos(waitingNanos.sum());
+  }
+
+  private void sendAsync(Collection<AddAndGetRequest> requests) {
+    if (microBatching) {
+      for (AddAndGetRequest request : requests) {
+        if (!pendingRequests.offer(request)) {
+          handleOverflow(Collections.singletonList(request));
+        }
+      }
+      scheduleSend();
+      return;
+    }
+
+    long submitted = System.nanoTime();
+    try {
+      executorService.execute(
+          () -> {
+            waitingNanos.add(System.nanoTime() - submitted);
+            sendAndCacheRequests(requests);
+            sendOverflowRequests();
+          });
+    } catch (RejectedExecutionException e) {
+      if (executorService.isShutdown()) {
+        throw e;
+      }
+      handleOverflow(requests);
+    }
+  }
+
+  private void handleOverflow(Collection<AddAndGetRequest> requests) {
+    switch (overflowPolicy) {
+      case DROP:
+        droppedRequests.add(requests.size());
+        break;
+      case MERGE:
+        for (AddAndGetRequest request : requests) {
+          overflowRequests.merge(LimitKey.fromRequest(request), request, this::mergeCosts);
+        }
+        // If the queue is still full, the pending sends have not started yet and the last one
+        // will pick up the merged requests.
+        if (microBatching) {
+          scheduleSend();
+        } else {
+          try {
+            executorService.execute(this::sendOverflowRequests);
+          } catch (RejectedExecutionException e) {
+            logger.debug("Queue is full, merged requests will be sent with the next batch.");
+          }
+        }
+        break;
+      case RUN_INLINE:
+        sendAndCacheRequests(requests);
+        break;
+    }
+  }
+
+  private void scheduleSend() {
+    if (sendScheduled.compareAndSet(false, true)) {
+      long scheduled = System.nanoTime();
+      executorService.execute(
+          () -> {
+            waitingNanos.add(System.nanoTime() - scheduled);
+            sendPendingRequests();
+          });
+    }
+  }
+
+  private void sendPendingRequests() {
+    List<AddAndGetRequest> batch = new ArrayList<>(maxBatchSize);
+    try {
+      long deadline = System.nanoTime() + maxLinger.toNanos();
+      pendingRequests.drainTo(batch, maxBatchSize);
+      while (batch.size() < maxBatchSize) {
+        AddAndGetRequest request =
+            pendingRequests.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (request == null) {
+          break;
+        }
+        batch.add(request);
+        pendingRequests.drainTo(batch, maxBatchSize - batch.size());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      // Requests added while we were draining will not have scheduled a send, we do it for them.
+      sendScheduled.set(false);
+      if (!pendingRequests.isEmpty()) {
+        try {
+          scheduleSend();
+        } catch (RejectedExecutionException e) {
+          logger.warn(
+              "Storage is shut down, {} pending requests are dropped.", pendingRequests.size());
+        }
+      }
+    }
+
+    if (!batch.isEmpty()) {
+      sendAndCacheRequests(mergeRequests(batch));
+    }
+    sendOverflowRequests();
+  }
+
+  private void sendOverflowRequests() {
+    if (overflowRequests.isEmpty()) {
+      return;
+    }
+
+    List<AddAndGetRequest> requests = new ArrayList<>(overflowRequests.size());
+    for (LimitKey limitKey : overflowRequests.keySet()) {
+      AddAndGetRequest request = overflowRequests.remove(limitKey);
+      if (request != null) {
+        requests.add(request);
+      }
+    }
+    sendAndCacheRequests(requests);
+  }
+
+  private Collection<AddAndGetRequest> mergeRequests(List<AddAndGetRequest> requests) {
+    Map<LimitKey, AddAndGetRequest> mergedRequests = new LinkedHashMap<>();
+    for (AddAndGetRequest request : requests) {
+      mergedRequests.merge(LimitKey.fromRequest(request), request, this::mergeCosts);
+    }
+    return mergedRequests.values();
+  }
+
+  private AddAndGetRequest mergeCosts(AddAndGetRequest merged, AddAndGetRequest other) {
+    return new AddAndGetRequest.Builder(merged)
+        .withCost(merged.getCost() + other.getCost())
+        .build();
+  }
+
   public void sendAndCacheRequests(Collection<AddAndGetRequest> requests) {
     try {
+      // The GCRA keys hold a time that can't be merged with the cache, they stay local
       requests =
-          requests.stream().filter(AddAndGetRequest::isDistributed).collect(Collectors.toList());
-      Map<LimitKey, Integer> responses = wrappedLimitUsageStorage.addAndGet(requests);
+          requests
+              .stream()
+              .filter(AddAndGetRequest::isDistributed)
+              .filter(request -> request.getLimitType() != LimitType.GCRA)
+              .collect(Collectors.toList());
+      // The cache weighs the previous bucket of the sliding windows, it needs the raw counters
+      Map<LimitKey, Integer> responses =
+          wrappedLimitUsageStorage.addAndGet(
+              requests.stream().map(this::toFixedWindow).collect(Collectors.toList()));
 
       // Flatten all requests into a single list of overrides.
       Map<LimitKey, Integer> rawOverrides = new HashMap<>();
@@ -140,8 +492,102 @@ public class AsyncLimitUsageStorage implements LimitUsageStorage {
     }
   }
 
+  private AddAndGetRequest toFixedWindow(AddAndGetRequest request) {
+    if (request.getLimitType() == LimitType.FIXED_WINDOW) {
+      return request;
+    }
+    return new AddAndGetRequest.Builder(request).withLimitType(LimitType.FIXED_WINDOW).build();
+  }
+
   @Override
   public void close() throws Exception {
     wrappedLimitUsageStorage.close();
   }
+
+  public static final Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    LimitUsageStorage wrappedLimitUsageStorage;
+    boolean microBatching;
+    int maxBatchSize;
+    Duration maxLinger;
+    int queueCapacity;
+    OverflowPolicy overflowPolicy;
+    boolean fastPath;
+    double safetyMargin;
+
+    private Builder() {
+      this.maxBatchSize = 1;
+      this.maxLinger = Duration.ZERO;
+      this.queueCapacity = Integer.MAX_VALUE;
+      this.overflowPolicy = OverflowPolicy.DROP;
+    }
+
+    public void setWrappedLimitUsageStorage(LimitUsageStorage wrappedLimitUsageStorage) {
+      this.wrappedLimitUsageStorage = wrappedLimitUsageStorage;
+    }
+
+    public Builder withWrappedLimitUsageStorage(LimitUsageStorage wrappedLimitUsageStorage) {
+      setWrappedLimitUsageStorage(wrappedLimitUsageStorage);
+      return this;
+    }
+
+    /**
+     * @param maxBatchSize The maximum number of requests drained in a single batch
+     * @param maxLinger How long a batch waits for more requests before being sent if it is not full
+     */
+    public void setMicroBatching(int maxBatchSize, Duration maxLinger) {
+      this.microBatching = true;
+      this.maxBatchSize = maxBatchSize;
+      this.maxLinger = maxLinger;
+    }
+
+    public Builder withMicroBatching(int maxBatchSize, Duration maxLinger) {
+      setMicroBatching(maxBatchSize, maxLinger);
+      return this;
+    }
+
+    /**
+     * @param queueCapacity The maximum number of requests, or calls when not micro-batching,
+     *                      waiting to be sent. Unbounded by default.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+      this.queueCapacity = queueCapacity;
+    }
+
+    public Builder withQueueCapacity(int queueCapacity) {
+      setQueueCapacity(queueCapacity);
+      return this;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+      this.overflowPolicy = overflowPolicy;
+    }
+
+    public Builder withOverflowPolicy(OverflowPolicy overflowPolicy) {
+      setOverflowPolicy(overflowPolicy);
+      return this;
+    }
+
+    /**
+     * @param safetyMargin The part of each distributed fixed window limit, between zero and one,
+     *                     kept as a safety margin. The calls bringing a counter within this
+     *                     margin of its limit are confirmed synchronously by the wrapped storage.
+     */
+    public void setFastPath(double safetyMargin) {
+      this.fastPath = true;
+      this.safetyMargin = safetyMargin;
+    }
+
+    public Builder withFastPath(double safetyMargin) {
+      setFastPath(safetyMargin);
+      return this;
+    }
+
+    public AsyncLimitUsageStorage build() {
+      return new AsyncLimitUsageStorage(this);
+    }
+  }
 }
@@ -0,0 +1,664 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+/**
+ * Implementation of {@link LimitUsageStorage} using memory, for a large number of keys.
+ * <p>
+ * Unlike the {@link InMemoryStorage}, the keys are not kept as objects. Each key is reduced to a
+ * 64-bit hash and stored with its expiration and its counter in the primitive arrays of a set of
+ * stripes. The hashes are seeded for each storage, so the keys of different limits only share a
+ * counter by accident, which is very unlikely below billions of keys.
+ * <p>
+ * The keys themselves are only written once in a byte buffer of their stripe, to list the current
+ * limit counters. A key takes a slot of 32 bytes and about a hundred bytes for short names,
+ * instead of a few hundreds for the {@link InMemoryStorage}. That is two to three times less
+ * memory, not an order of magnitude.
+ * <p>
+ * The expired entries are swept from a stripe a few slots at a time, by the calls using it.
+ *
+ * @since 2.1.2
+ */
+public class CompactInMemoryStorage implements LimitUsageStorage {
+  private static final int DEFAULT_STRIPE_COUNT = 64;
+  // Slots examined by a call, at most, while the expired entries of a stripe are swept
+  /*package*/ static final int MAX_SWEPT_SLOTS_PER_CALL = 64;
+
+  private final Stripe[] stripes;
+  private final ThreadLocal<StripeSet> lockedStripes = ThreadLocal.withInitial(StripeSet::new);
+  private final long seed = ThreadLocalRandom.current().nextLong();
+  private final Clock clock;
+
+  public CompactInMemoryStorage() {
+    this(DEFAULT_STRIPE_COUNT);
+  }
+
+  /**
+   * @param stripeCount The number of stripes, which bounds the number of threads updating
+   *                    counters at the same time. Rounded up to a power of two.
+   */
+  public CompactInMemoryStorage(int stripeCount) {
+    this(stripeCount, Clock.systemDefaultZone());
+  }
+
+  /*package*/ CompactInMemoryStorage(int stripeCount, Clock clock) {
+    if (stripeCount < 1) {
+      throw new IllegalArgumentException("'stripeCount' must be greater than zero");
+    }
+
+    int length = 1;
+    while (length < stripeCount) {
+      length <<= 1;
+    }
+    stripes = new Stripe[length];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+    this.clock = clock;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGet(Collection<AddAndGetRequest> requests) {
+    Map<LimitKey, Integer> updatedEntries = new HashMap<>();
+    for (AddAndGetRequest request : requests) {
+      updatedEntries.put(
+          LimitKey.fromRequest(request), add(request, request.getCost(), Long.MAX_VALUE));
+    }
+    return updatedEntries;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
+    Map<LimitKey, Integer> updatedEntries = new HashMap<>();
+    for (AddAndGetRequest request : requests) {
+      updatedEntries.put(
+          LimitKey.fromRequest(request),
+          add(request, request.getCost(), (long) request.getLimit() + request.getCost()));
+    }
+    return updatedEntries;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGetIfWithinLimits(Collection<AddAndGetRequest> requests) {
+    Map<LimitKey, Integer> updatedEntries = new HashMap<>();
+    boolean withinLimits = true;
+
+    StripeSet stripes = lockedStripes.get();
+    stripes.clear();
+    for (AddAndGetRequest request : requests) {
+      addStripes(
+          stripes,
+          request.getResource(),
+          request.getLimitName(),
+          request.getProperty(),
+          request.getExpiration(),
+          request.getEventTimestamp().toEpochMilli(),
+          request.getLimitType());
+    }
+
+    // The counters are only read while the locks are held, the costs are added if they all fit
+    lock(stripes);
+    try {
+      for (AddAndGetRequest request : requests) {
+        // No counter is below the minimum, the cost is never added
+        int value = add(request, request.getCost(), Long.MIN_VALUE) + request.getCost();
+        updatedEntries.put(LimitKey.fromRequest(request), value);
+        withinLimits &= value <= request.getLimit();
+      }
+
+      if (withinLimits) {
+        for (AddAndGetRequest request : requests) {
+          add(request, request.getCost(), Long.MAX_VALUE);
+        }
+      }
+    } finally {
+      unlock(stripes);
+    }
+    return updatedEntries;
+  }
+
+  @Override
+  public boolean addAndGetIfWithinLimits(AddAndGetBatch batch) {
+    boolean withinLimits = true;
+
+    StripeSet stripes = lockedStripes.get();
+    stripes.clear();
+    for (int i = 0; i < batch.size(); i++) {
+      LimitKey limitKey = batch.getLimitKey(i);
+      addStripes(
+          stripes,
+          limitKey.getResource(),
+          limitKey.getLimitName(),
+          limitKey.getProperty(),
+          limitKey.getExpiration(),
+          batch.getEventTimestamp(i),
+          limitKey.getType());
+    }
+
+    lock(stripes);
+    try {
+      for (int i = 0; i < batch.size(); i++) {
+        int value = add(batch, i, batch.getCost(i), Long.MIN_VALUE) + batch.getCost(i);
+        batch.setCounter(i, value);
+        withinLimits &= value <= batch.getLimit(i);
+      }
+
+      if (withinLimits) {
+        for (int i = 0; i < batch.size(); i++) {
+          add(batch, i, batch.getCost(i), Long.MAX_VALUE);
+        }
+      }
+    } finally {
+      unlock(stripes);
+    }
+    return true;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters() {
+    return getLimits(null, null, null);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource) {
+    return getLimits(resource, null, null);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource, String limitName) {
+    return getLimits(resource, limitName, null);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return getLimits(resource, limitName, property);
+  }
+
+  @Override
+  public void close() {}
+
+  // The number of entries of the stripes, expired or not
+  /*package*/ int getSize() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      stripe.lock.lock();
+      try {
+        size += stripe.size;
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+    return size;
+  }
+
+  // A null filter matches every key
+  private Map<LimitKey, Integer> getLimits(String resource, String limitName, String property) {
+    long now = clock.millis();
+    Map<LimitKey, Integer> counters = new HashMap<>();
+    for (Stripe stripe : stripes) {
+      stripe.lock.lock();
+      try {
+        stripe.collectCounters(resource, limitName, property, counters, now);
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+    return Collections.unmodifiableMap(counters);
+  }
+
+  private int add(AddAndGetRequest request, int cost, long maxCounter) {
+    return add(
+        request.getResource(),
+        request.getLimitName(),
+        request.getProperty(),
+        request.isDistributed(),
+        request.getExpiration(),
+        request.getEventTimestamp().toEpochMilli(),
+        cost,
+        request.getLimit(),
+        request.getLimitType(),
+        maxCounter);
+  }
+
+  private int add(AddAndGetBatch batch, int index, int cost, long maxCounter) {
+    LimitKey limitKey = batch.getLimitKey(index);
+    return add(
+        limitKey.getResource(),
+        limitKey.getLimitName(),
+        limitKey.getProperty(),
+        limitKey.isDistributed(),
+        limitKey.getExpiration(),
+        batch.getEventTimestamp(index),
+        cost,
+        batch.getLimit(index),
+        limitKey.getType(),
+        maxCounter);
+  }
+
+  // Adds the cost unless the counter including it goes above the maximum, and returns the counter
+  // including the cost if it was added or without it otherwise.
+  private int add(
+      String resource,
+      String limitName,
+      String property,
+      boolean distributed,
+      Duration expiration,
+      long eventTimestamp,
+      int cost,
+      int limit,
+      LimitType type,
+      long maxCounter) {
+    long expirationMillis = expiration.toMillis();
+    long identity = KeyHashes.hash(seed, resource, limitName, property);
+    long bucket = LimitUtils.calculateBucket(eventTimestamp, expirationMillis, type);
+    long keyHash = KeyHashes.hash(identity, bucket);
+    long now = clock.millis();
+
+    if (type == LimitType.GCRA) {
+      long nowMicros = eventTimestamp * 1000;
+      long interval = LimitUtils.calculateEmissionInterval(expiration, limit);
+      Stripe stripe = getStripe(keyHash);
+      stripe.lock.lock();
+      try {
+        stripe.removeExpiredEntries(now);
+        int slot =
+            stripe.getOrInsert(
+                keyHash,
+                now + expirationMillis,
+                now,
+                resource,
+                limitName,
+                property,
+                distributed,
+                bucket,
+                expirationMillis,
+                type);
+        long arrival = Math.max(stripe.slots[slot + Stripe.VALUE], nowMicros) + cost * interval;
+        int counter = LimitUtils.calculateArrivalCounter(arrival, nowMicros, interval);
+        if (counter > maxCounter) {
+          return counter - cost;
+        }
+        stripe.slots[slot + Stripe.VALUE] = arrival;
+        // The key is dropped once its arrival time has passed
+        stripe.extendExpiration(slot, arrival / 1000 + 1);
+        return counter;
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+
+    long previous = 0;
+    long end = bucket + expirationMillis;
+    if (type == LimitType.SLIDING_WINDOW) {
+      previous = getPreviousCounter(identity, bucket, expirationMillis, eventTimestamp);
+      // Sliding windows still read a bucket during the bucket after it
+      end += expirationMillis;
+    }
+
+    Stripe stripe = getStripe(keyHash);
+    stripe.lock.lock();
+    try {
+      stripe.removeExpiredEntries(now);
+      int slot =
+          stripe.getOrInsert(
+              keyHash,
+              end,
+              now,
+              resource,
+              limitName,
+              property,
+              distributed,
+              bucket,
+              expirationMillis,
+              type);
+      long counter = stripe.slots[slot + Stripe.VALUE] + cost + previous;
+      if (counter > maxCounter) {
+        return (int) (counter - cost);
+      }
+      stripe.slots[slot + Stripe.VALUE] += cost;
+      return (int) counter;
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  private int getPreviousCounter(
+      long identity, long bucket, long expirationMillis, long eventTimestamp) {
+    long keyHash = KeyHashes.hash(identity, bucket - expirationMillis);
+    Stripe stripe = getStripe(keyHash);
+    long previous;
+    stripe.lock.lock();
+    try {
+      previous = stripe.get(keyHash, clock.millis());
+    } finally {
+      stripe.lock.unlock();
+    }
+    return LimitUtils.weighPreviousCounter(
+        (int) previous, LimitUtils.calculatePreviousBucketWeight(eventTimestamp, expirationMillis));
+  }
+
+  // The stripe of the key of a request, and the one of its previous bucket for a sliding window
+  private void addStripes(
+      StripeSet lockedStripes,
+      String resource,
+      String limitName,
+      String property,
+      Duration expiration,
+      long eventTimestamp,
+      LimitType type) {
+    long expirationMillis = expiration.toMillis();
+    long identity = KeyHashes.hash(seed, resource, limitName, property);
+    long bucket = LimitUtils.calculateBucket(eventTimestamp, expirationMillis, type);
+    lockedStripes.add(getStripeIndex(KeyHashes.hash(identity, bucket)));
+    if (type == LimitType.SLIDING_WINDOW) {
+      lockedStripes.add(getStripeIndex(KeyHashes.hash(identity, bucket - expirationMillis)));
+    }
+  }
+
+  // The locks are reentrant, the calls made while holding them take them again
+  private void lock(StripeSet lockedStripes) {
+    for (int i = 0; i < lockedStripes.size(); i++) {
+      stripes[lockedStripes.get(i)].lock.lock();
+    }
+  }
+
+  private void unlock(StripeSet lockedStripes) {
+    for (int i = lockedStripes.size() - 1; i >= 0; i--) {
+      stripes[lockedStripes.get(i)].lock.unlock();
+    }
+  }
+
+  private Stripe getStripe(long keyHash) {
+    return stripes[getStripeIndex(keyHash)];
+  }
+
+  private int getStripeIndex(long keyHash) {
+    // The slots are picked with the low bits of the hash, the stripes with the high ones
+    return (int) (keyHash >>> 40) & (stripes.length - 1);
+  }
+
+  // The padding keeps the fields of neighbouring stripes, and their locks, on separate cache lines.
+  private abstract static class StripePadding {
+    long p01, p02, p03, p04, p05, p06, p07;
+  }
+
+  private abstract static class StripeFields extends StripePadding {
+    final ReentrantLock lock = new ReentrantLock();
+    // Open addressing table of (hash, expiration, value, key offset) slots, a power of two long
+    long[] slots = new long[Stripe.INITIAL_SLOT_COUNT * Stripe.SLOT_SIZE];
+    int size;
+    // The keys of the slots, encoded by KeyEncoding, and the bytes taken by the live ones
+    ByteBuffer keys = ByteBuffer.allocate(Stripe.INITIAL_KEYS_SIZE);
+    int keysSize;
+    int liveKeysSize;
+    // No entry expires before this epoch millisecond
+    long nextExpiration = Long.MAX_VALUE;
+    // The next slot to sweep, and the earliest expiration of the entries the sweep kept
+    int sweepIndex;
+    long sweepNextExpiration = Long.MAX_VALUE;
+  }
+
+  /**
+   * A part of the keys and their counters, guarded by its own lock.
+   */
+  private static final class Stripe extends StripeFields {
+    private static final int SLOT_SIZE = 4;
+    private static final int EXPIRATION = 1;
+    private static final int VALUE = 2;
+    private static final int KEY = 3;
+    private static final int INITIAL_SLOT_COUNT = 16;
+    private static final int INITIAL_KEYS_SIZE = 1024;
+
+    long p11, p12, p13, p14, p15, p16, p17;
+
+    private long get(long keyHash, long now) {
+      int slot = find(slots, keyHash);
+      return slots[slot] == keyHash && slots[slot + EXPIRATION] >= now ? slots[slot + VALUE] : 0;
+    }
+
+    private int getOrInsert(
+        long keyHash,
+        long expiration,
+        long now,
+        String resource,
+        String limitName,
+        String property,
+        boolean distributed,
+        long bucket,
+        long expirationMillis,
+        LimitType type) {
+      int slot = find(slots, keyHash);
+      if (slots[slot] != KeyHashes.EMPTY) {
+        // An expired entry the sweep has not reached yet starts over
+        if (slots[slot + EXPIRATION] < now) {
+          slots[slot + EXPIRATION] = expiration;
+          slots[slot + VALUE] = 0;
+        }
+        return slot;
+      }
+
+      // The table is kept at most three quarters full so the probes stay short
+      if ((size + 1) * 4 > slots.length / SLOT_SIZE * 3) {
+        rebuild(now);
+        slot = find(slots, keyHash);
+      }
+      // The key is written first, the slot is not part of the table while the keys are copied
+      int key =
+          writeKey(resource, limitName, property, distributed, bucket, expirationMillis, type);
+      slots[slot] = keyHash;
+      slots[slot + EXPIRATION] = expiration;
+      slots[slot + VALUE] = 0;
+      slots[slot + KEY] = key;
+      size++;
+      nextExpiration = Math.min(nextExpiration, expiration);
+      sweepNextExpiration = Math.min(sweepNextExpiration, expiration);
+      return slot;
+    }
+
+    private int writeKey(
+        String resource,
+        String limitName,
+        String property,
+        boolean distributed,
+        long bucket,
+        long expirationMillis,
+        LimitType type) {
+      int length = KeyEncoding.getLength(resource, limitName, property);
+      if (keysSize + length > keys.capacity()) {
+        // The keys of the removed entries are dropped, the buffer grows once the live keys fill
+        // half of it
+        int capacity = keys.capacity();
+        while ((liveKeysSize + length) * 2 > capacity) {
+          capacity *= 2;
+        }
+        copyKeys(slots, keys, capacity);
+      }
+
+      int key = keysSize;
+      KeyEncoding.write(
+          keys, key, resource, limitName, property, distributed, bucket, expirationMillis, type);
+      keysSize += length;
+      liveKeysSize += length;
+      return key;
+    }
+
+    private void collectCounters(
+        String resource,
+        String limitName,
+        String property,
+        Map<LimitKey, Integer> counters,
+        long now) {
+      for (int slot = 0; slot < slots.length; slot += SLOT_SIZE) {
+        if (slots[slot] == KeyHashes.EMPTY || slots[slot + EXPIRATION] < now) {
+          continue;
+        }
+        LimitKey limitKey = KeyEncoding.read(keys, (int) slots[slot + KEY]);
+        // The GCRA keys hold an arrival time, not a counter
+        if (limitKey.getType() != LimitType.GCRA
+            && (resource == null || resource.equals(limitKey.getResource()))
+            && (limitName == null || limitName.equals(limitKey.getLimitName()))
+            && (property == null || property.equals(limitKey.getProperty()))) {
+          counters.put(limitKey, (int) slots[slot + VALUE]);
+        }
+      }
+    }
+
+    private void extendExpiration(int slot, long expiration) {
+      if (expiration > slots[slot + EXPIRATION]) {
+        slots[slot + EXPIRATION] = expiration;
+      }
+    }
+
+    // Once an entry has expired, each call sweeps the next slots of the table until the whole
+    // table has been swept.
+    private void removeExpiredEntries(long now) {
+      if (nextExpiration >= now) {
+        return;
+      }
+
+      int slotCount = slots.length / SLOT_SIZE;
+      for (int swept = 0; swept < MAX_SWEPT_SLOTS_PER_CALL; swept++) {
+        if (sweepIndex == slotCount) {
+          // The next sweep starts once the earliest remaining entry has expired
+          nextExpiration = sweepNextExpiration;
+          sweepIndex = 0;
+          sweepNextExpiration = Long.MAX_VALUE;
+          return;
+        }
+
+        int slot = sweepIndex * SLOT_SIZE;
+        if (slots[slot] != KeyHashes.EMPTY) {
+          if (slots[slot + EXPIRATION] < now) {
+            remove(sweepIndex);
+            // Another entry may have been shifted in this slot
+            continue;
+          }
+          sweepNextExpiration = Math.min(sweepNextExpiration, slots[slot + EXPIRATION]);
+        }
+        sweepIndex++;
+      }
+    }
+
+    // Linear probing can't simply clear a slot, the following entries are shifted back instead.
+    private void remove(int index) {
+      liveKeysSize -= KeyEncoding.getLength(keys, (int) slots[index * SLOT_SIZE + KEY]);
+      int mask = slots.length / SLOT_SIZE - 1;
+      int next = index;
+      while (true) {
+        next = (next + 1) & mask;
+        long keyHash = slots[next * SLOT_SIZE];
+        if (keyHash == KeyHashes.EMPTY) {
+          break;
+        }
+        // The entry stays if its home slot is cyclically between the removed slot and itself
+        int home = (int) keyHash & mask;
+        boolean stays = index <= next ? index < home && home <= next : index < home || home <= next;
+        if (!stays) {
+          System.arraycopy(slots, next * SLOT_SIZE, slots, index * SLOT_SIZE, SLOT_SIZE);
+          // The entry may move behind the sweep, its expiration is kept for the next one
+          sweepNextExpiration =
+              Math.min(sweepNextExpiration, slots[index * SLOT_SIZE + EXPIRATION]);
+          index = next;
+        }
+      }
+      slots[index * SLOT_SIZE] = KeyHashes.EMPTY;
+      size--;
+    }
+
+    // Copies the entries that have not expired in a table at most half full, which drops the
+    // keys of the removed entries along with them.
+    private void rebuild(long now) {
+      int live = 0;
+      for (int slot = 0; slot < slots.length; slot += SLOT_SIZE) {
+        if (slots[slot] != KeyHashes.EMPTY && slots[slot + EXPIRATION] >= now) {
+          live++;
+        }
+      }
+      int slotCount = INITIAL_SLOT_COUNT;
+      while ((live + 1) * 2 > slotCount) {
+        slotCount *= 2;
+      }
+
+      long[] previousSlots = slots;
+      slots = new long[slotCount * SLOT_SIZE];
+      size = 0;
+      nextExpiration = Long.MAX_VALUE;
+      sweepIndex = 0;
+      sweepNextExpiration = Long.MAX_VALUE;
+      for (int slot = 0; slot < previousSlots.length; slot += SLOT_SIZE) {
+        long keyHash = previousSlots[slot];
+        long expiration = previousSlots[slot + EXPIRATION];
+        if (keyHash != KeyHashes.EMPTY && expiration >= now) {
+          int newSlot = find(slots, keyHash);
+          System.arraycopy(previousSlots, slot, slots, newSlot, SLOT_SIZE);
+          size++;
+          nextExpiration = Math.min(nextExpiration, expiration);
+        }
+      }
+      copyKeys(slots, keys, Math.max(INITIAL_KEYS_SIZE, keys.capacity()));
+    }
+
+    // Copies the keys of the entries of the table in a new buffer
+    private void copyKeys(long[] table, ByteBuffer previousKeys, int capacity) {
+      keys = ByteBuffer.allocate(capacity);
+      keysSize = 0;
+      for (int slot = 0; slot < table.length; slot += SLOT_SIZE) {
+        if (table[slot] != KeyHashes.EMPTY) {
+          int key = (int) table[slot + KEY];
+          int keyLength = KeyEncoding.getLength(previousKeys, key);
+          System.arraycopy(previousKeys.array(), key, keys.array(), keysSize, keyLength);
+          table[slot + KEY] = keysSize;
+          keysSize += keyLength;
+        }
+      }
+      liveKeysSize = keysSize;
+    }
+
+    // Returns the slot holding the key, or the empty slot where it belongs
+    private static int find(long[] slots, long keyHash) {
+      int mask = slots.length / SLOT_SIZE - 1;
+      int index = (int) keyHash & mask;
+      while (slots[index * SLOT_SIZE] != keyHash && slots[index * SLOT_SIZE] != KeyHashes.EMPTY) {
+        index = (index + 1) & mask;
+      }
+      return index * SLOT_SIZE;
+    }
+  }
+}
@@ -23,7 +23,11 @@
 package com.coveo.spillway.storage;
 
 import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
 import com.coveo.spillway.storage.utils.AddAndGetRequest;
+import com.coveo.spillway.storage.utils.ArrivalTime;
 import com.coveo.spillway.storage.utils.Capacity;
 import com.coveo.spillway.storage.utils.OverrideKeyRequest;
 
@@ -36,8 +40,14 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -55,18 +65,50 @@ import java.util.stream.Collectors;
  */
 public class InMemoryStorage implements LimitUsageStorage {
 
+  private static final int LOCK_STRIPES = 64;
+  // Expired keys removed by a call, at most, the listings and synchronizations remove them all
+  static final int MAX_EXPIRED_ENTRIES_PER_CALL = 256;
+
   Map<LimitKey, Capacity> map = new ConcurrentHashMap<>();
+  // The GCRA keys, they hold a time rather than a counter
+  private Map<LimitKey, ArrivalTime> arrivals = new ConcurrentHashMap<>();
   private Clock clock = Clock.systemDefaultZone();
 
+  // Keys indexed by the end of their bucket, so expired keys are dropped without a map scan
+  private ConcurrentNavigableMap<Instant, Queue<LimitKey>> expirations =
+      new ConcurrentSkipListMap<>();
+  private AtomicBoolean removingExpiredEntries = new AtomicBoolean(false);
+
+  // Held by the conditional calls while they check and add their costs
+  private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+  {
+    for (int i = 0; i < LOCK_STRIPES; i++) {
+      locks[i] = new ReentrantLock();
+    }
+  }
+
+  // Distributed entries modified since the last synchronization, only tracked when requested
+  private volatile ConcurrentMap<LimitKey, Capacity> modifiedEntries;
+  // Expired entries kept until their last modifications are synchronized
+  private Queue<LimitKey> expiredModifiedKeys = new ConcurrentLinkedQueue<>();
+
   @Override
   public Map<LimitKey, Integer> addAndGet(Collection<AddAndGetRequest> requests) {
     Map<LimitKey, Integer> updatedEntries = new HashMap<>();
 
     for (AddAndGetRequest request : requests) {
       LimitKey limitKey = LimitKey.fromRequest(request);
+      if (limitKey.getType() == LimitType.GCRA) {
+        updatedEntries.put(
+            limitKey, addArrival(limitKey, request, request.getCost(), Integer.MAX_VALUE));
+        continue;
+      }
 
-      Capacity counter = map.computeIfAbsent(limitKey, (key) -> new Capacity());
-      updatedEntries.put(limitKey, counter.addAndGet(request.getCost()));
+      Capacity counter = map.computeIfAbsent(limitKey, this::createCapacity);
+      int previous = getPreviousCounter(limitKey, request.getEventTimestamp().toEpochMilli());
+      updatedEntries.put(limitKey, counter.addAndGet(request.getCost()) + previous);
+      markModified(limitKey, counter, request.getCost());
     }
     removeExpiredEntries();
 
@@ -79,32 +121,219 @@ public class InMemoryStorage implements LimitUsageStorage {
     requests.forEach(
         request -> {
           LimitKey limitKey = LimitKey.fromRequest(request);
-          Capacity counter = map.computeIfAbsent(limitKey, (key) -> new Capacity());
+          if (limitKey.getType() == LimitType.GCRA) {
+            int maxCounter = request.getLimit() + request.getCost();
+            int value = addArrival(limitKey, request, request.getCost(), maxCounter);
+            updatedEntries.put(limitKey, value > maxCounter ? value - request.getCost() : value);
+            return;
+          }
+          Capacity counter = map.computeIfAbsent(limitKey, this::createCapacity);
+          int previous = getPreviousCounter(limitKey, request.getEventTimestamp().toEpochMilli());
           updatedEntries.put(
-              limitKey, counter.addAndGetWithLimit(request.getCost(), request.getLimit()));
+              limitKey,
+              counter.addAndGetWithLimit(request.getCost(), request.getLimit() - previous)
+                  + previous);
+          markModified(limitKey, counter, request.getCost());
         });
     removeExpiredEntries();
     return updatedEntries;
   }
 
+  @Override
+  public Map<LimitKey, Integer> addAndGetIfWithinLimits(Collection<AddAndGetRequest> requests) {
+    Map<LimitKey, Integer> updatedEntries = new HashMap<>();
+    Map<LimitKey, Capacity> counters = new HashMap<>();
+    boolean withinLimits = true;
+
+    long stripes = 0;
+    for (AddAndGetRequest request : requests) {
+      stripes |= getLockStripe(LimitKey.fromRequest(request));
+    }
+
+    // The counters are only read while the locks are held, the costs are added if they all fit
+    lock(stripes);
+    try {
+      for (AddAndGetRequest request : requests) {
+        LimitKey limitKey = LimitKey.fromRequest(request);
+        int value;
+        if (limitKey.getType() == LimitType.GCRA) {
+          value = addArrival(limitKey, request, 0, Integer.MAX_VALUE) + request.getCost();
+        } else {
+          Capacity counter = map.computeIfAbsent(limitKey, this::createCapacity);
+          counters.put(limitKey, counter);
+          value =
+              counter.get()
+                  + request.getCost()
+                  + getPreviousCounter(limitKey, request.getEventTimestamp().toEpochMilli());
+        }
+        updatedEntries.put(limitKey, value);
+        withinLimits &= value <= request.getLimit();
+      }
+
+      if (withinLimits) {
+        for (AddAndGetRequest request : requests) {
+          LimitKey limitKey = LimitKey.fromRequest(request);
+          if (limitKey.getType() == LimitType.GCRA) {
+            addArrival(limitKey, request, request.getCost(), Integer.MAX_VALUE);
+          } else {
+            Capacity counter = counters.get(limitKey);
+            counter.addAndGet(request.getCost());
+            markModified(limitKey, counter, request.getCost());
+          }
+        }
+      }
+    } finally {
+      unlock(stripes);
+    }
+    removeExpiredEntries();
+
+    return updatedEntries;
+  }
+
+  @Override
+  public boolean addAndGetIfWithinLimits(AddAndGetBatch batch) {
+    boolean withinLimits = true;
+
+    long stripes = 0;
+    for (int i = 0; i < batch.size(); i++) {
+      stripes |= getLockStripe(batch.getLimitKey(i));
+    }
+
+    lock(stripes);
+    try {
+      for (int i = 0; i < batch.size(); i++) {
+        LimitKey limitKey = batch.getLimitKey(i);
+        int value;
+        if (limitKey.getType() == LimitType.GCRA) {
+          value = addArrival(batch, i, 0) + batch.getCost(i);
+        } else {
+          value = getCapacity(limitKey).get() + batch.getCost(i) + getPreviousCounter(batch, i);
+        }
+        batch.setCounter(i, value);
+        withinLimits &= value <= batch.getLimit(i);
+      }
+
+      if (withinLimits) {
+        for (int i = 0; i < batch.size(); i++) {
+          LimitKey limitKey = batch.getLimitKey(i);
+          if (limitKey.getType() == LimitType.GCRA) {
+            addArrival(batch, i, batch.getCost(i));
+            continue;
+          }
+          Capacity counter = getCapacity(limitKey);
+          counter.addAndGet(batch.getCost(i));
+          // The batch key is reused, it is only copied the first time the entry is marked
+          if (isTracked(limitKey, batch.getCost(i)) && !modifiedEntries.containsKey(limitKey)) {
+            modifiedEntries.putIfAbsent(copyOf(limitKey), counter);
+          }
+        }
+      }
+    } finally {
+      unlock(stripes);
+    }
+    removeExpiredEntries();
+
+    return true;
+  }
+
+  // Each key maps to one of the 64 locks, a call holds the locks of all its keys as a bit mask.
+  private static long getLockStripe(LimitKey limitKey) {
+    int hash = limitKey.hashCode();
+    return 1L << ((hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1));
+  }
+
+  // The locks are always taken in the same order, so calls sharing keys can't deadlock.
+  private void lock(long stripes) {
+    for (long remaining = stripes; remaining != 0; remaining &= remaining - 1) {
+      locks[Long.numberOfTrailingZeros(remaining)].lock();
+    }
+  }
+
+  private void unlock(long stripes) {
+    for (long remaining = stripes; remaining != 0; remaining &= remaining - 1) {
+      locks[Long.numberOfTrailingZeros(remaining)].unlock();
+    }
+  }
+
   @Override
   public void close() {}
 
   public void overrideKeys(List<OverrideKeyRequest> overrides) {
     for (OverrideKeyRequest override : overrides) {
-      map.put(override.getLimitKey(), new Capacity(override.getNewValue()));
+      if (map.put(override.getLimitKey(), new Capacity(override.getNewValue())) == null) {
+        indexExpiration(override.getLimitKey());
+      }
     }
     removeExpiredEntries();
   }
 
   public void applyOnEach(Consumer<Entry<LimitKey, Capacity>> action) {
-    map.entrySet().forEach(action);
-    removeExpiredEntries();
+    applyOnEach(action, () -> {});
+  }
+
+  /**
+   * Applies the action on each entry, then runs the completion before the expired entries are
+   * removed. The entries are unmarked as modified before the action is applied.
+   *
+   * @param action The action applied on each entry
+   * @param completion Runs once the action was applied on every entry
+   */
+  public void applyOnEach(Consumer<Entry<LimitKey, Capacity>> action, Runnable completion) {
+    for (Entry<LimitKey, Capacity> entry : map.entrySet()) {
+      if (modifiedEntries != null) {
+        modifiedEntries.remove(entry.getKey(), entry.getValue());
+      }
+      action.accept(entry);
+    }
+    completion.run();
+    removeAllExpiredEntries();
+  }
+
+  /**
+   * Starts tracking the distributed entries modified since they were last passed
+   * to {@link #applyOnEach(Consumer)} or {@link #applyOnEachModified(Consumer)}.
+   * Expired entries are then kept until their last modifications have been passed.
+   */
+  public synchronized void trackModifiedKeys() {
+    if (modifiedEntries == null) {
+      modifiedEntries = new ConcurrentHashMap<>();
+    }
+  }
+
+  /**
+   * Applies the action on each distributed entry modified since the last call.
+   * The entries are unmarked before the action is applied, so a concurrent modification
+   * marks them again for the next call.
+   *
+   * @param action The action applied on each modified entry
+   */
+  public void applyOnEachModified(Consumer<Entry<LimitKey, Capacity>> action) {
+    applyOnEachModified(action, () -> {});
+  }
+
+  /**
+   * Applies the action on each distributed entry modified since the last call, then runs the
+   * completion before the expired entries are removed.
+   *
+   * @param action The action applied on each modified entry
+   * @param completion Runs once the action was applied on every modified entry
+   */
+  public void applyOnEachModified(
+      Consumer<Entry<LimitKey, Capacity>> action, Runnable completion) {
+    if (modifiedEntries != null) {
+      for (Entry<LimitKey, Capacity> entry : modifiedEntries.entrySet()) {
+        if (modifiedEntries.remove(entry.getKey(), entry.getValue())) {
+          action.accept(entry);
+        }
+      }
+    }
+    completion.run();
+    removeAllExpiredEntries();
   }
 
   @Override
   public Map<LimitKey, Integer> getCurrentLimitCounters() {
-    removeExpiredEntries();
+    removeAllExpiredEntries();
     return map.entrySet()
         .stream()
         .collect(Collectors.toMap(Map.Entry::getKey, kvp -> kvp.getValue().get()));
@@ -112,13 +341,13 @@ public class InMemoryStorage implements LimitUsageStorage {
 
   @Override
   public Map<LimitKey, Integer> getCurrentLimitCounters(String resource) {
-    removeExpiredEntries();
+    removeAllExpiredEntries();
     return filterLimitCountersBy(e -> e.getKey().getResource().equals(resource));
   }
 
   @Override
   public Map<LimitKey, Integer> getCurrentLimitCounters(String resource, String limitName) {
-    removeExpiredEntries();
+    removeAllExpiredEntries();
     return filterLimitCountersBy(
         e -> e.getKey().getResource().equals(resource),
         e -> e.getKey().getLimitName().equals(limitName));
@@ -127,7 +356,7 @@ public class InMemoryStorage implements LimitUsageStorage {
   @Override
   public Map<LimitKey, Integer> getCurrentLimitCounters(
       String resource, String limitName, String property) {
-    removeExpiredEntries();
+    removeAllExpiredEntries();
     return filterLimitCountersBy(
         e -> e.getKey().getResource().equals(resource),
         e -> e.getKey().getLimitName().equals(limitName),
@@ -143,15 +372,201 @@ public class InMemoryStorage implements LimitUsageStorage {
             .collect(Collectors.toMap(Map.Entry::getKey, kvp -> kvp.getValue().get())));
   }
 
+  // The batch keys are reused by their thread, so a key is only copied when it is first inserted.
+  private Capacity getCapacity(LimitKey batchKey) {
+    Capacity counter = map.get(batchKey);
+    if (counter == null) {
+      counter = map.computeIfAbsent(copyOf(batchKey), this::createCapacity);
+    }
+    return counter;
+  }
+
+  private LimitKey copyOf(LimitKey limitKey) {
+    LimitKey copy =
+        new LimitKey(
+            limitKey.getResource(),
+            limitKey.getLimitName(),
+            limitKey.getProperty(),
+            limitKey.isDistributed(),
+            limitKey.getBucket(),
+            limitKey.getExpiration());
+    copy.setType(limitKey.getType());
+    return copy;
+  }
+
+  // Sliding windows count the previous bucket, weighted by the part still in the window.
+  private int getPreviousCounter(LimitKey limitKey, long eventTimestamp) {
+    if (limitKey.getType() != LimitType.SLIDING_WINDOW) {
+      return 0;
+    }
+    LimitKey previousKey = copyOf(limitKey);
+    previousKey.setBucket(limitKey.getBucket().minus(limitKey.getExpiration()));
+    return weighPreviousCounter(previousKey, eventTimestamp);
+  }
+
+  private int getPreviousCounter(AddAndGetBatch batch, int index) {
+    if (batch.getLimitKey(index).getType() != LimitType.SLIDING_WINDOW) {
+      return 0;
+    }
+    return weighPreviousCounter(batch.getPreviousLimitKey(index), batch.getEventTimestamp(index));
+  }
+
+  private int weighPreviousCounter(LimitKey previousKey, long eventTimestamp) {
+    Capacity previous = map.get(previousKey);
+    if (previous == null) {
+      return 0;
+    }
+    return LimitUtils.weighPreviousCounter(
+        previous.get(),
+        LimitUtils.calculatePreviousBucketWeight(
+            eventTimestamp, previousKey.getExpiration().toMillis()));
+  }
+
+  private int addArrival(LimitKey limitKey, AddAndGetRequest request, int cost, int maxCounter) {
+    return getArrivalTime(limitKey)
+        .addAndGet(
+            cost,
+            request.getEventTimestamp().toEpochMilli() * 1000,
+            LimitUtils.calculateEmissionInterval(request.getExpiration(), request.getLimit()),
+            maxCounter);
+  }
+
+  private int addArrival(AddAndGetBatch batch, int index, int cost) {
+    LimitKey limitKey = batch.getLimitKey(index);
+    return getArrivalTime(limitKey)
+        .addAndGet(
+            cost,
+            batch.getEventTimestamp(index) * 1000,
+            LimitUtils.calculateEmissionInterval(limitKey.getExpiration(), batch.getLimit(index)),
+            Integer.MAX_VALUE);
+  }
+
+  // Like getCapacity, the key is only copied when it is first inserted.
+  private ArrivalTime getArrivalTime(LimitKey limitKey) {
+    ArrivalTime arrival = arrivals.get(limitKey);
+    if (arrival == null) {
+      arrival = arrivals.computeIfAbsent(copyOf(limitKey), this::createArrivalTime);
+    }
+    return arrival;
+  }
+
+  private ArrivalTime createArrivalTime(LimitKey limitKey) {
+    indexExpiration(limitKey, Instant.ofEpochMilli(clock.millis()).plus(limitKey.getExpiration()));
+    return new ArrivalTime();
+  }
+
+  private void markModified(LimitKey limitKey, Capacity counter, int cost) {
+    if (isTracked(limitKey, cost)) {
+      modifiedEntries.putIfAbsent(limitKey, counter);
+    }
+  }
+
+  private boolean isTracked(LimitKey limitKey, int cost) {
+    return modifiedEntries != null && cost != 0 && limitKey.isDistributed();
+  }
+
+  private Capacity createCapacity(LimitKey limitKey) {
+    indexExpiration(limitKey);
+    return new Capacity();
+  }
+
+  private void indexExpiration(LimitKey limitKey) {
+    // Sliding windows still read a bucket during the bucket after it
+    indexExpiration(
+        limitKey,
+        limitKey.getType() == LimitType.SLIDING_WINDOW
+            ? limitKey.getBucket().plus(limitKey.getExpiration().multipliedBy(2))
+            : limitKey.getBucket().plus(limitKey.getExpiration()));
+  }
+
+  private void indexExpiration(LimitKey limitKey, Instant end) {
+    Queue<LimitKey> keys;
+    do {
+      keys = expirations.computeIfAbsent(end, (key) -> new ConcurrentLinkedQueue<>());
+      keys.add(limitKey);
+      // If the bucket end was removed while we were adding the key, it might have been drained
+      // already. We index the key again so the next removal will pick it up.
+    } while (expirations.get(end) != keys);
+  }
+
   private void removeExpiredEntries() {
-    Instant now = Instant.now(clock);
+    removeExpiredEntries(MAX_EXPIRED_ENTRIES_PER_CALL);
+  }
 
-    Set<LimitKey> expiredLimitKeys =
-        map.keySet()
-            .stream()
-            .filter(limitKey -> limitKey.getBucket().plus(limitKey.getExpiration()).isBefore(now))
-            .collect(Collectors.toSet());
+  private void removeAllExpiredEntries() {
+    removeExpiredEntries(Integer.MAX_VALUE);
+    expiredModifiedKeys.removeIf(
+        limitKey -> {
+          if (modifiedEntries != null && modifiedEntries.containsKey(limitKey)) {
+            return false;
+          }
+          map.remove(limitKey);
+          return true;
+        });
+  }
+
+  private void removeExpiredEntries(int maxRemovals) {
+    // Unlike firstEntry(), ceilingKey() does not allocate, which keeps the common case free.
+    Instant oldestEnd = expirations.ceilingKey(Instant.MIN);
+    if (oldestEnd == null || oldestEnd.toEpochMilli() >= clock.millis()) {
+      return;
+    }
 
-    map.keySet().removeAll(expiredLimitKeys);
+    // Only one caller removes the expired entries, the others carry on with their request.
+    if (removingExpiredEntries.compareAndSet(false, true)) {
+      try {
+        Instant now = Instant.ofEpochMilli(clock.millis());
+        int removals = 0;
+        Map.Entry<Instant, Queue<LimitKey>> oldest;
+        while (removals < maxRemovals
+            && (oldest = expirations.firstEntry()) != null
+            && oldest.getKey().isBefore(now)) {
+          // All the keys of a window expire together, the rest of the bucket is left for the
+          // next calls rather than making this one pay for all of them.
+          Queue<LimitKey> keys = oldest.getValue();
+          LimitKey limitKey;
+          while (removals < maxRemovals && (limitKey = keys.poll()) != null) {
+            removeExpiredEntry(limitKey, now);
+            removals++;
+          }
+          if (keys.isEmpty() && expirations.remove(oldest.getKey(), keys)) {
+            // Keys added before the bucket was removed are not indexed again by their caller
+            while ((limitKey = keys.poll()) != null) {
+              removeExpiredEntry(limitKey, now);
+            }
+          }
+        }
+      } finally {
+        removingExpiredEntries.set(false);
+      }
+    }
+  }
+
+  private void removeExpiredEntry(LimitKey limitKey, Instant now) {
+    if (limitKey.getType() == LimitType.GCRA) {
+      removeArrivalTime(limitKey, now);
+      return;
+    }
+    if (modifiedEntries != null && modifiedEntries.containsKey(limitKey)) {
+      // Its last usage was not synchronized yet, the next synchronization removes it
+      expiredModifiedKeys.add(limitKey);
+      return;
+    }
+    map.remove(limitKey);
+  }
+
+
+  // A GCRA key is dropped once its arrival time has passed, it is indexed again until then.
+  private void removeArrivalTime(LimitKey limitKey, Instant now) {
+    ArrivalTime arrival = arrivals.get(limitKey);
+    if (arrival == null) {
+      return;
+    }
+    Instant arrivalTime = Instant.ofEpochMilli(arrival.getArrivalMicros() / 1000 + 1);
+    if (arrivalTime.isAfter(now)) {
+      indexExpiration(limitKey, arrivalTime);
+    } else {
+      arrivals.remove(limitKey, arrival);
+    }
   }
 }
@@ -0,0 +1,167 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
+
+/**
+ * The encoding of the keys in the buffers of the storages that keep their counters in primitive
+ * tables. A key is written as its bucket, its expiration, whether it is distributed, its type and
+ * then its resource, limit name and property as a length followed by the characters.
+ *
+ * @since 2.1.2
+ */
+/*package*/ final class KeyEncoding {
+  private static final int EXPIRATION = 8;
+  private static final int DISTRIBUTED = 16;
+  private static final int TYPE = 17;
+  private static final int STRINGS = 18;
+  private static final LimitType[] TYPES = LimitType.values();
+
+  private KeyEncoding() {}
+
+  /*package*/ static int getLength(String resource, String limitName, String property) {
+    return STRINGS
+        + getStringLength(resource)
+        + getStringLength(limitName)
+        + getStringLength(property);
+  }
+
+  /*package*/ static int getLength(ByteBuffer keys, int key) {
+    int position = key + STRINGS;
+    for (int i = 0; i < 3; i++) {
+      position += getStringLength(keys, position);
+    }
+    return position - key;
+  }
+
+  /*package*/ static void write(
+      ByteBuffer keys,
+      int key,
+      String resource,
+      String limitName,
+      String property,
+      boolean distributed,
+      long bucket,
+      long expirationMillis,
+      LimitType type) {
+    keys.putLong(key, bucket);
+    keys.putLong(key + EXPIRATION, expirationMillis);
+    keys.put(key + DISTRIBUTED, (byte) (distributed ? 1 : 0));
+    keys.put(key + TYPE, (byte) type.ordinal());
+    int position = key + STRINGS;
+    position = writeString(keys, position, resource);
+    position = writeString(keys, position, limitName);
+    writeString(keys, position, property);
+  }
+
+  /*package*/ static LimitKey read(ByteBuffer keys, int key) {
+    int position = key + STRINGS;
+    String resource = readString(keys, position);
+    position += getStringLength(keys, position);
+    String limitName = readString(keys, position);
+    position += getStringLength(keys, position);
+    String property = readString(keys, position);
+
+    LimitKey limitKey =
+        new LimitKey(
+            resource,
+            limitName,
+            property,
+            keys.get(key + DISTRIBUTED) != 0,
+            Instant.ofEpochMilli(keys.getLong(key)),
+            Duration.ofMillis(keys.getLong(key + EXPIRATION)));
+    limitKey.setType(TYPES[keys.get(key + TYPE)]);
+    return limitKey;
+  }
+
+  /*package*/ static boolean matches(
+      ByteBuffer keys, int key, String resource, String limitName, String property, long bucket) {
+    if (keys.getLong(key) != bucket) {
+      return false;
+    }
+    int position = key + STRINGS;
+    if (!stringMatches(keys, position, resource)) {
+      return false;
+    }
+    position += getStringLength(keys, position);
+    if (!stringMatches(keys, position, limitName)) {
+      return false;
+    }
+    position += getStringLength(keys, position);
+    return stringMatches(keys, position, property);
+  }
+
+  private static boolean stringMatches(ByteBuffer keys, int position, String value) {
+    int length = keys.getInt(position);
+    if (value == null || length < 0) {
+      return value == null && length < 0;
+    }
+    if (length != value.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (keys.getChar(position + 4 + i * 2) != value.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int writeString(ByteBuffer keys, int position, String value) {
+    if (value == null) {
+      keys.putInt(position, -1);
+      return position + 4;
+    }
+    keys.putInt(position, value.length());
+    for (int i = 0; i < value.length(); i++) {
+      keys.putChar(position + 4 + i * 2, value.charAt(i));
+    }
+    return position + getStringLength(value);
+  }
+
+  private static String readString(ByteBuffer keys, int position) {
+    int length = keys.getInt(position);
+    if (length < 0) {
+      return null;
+    }
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = keys.getChar(position + 4 + i * 2);
+    }
+    return new String(chars);
+  }
+
+  private static int getStringLength(ByteBuffer keys, int position) {
+    return 4 + Math.max(0, keys.getInt(position)) * 2;
+  }
+
+  private static int getStringLength(String value) {
+    return 4 + (value == null ? 0 : value.length() * 2);
+  }
+}
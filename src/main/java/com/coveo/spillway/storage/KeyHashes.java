@@ -0,0 +1,74 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+/**
+ * The 64-bit hashes of the keys of the storages that keep their counters in primitive tables.
+ * They hash the fields compared by {@code LimitKey.equals}, with a seed so the collisions can't
+ * be predicted from one storage to the other.
+ *
+ * @since 2.1.2
+ */
+/*package*/ final class KeyHashes {
+  /*package*/ static final long EMPTY = 0;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+  private static final long GOLDEN_RATIO = 0x9e3779b97f4a7c15L;
+
+  private KeyHashes() {}
+
+  // The bucket is mixed in afterwards, so the hash of a limit is computed once for both buckets
+  // of a sliding window.
+  /*package*/ static long hash(long seed, String resource, String limitName, String property) {
+    long hash = seed;
+    hash = hash(hash, resource);
+    hash = hash(hash, limitName);
+    return hash(hash, property);
+  }
+
+  /*package*/ static long hash(long identity, long bucket) {
+    long hash = mix(identity ^ bucket * GOLDEN_RATIO);
+    // Zero marks the empty slots
+    return hash == EMPTY ? 1 : hash;
+  }
+
+  // FNV-1a over the characters, followed by the length so that fields can't run into each other
+  private static long hash(long hash, String value) {
+    if (value == null) {
+      return (hash ^ -1) * FNV_PRIME;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+    }
+    return (hash ^ value.length()) * FNV_PRIME;
+  }
+
+  // The finalizer of MurmurHash3, so every bit of the key affects the slot and the stripe
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    return hash ^ (hash >>> 33);
+  }
+}
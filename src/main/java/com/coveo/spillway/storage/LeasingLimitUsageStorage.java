@@ -0,0 +1,532 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+/**
+ * A {@link LimitUsageStorage} that leases chunks of capacity from a distributed storage.
+ * <p>
+ * Each limit reserves a lease of several units at once in the wrapped storage, only if the
+ * limit is not exceeded, and the calls are then served from the local lease. A new lease is
+ * requested in the background when the current one runs low. The wrapped storage never goes
+ * past the limit, at the cost of leaving up to one lease per instance unused when the limit
+ * is reached.
+ * <p>
+ * The size of the leases follows the rate at which each limit is used locally, so busy limits
+ * go back to the wrapped storage about once per lease duration. It is capped to a ratio of
+ * the limit so a single instance can't take all the capacity.
+ * <p>
+ * Only {@link #addAndGetIfWithinLimits(Collection)}, used by {@code call} and {@code tryCall},
+ * is served from the leases. The other methods go to the wrapped storage and see the leased
+ * units as used.
+ *
+ * @since 2.1.2
+ */
+public class LeasingLimitUsageStorage implements LimitUsageStorage {
+
+  private static final Logger logger = LoggerFactory.getLogger(LeasingLimitUsageStorage.class);
+
+  private static final int EXHAUSTED = -1;
+  private static final int UNAVAILABLE = -2;
+  private static final long CLEANUP_INTERVAL_MILLIS = Duration.ofMinutes(1).toMillis();
+  private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(5);
+
+  private final LimitUsageStorage wrappedLimitUsageStorage;
+  private final Duration leaseDuration;
+  private final int minLeaseSize;
+  private final double maxLeaseRatio;
+
+  private final Map<LimitKey, Lease> leases = new ConcurrentHashMap<>();
+  private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+  private final AtomicLong nextCleanup = new AtomicLong();
+  private final Clock clock = Clock.systemUTC();
+  // The leases acquired by the current call, reused by each thread like the batch keys
+  private final ThreadLocal<Lease[]> acquiredLeases = ThreadLocal.withInitial(() -> new Lease[8]);
+
+  public LeasingLimitUsageStorage(LimitUsageStorage wrappedLimitUsageStorage) {
+    this(builder().withWrappedLimitUsageStorage(wrappedLimitUsageStorage));
+  }
+
+  LeasingLimitUsageStorage(Builder builder) {
+    if (builder.leaseDuration.isNegative()) {
+      throw new IllegalArgumentException("'leaseDuration' must not be negative");
+    }
+    if (builder.minLeaseSize < 1) {
+      throw new IllegalArgumentException("'minLeaseSize' must be greater than zero");
+    }
+    if (builder.maxLeaseRatio <= 0 || builder.maxLeaseRatio > 1) {
+      throw new IllegalArgumentException(
+          "'maxLeaseRatio' must be greater than zero and at most one");
+    }
+
+    this.wrappedLimitUsageStorage = builder.wrappedLimitUsageStorage;
+    this.leaseDuration = builder.leaseDuration;
+    this.minLeaseSize = builder.minLeaseSize;
+    this.maxLeaseRatio = builder.maxLeaseRatio;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGet(Collection<AddAndGetRequest> requests) {
+    return wrappedLimitUsageStorage.addAndGet(requests);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
+    return wrappedLimitUsageStorage.addAndGetWithLimit(requests);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGetIfWithinLimits(Collection<AddAndGetRequest> requests) {
+    AddAndGetBatch batch = new AddAndGetBatch(requests.size());
+    for (AddAndGetRequest request : requests) {
+      batch.add(
+          request.getResource(),
+          request.getLimitName(),
+          request.getProperty(),
+          request.isDistributed(),
+          request.getExpiration(),
+          request.getEventTimestamp().toEpochMilli(),
+          request.getCost(),
+          request.getLimit(),
+          request.getLimitType());
+    }
+
+    if (!addAndGetIfWithinLimits(batch)) {
+      return Collections.emptyMap();
+    }
+
+    Map<LimitKey, Integer> counters = new HashMap<>();
+    for (int i = 0; i < batch.size(); i++) {
+      counters.put(batch.getLimitKey(i), batch.getCounter(i));
+    }
+    return counters;
+  }
+
+  @Override
+  public boolean addAndGetIfWithinLimits(AddAndGetBatch batch) {
+    boolean withinLimits = true;
+    int acquired = 0;
+    Lease[] acquiredLeases = getAcquiredLeases(batch.size());
+    for (int i = 0; i < batch.size(); i++) {
+      Lease lease = getLease(batch.getLimitKey(i), batch.getLimit(i));
+      int cost = batch.getCost(i);
+      if (!withinLimits) {
+        // The batch is refused anyway, the other limits are not reserved.
+        batch.setCounter(i, lease.getCounter() + cost);
+        continue;
+      }
+
+      int remaining = acquire(lease, cost);
+      if (remaining == UNAVAILABLE) {
+        release(acquiredLeases, batch, acquired);
+        return false;
+      }
+      if (remaining == EXHAUSTED) {
+        withinLimits = false;
+        batch.setCounter(i, lease.getCounter() + cost);
+      } else {
+        acquiredLeases[acquired++] = lease;
+        batch.setCounter(i, lease.storageCounter - remaining);
+      }
+    }
+
+    if (!withinLimits) {
+      release(acquiredLeases, batch, acquired);
+    }
+    Arrays.fill(acquiredLeases, 0, acquired, null);
+    return true;
+  }
+
+  @Override
+  public boolean isSharingGcraKeys() {
+    return wrappedLimitUsageStorage.isSharingGcraKeys();
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters() {
+    return wrappedLimitUsageStorage.getCurrentLimitCounters();
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource) {
+    return wrappedLimitUsageStorage.getCurrentLimitCounters(resource);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource, String limitName) {
+    return wrappedLimitUsageStorage.getCurrentLimitCounters(resource, limitName);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return wrappedLimitUsageStorage.getCurrentLimitCounters(resource, limitName, property);
+  }
+
+  /**
+   * Gives the unused units of the leases back to the wrapped storage and closes it.
+   */
+  @Override
+  public void close() throws Exception {
+    executorService.shutdown();
+    executorService.awaitTermination(CLOSE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+
+    long now = clock.millis();
+    List<AddAndGetRequest> releases = new ArrayList<>();
+    for (Lease lease : leases.values()) {
+      int unused = lease.available.getAndSet(0);
+      if (unused > 0 && lease.getBucketEnd() > now) {
+        releases.add(lease.toRequest(-unused, now));
+      }
+    }
+    if (!releases.isEmpty()) {
+      wrappedLimitUsageStorage.addAndGet(releases);
+    }
+
+    wrappedLimitUsageStorage.close();
+  }
+
+  // Returns the units left in the lease once the cost is taken, or EXHAUSTED or UNAVAILABLE.
+  private int acquire(Lease lease, int cost) {
+    int remaining = lease.tryAcquire(cost);
+    while (remaining < 0) {
+      // No caller waits for the reservation of another, each one that runs out reserves a lease.
+      int reservation = reserve(lease, Math.max(1, cost - lease.available.get()));
+      if (reservation < 0) {
+        return reservation;
+      }
+      // Other callers may take the new units before we do, we reserve again for them.
+      remaining = lease.tryAcquire(cost);
+    }
+
+    if ((long) remaining * 2 < lease.leaseSize) {
+      renewAsync(lease);
+    }
+    return remaining;
+  }
+
+  private void release(Lease[] acquiredLeases, AddAndGetBatch batch, int acquired) {
+    for (int i = 0; i < acquired; i++) {
+      acquiredLeases[i].available.addAndGet(batch.getCost(i));
+      acquiredLeases[i] = null;
+    }
+  }
+
+  private Lease[] getAcquiredLeases(int size) {
+    Lease[] acquiredLeases = this.acquiredLeases.get();
+    if (acquiredLeases.length < size) {
+      acquiredLeases = new Lease[size];
+      this.acquiredLeases.set(acquiredLeases);
+    }
+    return acquiredLeases;
+  }
+
+  // Returns zero or EXHAUSTED or UNAVAILABLE. The wrapped storage is called without holding the
+  // lock of the lease, which is only taken to install the reserved units.
+  private int reserve(Lease lease, int needed) {
+    int units = Math.max(lease.leaseSize, needed);
+    while (true) {
+      Integer counter =
+          wrappedLimitUsageStorage
+              .addAndGetIfWithinLimits(
+                  Collections.singletonList(lease.toRequest(units, clock.millis())))
+              .get(lease.limitKey);
+      if (counter == null) {
+        return UNAVAILABLE;
+      }
+      synchronized (lease) {
+        if (counter <= lease.limit) {
+          lease.grant(units, counter, clock.millis());
+          lease.leaseSize = getLeaseSize(lease.rate, lease.limit);
+          return 0;
+        }
+        lease.storageCounter = Math.max(lease.storageCounter, counter - units);
+      }
+
+      // The limit is almost reached, what is left is enough for this call.
+      int left = lease.limit - (counter - units);
+      if (left < needed || left >= units) {
+        lease.exhausted = true;
+        return EXHAUSTED;
+      }
+      units = left;
+    }
+  }
+
+  private void renewAsync(Lease lease) {
+    if (lease.exhausted || !lease.renewing.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      executorService.execute(
+          () -> {
+            try {
+              if ((long) lease.available.get() * 2 < lease.leaseSize
+                  && lease.getBucketEnd() > clock.millis()) {
+                reserve(lease, 1);
+              }
+            } catch (RuntimeException e) {
+              logger.warn("Failed to renew the lease of {}.", lease.limitKey, e);
+            } finally {
+              lease.renewing.set(false);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      lease.renewing.set(false);
+    }
+  }
+
+  // The batch keys are reused by their thread, so a key is only copied when it is first leased.
+  private Lease getLease(LimitKey limitKey, int limit) {
+    Lease lease = leases.get(limitKey);
+    if (lease == null) {
+      lease = leases.computeIfAbsent(copyOf(limitKey), key -> createLease(key, limit));
+      removeExpiredLeases();
+    }
+    if (lease.limit != limit) {
+      lease.limit = limit;
+    }
+    return lease;
+  }
+
+  private Lease createLease(LimitKey limitKey, int limit) {
+    Lease lease = new Lease(limitKey, limit);
+
+    // The lease of the previous bucket tells how fast this limit is used.
+    LimitKey previousKey = copyOf(limitKey);
+    previousKey.setBucket(limitKey.getBucket().minus(limitKey.getExpiration()));
+    Lease previous = leases.get(previousKey);
+    if (previous != null) {
+      lease.rate = previous.rate;
+    }
+    lease.leaseSize = getLeaseSize(lease.rate, limit);
+
+    return lease;
+  }
+
+  private void removeExpiredLeases() {
+    long now = clock.millis();
+    long cleanup = nextCleanup.get();
+    if (now >= cleanup && nextCleanup.compareAndSet(cleanup, now + CLEANUP_INTERVAL_MILLIS)) {
+      // The leases of the previous bucket are kept to size the leases of the current one.
+      leases
+          .values()
+          .removeIf(
+              lease -> lease.getBucketEnd() + lease.limitKey.getExpiration().toMillis() < now);
+    }
+  }
+
+  private int getLeaseSize(double rate, int limit) {
+    int maxLeaseSize = Math.max(minLeaseSize, (int) (limit * maxLeaseRatio));
+    double leaseSize = Math.ceil(rate * leaseDuration.toNanos() / TimeUnit.SECONDS.toNanos(1));
+    return (int) Math.max(minLeaseSize, Math.min(leaseSize, maxLeaseSize));
+  }
+
+  private static LimitKey copyOf(LimitKey limitKey) {
+    LimitKey copy =
+        new LimitKey(
+            limitKey.getResource(),
+            limitKey.getLimitName(),
+            limitKey.getProperty(),
+            limitKey.isDistributed(),
+            limitKey.getBucket(),
+            limitKey.getExpiration());
+    copy.setType(limitKey.getType());
+    return copy;
+  }
+
+  private static class Lease {
+    private final LimitKey limitKey;
+    private final AtomicInteger available = new AtomicInteger();
+    private final AtomicBoolean renewing = new AtomicBoolean(false);
+    private volatile int limit;
+    private volatile int leaseSize;
+    private volatile boolean exhausted;
+    // The counter of the wrapped storage, including the leases of every instance.
+    private volatile int storageCounter;
+
+    // Units per second used locally, updated when a lease is granted.
+    private volatile double rate;
+    private long grantedNanos;
+    private int availableWhenGranted;
+    private volatile long grantedMillis;
+
+    private Lease(LimitKey limitKey, int limit) {
+      this.limitKey = limitKey;
+      this.limit = limit;
+    }
+
+    private int tryAcquire(int cost) {
+      int current;
+      do {
+        current = available.get();
+        if (current < cost) {
+          return EXHAUSTED;
+        }
+      } while (!available.compareAndSet(current, current - cost));
+      return current - cost;
+    }
+
+    private void grant(int units, int counter, long nowMillis) {
+      long now = System.nanoTime();
+      if (grantedNanos != 0 && now > grantedNanos) {
+        int used = Math.max(0, availableWhenGranted - available.get());
+        double observedRate = used * (double) TimeUnit.SECONDS.toNanos(1) / (now - grantedNanos);
+        rate = rate == 0 ? observedRate : (rate + observedRate) / 2;
+      }
+
+      // Reservations made concurrently may be granted out of order
+      storageCounter = Math.max(storageCounter, counter);
+      availableWhenGranted = available.addAndGet(units);
+      grantedNanos = now;
+      grantedMillis = nowMillis;
+      exhausted = false;
+    }
+
+    private int getCounter() {
+      return storageCounter - available.get();
+    }
+
+    // A GCRA key has no bucket, its units are paid back within one expiration of their lease.
+    private long getBucketEnd() {
+      if (limitKey.getType() == LimitType.GCRA) {
+        return grantedMillis + limitKey.getExpiration().toMillis();
+      }
+      return limitKey.getBucket().toEpochMilli() + limitKey.getExpiration().toMillis();
+    }
+
+    private AddAndGetRequest toRequest(int cost, long now) {
+      // Sliding windows weigh the previous bucket with the time of the request
+      long bucketStart = limitKey.getBucket().toEpochMilli();
+      long timestamp =
+          limitKey.getType() == LimitType.GCRA
+              ? now
+              : Math.max(bucketStart, Math.min(now, getBucketEnd() - 1));
+      return new AddAndGetRequest.Builder()
+          .withResource(limitKey.getResource())
+          .withLimitName(limitKey.getLimitName())
+          .withProperty(limitKey.getProperty())
+          .withDistributed(limitKey.isDistributed())
+          .withExpiration(limitKey.getExpiration())
+          .withEventTimestamp(Instant.ofEpochMilli(timestamp))
+          .withCost(cost)
+          .withLimit(limit)
+          .withLimitType(limitKey.getType())
+          .build();
+    }
+  }
+
+  public static final Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    LimitUsageStorage wrappedLimitUsageStorage;
+    Duration leaseDuration;
+    int minLeaseSize;
+    double maxLeaseRatio;
+
+    private Builder() {
+      this.leaseDuration = Duration.ofSeconds(1);
+      this.minLeaseSize = 1;
+      this.maxLeaseRatio = 0.1;
+    }
+
+    public void setWrappedLimitUsageStorage(LimitUsageStorage wrappedLimitUsageStorage) {
+      this.wrappedLimitUsageStorage = wrappedLimitUsageStorage;
+    }
+
+    public Builder withWrappedLimitUsageStorage(LimitUsageStorage wrappedLimitUsageStorage) {
+      setWrappedLimitUsageStorage(wrappedLimitUsageStorage);
+      return this;
+    }
+
+    /**
+     * @param leaseDuration How long a lease should last at the rate the limit is used locally.
+     *                      One second by default.
+     */
+    public void setLeaseDuration(Duration leaseDuration) {
+      this.leaseDuration = leaseDuration;
+    }
+
+    public Builder withLeaseDuration(Duration leaseDuration) {
+      setLeaseDuration(leaseDuration);
+      return this;
+    }
+
+    /**
+     * @param minLeaseSize The smallest number of units leased at once. One by default.
+     */
+    public void setMinLeaseSize(int minLeaseSize) {
+      this.minLeaseSize = minLeaseSize;
+    }
+
+    public Builder withMinLeaseSize(int minLeaseSize) {
+      setMinLeaseSize(minLeaseSize);
+      return this;
+    }
+
+    /**
+     * @param maxLeaseRatio The largest part of a limit leased at once. A tenth by default.
+     */
+    public void setMaxLeaseRatio(double maxLeaseRatio) {
+      this.maxLeaseRatio = maxLeaseRatio;
+    }
+
+    public Builder withMaxLeaseRatio(double maxLeaseRatio) {
+      setMaxLeaseRatio(maxLeaseRatio);
+      return this;
+    }
+
+    public LeasingLimitUsageStorage build() {
+      return new LeasingLimitUsageStorage(this);
+    }
+  }
+}
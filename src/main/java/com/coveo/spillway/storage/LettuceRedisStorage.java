@@ -0,0 +1,347 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+import io.lettuce.core.KeyScanCursor;
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanCursor;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.codec.ByteArrayCodec;
+
+/**
+ * Implementation of {@link LimitUsageStorage} using a Redis storage through the non-blocking
+ * Lettuce client.
+ * <p>
+ * The threads share a few connections instead of borrowing one from a pool, and Lettuce
+ * pipelines the commands sent on a connection by concurrent threads. The async methods return
+ * without waiting for Redis, the other methods wait for their future.
+ * <p>
+ * The keys and the scripts are the same as the {@link RedisStorage}, both storages can share a
+ * Redis server and be swapped for one another. Lettuce is an optional dependency of Spillway,
+ * it must be added to the project using this storage.
+ *
+ * @since 2.1.2
+ */
+public class LettuceRedisStorage implements LimitUsageStorage {
+  private static final byte[][] NO_KEYS = new byte[0][];
+
+  private final RedisClient redisClient;
+  private final boolean ownsRedisClient;
+  private final List<StatefulRedisConnection<byte[], byte[]>> connections;
+  private final AtomicInteger nextConnection = new AtomicInteger();
+  private final String keyPrefix;
+  private final int scanCount;
+  private final RedisKeyEncoder keyEncoder;
+
+  LettuceRedisStorage(Builder builder) {
+    if (builder.redisClient == null && builder.redisUri == null) {
+      throw new IllegalArgumentException("'redisClient' or 'redisUri' must be set");
+    }
+    if (builder.connectionCount < 1) {
+      throw new IllegalArgumentException("'connectionCount' must be greater than zero");
+    }
+
+    this.ownsRedisClient = builder.redisClient == null;
+    this.redisClient = ownsRedisClient ? RedisClient.create(builder.redisUri) : builder.redisClient;
+    this.keyPrefix = builder.keyPrefix;
+    this.scanCount = builder.scanCount;
+    this.keyEncoder = new RedisKeyEncoder(builder.keyPrefix);
+
+    connections = new ArrayList<>(builder.connectionCount);
+    try {
+      for (int i = 0; i < builder.connectionCount; i++) {
+        connections.add(redisClient.connect(ByteArrayCodec.INSTANCE));
+      }
+    } catch (RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGet(Collection<AddAndGetRequest> requests) {
+    return await(addAndGetAsync(requests));
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
+    return await(addAndGetWithLimitAsync(requests));
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGetIfWithinLimits(Collection<AddAndGetRequest> requests) {
+    return await(addAndGetIfWithinLimitsAsync(requests));
+  }
+
+  @Override
+  public CompletableFuture<Map<LimitKey, Integer>> addAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    return evalCounters(RedisStorage.COUNTERS_SCRIPT, requests);
+  }
+
+  /**
+   * Behaves like {@link #addAndGetWithLimit(Collection)}, but returns without waiting for Redis.
+   *
+   * @param requests The requests wrapping the information needed to perform the increments
+   * @return A future of the Map of the limits and their current count
+   */
+  public CompletableFuture<Map<LimitKey, Integer>> addAndGetWithLimitAsync(
+      Collection<AddAndGetRequest> requests) {
+    return evalCounters(RedisStorage.COUNTERS_WITH_LIMIT_SCRIPT, requests);
+  }
+
+  @Override
+  public CompletableFuture<Map<LimitKey, Integer>> addAndGetIfWithinLimitsAsync(
+      Collection<AddAndGetRequest> requests) {
+    return evalCounters(RedisStorage.COUNTERS_WITHIN_LIMITS_SCRIPT, requests);
+  }
+
+  // Like the RedisScript, only the digest is sent unless Redis does not know the script.
+  private CompletableFuture<Map<LimitKey, Integer>> evalCounters(
+      RedisScript script, Collection<AddAndGetRequest> requests) {
+    if (requests.isEmpty()) {
+      return CompletableFuture.completedFuture(Collections.emptyMap());
+    }
+
+    RedisRequests redisRequests = new RedisRequests(keyEncoder, requests);
+    byte[][] keys = redisRequests.getKeys().toArray(NO_KEYS);
+    byte[][] arguments = redisRequests.getArguments().toArray(NO_KEYS);
+    RedisAsyncCommands<byte[], byte[]> commands = getConnection().async();
+
+    CompletableFuture<List<?>> counters = new CompletableFuture<>();
+    commands
+        .<List<?>>evalsha(script.getDigest(), ScriptOutputType.MULTI, keys, arguments)
+        .whenComplete(
+            (result, throwable) -> {
+              if (throwable == null) {
+                counters.complete(result);
+              } else if (unwrap(throwable) instanceof RedisNoScriptException) {
+                commands
+                    .<List<?>>eval(script.getSource(), ScriptOutputType.MULTI, keys, arguments)
+                    .whenComplete(
+                        (evalResult, evalThrowable) -> {
+                          if (evalThrowable == null) {
+                            counters.complete(evalResult);
+                          } else {
+                            counters.completeExceptionally(evalThrowable);
+                          }
+                        });
+              } else {
+                counters.completeExceptionally(throwable);
+              }
+            });
+    return counters.thenApply(redisRequests::toCounters);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters() {
+    return getLimits(RedisStorage.buildKeyPattern(keyPrefix, RedisStorage.WILD_CARD_OPERATOR));
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource) {
+    return getLimits(
+        RedisStorage.buildKeyPattern(keyPrefix, resource, RedisStorage.WILD_CARD_OPERATOR));
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource, String limitName) {
+    return getLimits(
+        RedisStorage.buildKeyPattern(
+            keyPrefix, resource, limitName, RedisStorage.WILD_CARD_OPERATOR));
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return getLimits(
+        RedisStorage.buildKeyPattern(
+            keyPrefix, resource, limitName, property, RedisStorage.WILD_CARD_OPERATOR));
+  }
+
+  private Map<LimitKey, Integer> getLimits(String keyPattern) {
+    Map<LimitKey, Integer> counters = new HashMap<>();
+    forEachLimit(keyPattern, counters::put);
+    return Collections.unmodifiableMap(counters);
+  }
+
+  // Like the RedisStorage, the keys are read with SCAN and their values with a MGET per page.
+  private void forEachLimit(String keyPattern, BiConsumer<LimitKey, Integer> action) {
+    RedisCommands<byte[], byte[]> commands = getConnection().sync();
+    ScanArgs scanArgs = ScanArgs.Builder.matches(keyPattern).limit(scanCount);
+
+    KeyScanCursor<byte[]> page = commands.scan(ScanCursor.INITIAL, scanArgs);
+    while (true) {
+      List<byte[]> keys = page.getKeys();
+      if (!keys.isEmpty()) {
+        for (KeyValue<byte[], byte[]> value : commands.mget(keys.toArray(NO_KEYS))) {
+          RedisStorage.acceptCounter(
+              decode(value.getKey()), value.hasValue() ? decode(value.getValue()) : null, action);
+        }
+      }
+      if (page.isFinished()) {
+        return;
+      }
+      page = commands.scan(page, scanArgs);
+    }
+  }
+
+  private StatefulRedisConnection<byte[], byte[]> getConnection() {
+    return connections.get(
+        Math.floorMod(nextConnection.getAndIncrement(), connections.size()));
+  }
+
+  @Override
+  public void close() {
+    for (StatefulRedisConnection<byte[], byte[]> connection : connections) {
+      connection.close();
+    }
+    if (ownsRedisClient) {
+      redisClient.shutdown();
+    }
+  }
+
+  private static String decode(byte[] value) {
+    return new String(value, StandardCharsets.UTF_8);
+  }
+
+  private static Throwable unwrap(Throwable throwable) {
+    return throwable instanceof CompletionException && throwable.getCause() != null
+        ? throwable.getCause()
+        : throwable;
+  }
+
+  private static <T> T await(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  public static final Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    RedisClient redisClient;
+    String redisUri;
+    int connectionCount;
+    String keyPrefix;
+    int scanCount;
+
+    private Builder() {
+      this.connectionCount = 1;
+      this.keyPrefix = RedisStorage.DEFAULT_PREFIX;
+      this.scanCount = RedisStorage.DEFAULT_SCAN_COUNT;
+    }
+
+    /**
+     * @param redisClient The client used to connect to Redis. It is not shut down with the
+     *                    storage.
+     */
+    public void setRedisClient(RedisClient redisClient) {
+      this.redisClient = redisClient;
+    }
+
+    public Builder withRedisClient(RedisClient redisClient) {
+      setRedisClient(redisClient);
+      return this;
+    }
+
+    /**
+     * @param redisUri The URI of the Redis server, such as {@code redis://localhost:6379}, used
+     *                 when no client is set
+     */
+    public void setRedisUri(String redisUri) {
+      this.redisUri = redisUri;
+    }
+
+    public Builder withRedisUri(String redisUri) {
+      setRedisUri(redisUri);
+      return this;
+    }
+
+    /**
+     * @param connectionCount The number of connections shared by the threads. One by default.
+     */
+    public void setConnectionCount(int connectionCount) {
+      this.connectionCount = connectionCount;
+    }
+
+    public Builder withConnectionCount(int connectionCount) {
+      setConnectionCount(connectionCount);
+      return this;
+    }
+
+    public void setKeyPrefix(String keyPrefix) {
+      this.keyPrefix = keyPrefix;
+    }
+
+    public Builder withKeyPrefix(String keyPrefix) {
+      setKeyPrefix(keyPrefix);
+      return this;
+    }
+
+    /**
+     * @param scanCount The number of keys Redis should look at in each SCAN iteration
+     *                  when reading the current limit counters
+     */
+    public void setScanCount(int scanCount) {
+      this.scanCount = scanCount;
+    }
+
+    public Builder withScanCount(int scanCount) {
+      setScanCount(scanCount);
+      return this;
+    }
+
+    public LettuceRedisStorage build() {
+      return new LettuceRedisStorage(this);
+    }
+  }
+}
@@ -25,13 +25,19 @@ package com.coveo.spillway.storage;
 import org.apache.commons.lang3.tuple.Pair;
 
 import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
 import com.coveo.spillway.storage.utils.AddAndGetRequest;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Interface that defines a distributed storage that could be used with Spillway.
@@ -124,6 +130,118 @@ public interface LimitUsageStorage {
    */
   Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests);
 
+  /**
+   * Processes all {@link AddAndGetRequest} as a single operation: the costs are added only if
+   * none of the limits would exceed its request max limit, otherwise nothing is added.
+   * <p>
+   * The returned counts always include the cost of their request, whether it was added or not.
+   * The requests were therefore applied if and only if every count is lower than or equal to its limit.
+   * <p>
+   * The default implementation is not atomic. It reads the counters and then adds the costs, which
+   * takes two round trips to the storage. Implementations should override it when possible.
+   *
+   * @param requests An collection of {@link AddAndGetRequest} that wrap all necessary information to perform the increments
+   * @return A Map of the limits and their current count including the cost of the request
+   */
+  default Map<LimitKey, Integer> addAndGetIfWithinLimits(Collection<AddAndGetRequest> requests) {
+    List<AddAndGetRequest> readRequests = new ArrayList<>();
+    for (AddAndGetRequest request : requests) {
+      readRequests.add(new AddAndGetRequest.Builder(request).withCost(0).build());
+    }
+
+    Map<LimitKey, Integer> counters = new HashMap<>(addAndGet(readRequests));
+    boolean withinLimits = true;
+    for (AddAndGetRequest request : requests) {
+      int counter = counters.merge(LimitKey.fromRequest(request), request.getCost(), Integer::sum);
+      withinLimits &= counter <= request.getLimit();
+    }
+
+    return withinLimits ? addAndGet(requests) : counters;
+  }
+
+  /**
+   * Behaves like {@link #addAndGetIfWithinLimits(Collection)}, but writes the counters in the
+   * batch at the position of their request instead of returning a Map.
+   * <p>
+   * The default implementation delegates to {@link #addAndGetIfWithinLimits(Collection)}.
+   * Local storages should override it so a call does not allocate.
+   *
+   * @param batch An {@link AddAndGetBatch} holding the requests, receives the counters including the cost of their request
+   * @return True if the storage returned a counter for every request of the batch
+   */
+  default boolean addAndGetIfWithinLimits(AddAndGetBatch batch) {
+    Map<LimitKey, Integer> counters = addAndGetIfWithinLimits(batch.toRequests());
+    if (counters.size() != batch.size()) {
+      return false;
+    }
+
+    for (int i = 0; i < batch.size(); i++) {
+      Integer counter = counters.get(batch.getLimitKey(i));
+      if (counter == null) {
+        return false;
+      }
+      batch.setCounter(i, counter);
+    }
+    return true;
+  }
+
+  /**
+   * Behaves like {@link #addAndGet(Collection)}, but returns without waiting for the storage.
+   * <p>
+   * The default implementation calls {@link #addAndGet(Collection)} and returns a completed
+   * future, which suits local storages. Storages using the network should override it with a
+   * non-blocking client.
+   *
+   * @param requests An collection of {@link AddAndGetRequest} that wrap all necessary information to perform the increments
+   * @return A future of the Map of the limits and their current count
+   *
+   * @since 2.1.2
+   */
+  default CompletableFuture<Map<LimitKey, Integer>> addAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    CompletableFuture<Map<LimitKey, Integer>> future = new CompletableFuture<>();
+    try {
+      future.complete(addAndGet(requests));
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Behaves like {@link #addAndGetIfWithinLimits(Collection)}, but returns without waiting for
+   * the storage.
+   * <p>
+   * The default implementation calls {@link #addAndGetIfWithinLimits(Collection)} and returns a
+   * completed future, which suits local storages. Storages using the network should override it
+   * with a non-blocking client.
+   *
+   * @param requests An collection of {@link AddAndGetRequest} that wrap all necessary information to perform the increments
+   * @return A future of the Map of the limits and their current count including the cost of the request
+   *
+   * @since 2.1.2
+   */
+  default CompletableFuture<Map<LimitKey, Integer>> addAndGetIfWithinLimitsAsync(
+      Collection<AddAndGetRequest> requests) {
+    CompletableFuture<Map<LimitKey, Integer>> future = new CompletableFuture<>();
+    try {
+      future.complete(addAndGetIfWithinLimits(requests));
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Tells if the {@link LimitType#GCRA} keys of the distributed limits are shared with the other
+   * instances. The storages synchronizing a local cache keep them in the cache of each instance.
+   *
+   * @return If the distributed GCRA keys are shared between the instances
+   */
+  default boolean isSharingGcraKeys() {
+    return true;
+  }
+
   /**
    * Returns all enforced limits with their current count
    *
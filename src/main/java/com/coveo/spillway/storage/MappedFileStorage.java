@@ -0,0 +1,893 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+/**
+ * Implementation of {@link LimitUsageStorage} using a memory-mapped file, shared by every
+ * process of a host that opens the same file.
+ * <p>
+ * The file starts with a header holding its format version, its layout and the seed of the
+ * hashes, followed by stripes of fixed size. Each stripe is an open addressing table of
+ * (hash, expiration, value, key offset) slots guarded by a lock on its own part of the file, so
+ * the processes update the counters in place. The keys themselves are written once in a region
+ * at the end of their stripe, to list the current limit counters.
+ * <p>
+ * The file is never resized. Its capacity is set when it is created, and the expired keys are
+ * swept from a stripe when it is next used. The counters survive the restarts of the processes
+ * since they stay in the file.
+ * <p>
+ * Java 8 has no atomic operations on mapped buffers, and a stripe needs a lock anyway to insert
+ * and sweep its keys. Each update takes the lock of its stripe in the process and then a file
+ * lock on the stripe header, a system call that makes an update take more than a microsecond
+ * instead of the hundreds of nanoseconds of the {@link OffHeapStorage}. The file locks are
+ * released by the operating system when a process dies, unlike a lock kept in the file. They are
+ * held by the whole JVM, so each process must open a file with a single storage shared by its
+ * threads. The calls checking several limits lock all their stripes in order, so no cost is ever
+ * written to the file unless every limit fits.
+ * <p>
+ * A file is created with its magic number written last. A file without it, left by a process
+ * that died while creating it, is created again by the next process opening it.
+ *
+ * @since 2.1.2
+ */
+public class MappedFileStorage implements LimitUsageStorage {
+  /*package*/ static final int MAGIC = 0x53504c57;
+  /*package*/ static final int VERSION = 2;
+
+  // The header of the file
+  private static final int HEADER_SIZE = 64;
+  private static final int HEADER_MAGIC = 0;
+  private static final int HEADER_VERSION = 4;
+  private static final int HEADER_STRIPE_COUNT = 8;
+  private static final int HEADER_SLOT_COUNT = 12;
+  private static final int HEADER_SEED = 16;
+  private static final int HEADER_KEYS_CAPACITY = 24;
+
+  // The header of each stripe, a cache line so the stripes don't share one
+  private static final int STRIPE_HEADER_SIZE = 64;
+  private static final int STRIPE_NEXT_EXPIRATION = 0;
+  private static final int STRIPE_SIZE = 8;
+  private static final int STRIPE_KEYS_SIZE = 12;
+
+  private static final int SLOT_SIZE = 32;
+  private static final int EXPIRATION = 8;
+  private static final int VALUE = 16;
+  private static final int KEY = 24;
+
+  private final Path path;
+  private final Clock clock;
+  private final MappedByteBuffer buffer;
+  private final Stripe[] stripes;
+  private final int slotCount;
+  private final int keysCapacity;
+  private final long seed;
+  private final ThreadLocal<StripeSet> lockedStripes = ThreadLocal.withInitial(StripeSet::new);
+  private volatile FileChannel channel;
+  private volatile boolean closed;
+
+  MappedFileStorage(Builder builder) {
+    if (builder.path == null) {
+      throw new IllegalArgumentException("'path' must be set");
+    }
+    if (builder.capacity < 1) {
+      throw new IllegalArgumentException("'capacity' must be greater than zero");
+    }
+    if (builder.stripeCount < 1) {
+      throw new IllegalArgumentException("'stripeCount' must be greater than zero");
+    }
+    if (builder.keySize < 1) {
+      throw new IllegalArgumentException("'keySize' must be greater than zero");
+    }
+
+    this.path = builder.path;
+    this.clock = builder.clock;
+    try {
+      channel = open(path);
+      FileLock lock = channel.lock(0, HEADER_SIZE, false);
+      try {
+        if (readMagic() == 0) {
+          // The file is new, or its creation was not completed
+          channel.truncate(0);
+          buffer = create(builder);
+        } else {
+          buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+          if (buffer.getInt(HEADER_MAGIC) != MAGIC) {
+            throw new IllegalArgumentException(path + " is not a Spillway storage file");
+          }
+          if (buffer.getInt(HEADER_VERSION) != VERSION) {
+            throw new IllegalArgumentException(
+                path + " has version " + buffer.getInt(HEADER_VERSION) + " instead of " + VERSION);
+          }
+        }
+      } finally {
+        lock.release();
+      }
+    } catch (IOException | RuntimeException e) {
+      closeQuietly();
+      throw e instanceof IOException
+          ? new UncheckedIOException((IOException) e)
+          : (RuntimeException) e;
+    }
+
+    // An existing file keeps the layout it was created with
+    slotCount = buffer.getInt(HEADER_SLOT_COUNT);
+    keysCapacity = buffer.getInt(HEADER_KEYS_CAPACITY);
+    seed = buffer.getLong(HEADER_SEED);
+    stripes = new Stripe[buffer.getInt(HEADER_STRIPE_COUNT)];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe(HEADER_SIZE + i * getStripeSize(slotCount, keysCapacity));
+    }
+  }
+
+  private MappedByteBuffer create(Builder builder) throws IOException {
+    int stripeCount = roundToPowerOfTwo(builder.stripeCount);
+    // The stripes are kept at most three quarters full so the probes stay short
+    int slotCount = roundToPowerOfTwo((int) Math.ceil(builder.capacity * 4.0 / 3 / stripeCount));
+    long keysCapacity = (long) slotCount * builder.keySize;
+    long stripeSize = STRIPE_HEADER_SIZE + (long) slotCount * SLOT_SIZE + keysCapacity;
+    long size = HEADER_SIZE + stripeCount * stripeSize;
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+          "'capacity' and 'keySize' must fit in a file smaller than 2 GB");
+    }
+
+    MappedByteBuffer created = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    for (int i = 0; i < stripeCount; i++) {
+      created.putLong(
+          HEADER_SIZE + i * getStripeSize(slotCount, (int) keysCapacity) + STRIPE_NEXT_EXPIRATION,
+          Long.MAX_VALUE);
+    }
+    created.putInt(HEADER_STRIPE_COUNT, stripeCount);
+    created.putInt(HEADER_SLOT_COUNT, slotCount);
+    created.putInt(HEADER_KEYS_CAPACITY, (int) keysCapacity);
+    created.putLong(HEADER_SEED, ThreadLocalRandom.current().nextLong());
+    created.putInt(HEADER_VERSION, VERSION);
+    // The magic number is written last, the file is only used once it is complete
+    created.putInt(HEADER_MAGIC, MAGIC);
+    created.force();
+    return created;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGet(Collection<AddAndGetRequest> requests) {
+    Map<LimitKey, Integer> updatedEntries = new HashMap<>();
+    for (AddAndGetRequest request : requests) {
+      updatedEntries.put(
+          LimitKey.fromRequest(request), add(request, request.getCost(), Long.MAX_VALUE));
+    }
+    return updatedEntries;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
+    Map<LimitKey, Integer> updatedEntries = new HashMap<>();
+    for (AddAndGetRequest request : requests) {
+      updatedEntries.put(
+          LimitKey.fromRequest(request),
+          add(request, request.getCost(), (long) request.getLimit() + request.getCost()));
+    }
+    return updatedEntries;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGetIfWithinLimits(Collection<AddAndGetRequest> requests) {
+    Map<LimitKey, Integer> updatedEntries = new HashMap<>();
+    boolean withinLimits = true;
+
+    StripeSet stripes = lockedStripes.get();
+    stripes.clear();
+    for (AddAndGetRequest request : requests) {
+      addStripes(
+          stripes,
+          request.getResource(),
+          request.getLimitName(),
+          request.getProperty(),
+          request.getExpiration(),
+          request.getEventTimestamp().toEpochMilli(),
+          request.getLimitType());
+    }
+
+    // The counters are only read while the locks are held, the costs are added if they all fit
+    lock(stripes);
+    try {
+      for (AddAndGetRequest request : requests) {
+        // No counter is below the minimum, the cost is never added
+        int value = add(request, request.getCost(), Long.MIN_VALUE) + request.getCost();
+        updatedEntries.put(LimitKey.fromRequest(request), value);
+        withinLimits &= value <= request.getLimit();
+      }
+
+      if (withinLimits) {
+        for (AddAndGetRequest request : requests) {
+          add(request, request.getCost(), Long.MAX_VALUE);
+        }
+      }
+    } finally {
+      unlock(stripes);
+    }
+    return updatedEntries;
+  }
+
+  @Override
+  public boolean addAndGetIfWithinLimits(AddAndGetBatch batch) {
+    boolean withinLimits = true;
+
+    StripeSet stripes = lockedStripes.get();
+    stripes.clear();
+    for (int i = 0; i < batch.size(); i++) {
+      LimitKey limitKey = batch.getLimitKey(i);
+      addStripes(
+          stripes,
+          limitKey.getResource(),
+          limitKey.getLimitName(),
+          limitKey.getProperty(),
+          limitKey.getExpiration(),
+          batch.getEventTimestamp(i),
+          limitKey.getType());
+    }
+
+    lock(stripes);
+    try {
+      for (int i = 0; i < batch.size(); i++) {
+        int value = add(batch, i, batch.getCost(i), Long.MIN_VALUE) + batch.getCost(i);
+        batch.setCounter(i, value);
+        withinLimits &= value <= batch.getLimit(i);
+      }
+
+      if (withinLimits) {
+        for (int i = 0; i < batch.size(); i++) {
+          add(batch, i, batch.getCost(i), Long.MAX_VALUE);
+        }
+      }
+    } finally {
+      unlock(stripes);
+    }
+    return true;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters() {
+    return getLimits(null, null, null);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource) {
+    return getLimits(resource, null, null);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource, String limitName) {
+    return getLimits(resource, limitName, null);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return getLimits(resource, limitName, property);
+  }
+
+  /**
+   * Writes the counters to the file and closes it. The file is unmapped once the storage is
+   * garbage collected.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    buffer.force();
+    channel.close();
+  }
+
+  // A null filter matches every key
+  private Map<LimitKey, Integer> getLimits(String resource, String limitName, String property) {
+    long now = clock.millis();
+    Map<LimitKey, Integer> counters = new HashMap<>();
+    for (Stripe stripe : stripes) {
+      lock(stripe);
+      try {
+        stripe.removeExpiredEntries(now);
+        stripe.collectCounters(resource, limitName, property, counters);
+      } finally {
+        unlock(stripe);
+      }
+    }
+    return Collections.unmodifiableMap(counters);
+  }
+
+  private int add(AddAndGetRequest request, int cost, long maxCounter) {
+    return add(
+        request.getResource(),
+        request.getLimitName(),
+        request.getProperty(),
+        request.isDistributed(),
+        request.getExpiration(),
+        request.getEventTimestamp().toEpochMilli(),
+        cost,
+        request.getLimit(),
+        request.getLimitType(),
+        maxCounter);
+  }
+
+  private int add(AddAndGetBatch batch, int index, int cost, long maxCounter) {
+    LimitKey limitKey = batch.getLimitKey(index);
+    return add(
+        limitKey.getResource(),
+        limitKey.getLimitName(),
+        limitKey.getProperty(),
+        limitKey.isDistributed(),
+        limitKey.getExpiration(),
+        batch.getEventTimestamp(index),
+        cost,
+        batch.getLimit(index),
+        limitKey.getType(),
+        maxCounter);
+  }
+
+  // Adds the cost unless the counter including it goes above the maximum, and returns the counter
+  // including the cost if it was added or without it otherwise.
+  private int add(
+      String resource,
+      String limitName,
+      String property,
+      boolean distributed,
+      Duration expiration,
+      long eventTimestamp,
+      int cost,
+      int limit,
+      LimitType type,
+      long maxCounter) {
+    long expirationMillis = expiration.toMillis();
+    long identity = KeyHashes.hash(seed, resource, limitName, property);
+    long bucket = LimitUtils.calculateBucket(eventTimestamp, expirationMillis, type);
+    long keyHash = KeyHashes.hash(identity, bucket);
+    long now = clock.millis();
+
+    long previous = 0;
+    long end = bucket + expirationMillis;
+    if (type == LimitType.GCRA) {
+      end = now + expirationMillis;
+    } else if (type == LimitType.SLIDING_WINDOW) {
+      previous =
+          LimitUtils.weighPreviousCounter(
+              (int) getValue(KeyHashes.hash(identity, bucket - expirationMillis)),
+              LimitUtils.calculatePreviousBucketWeight(eventTimestamp, expirationMillis));
+      // Sliding windows still read a bucket during the bucket after it
+      end += expirationMillis;
+    }
+
+    Stripe stripe = getStripe(keyHash);
+    lock(stripe);
+    try {
+      stripe.removeExpiredEntries(now);
+      int slot =
+          stripe.getOrInsert(
+              keyHash,
+              end,
+              now,
+              resource,
+              limitName,
+              property,
+              distributed,
+              bucket,
+              expirationMillis,
+              type);
+      long value = buffer.getLong(slot + VALUE);
+
+      if (type == LimitType.GCRA) {
+        long nowMicros = eventTimestamp * 1000;
+        long interval = LimitUtils.calculateEmissionInterval(expiration, limit);
+        long arrival = Math.max(value, nowMicros) + cost * interval;
+        int counter = LimitUtils.calculateArrivalCounter(arrival, nowMicros, interval);
+        if (counter > maxCounter) {
+          return counter - cost;
+        }
+        buffer.putLong(slot + VALUE, arrival);
+        // The key is dropped once its arrival time has passed
+        stripe.extendExpiration(slot, arrival / 1000 + 1);
+        return counter;
+      }
+
+      long counter = value + cost + previous;
+      if (counter > maxCounter) {
+        return (int) (counter - cost);
+      }
+      buffer.putLong(slot + VALUE, value + cost);
+      return (int) counter;
+    } finally {
+      unlock(stripe);
+    }
+  }
+
+  private long getValue(long keyHash) {
+    Stripe stripe = getStripe(keyHash);
+    lock(stripe);
+    try {
+      int slot = stripe.find(keyHash);
+      return buffer.getLong(slot) == KeyHashes.EMPTY ? 0 : buffer.getLong(slot + VALUE);
+    } finally {
+      unlock(stripe);
+    }
+  }
+
+  // The stripe of the key of a request, and the one of its previous bucket for a sliding window
+  private void addStripes(
+      StripeSet lockedStripes,
+      String resource,
+      String limitName,
+      String property,
+      Duration expiration,
+      long eventTimestamp,
+      LimitType type) {
+    long expirationMillis = expiration.toMillis();
+    long identity = KeyHashes.hash(seed, resource, limitName, property);
+    long bucket = LimitUtils.calculateBucket(eventTimestamp, expirationMillis, type);
+    lockedStripes.add(getStripeIndex(KeyHashes.hash(identity, bucket)));
+    if (type == LimitType.SLIDING_WINDOW) {
+      lockedStripes.add(getStripeIndex(KeyHashes.hash(identity, bucket - expirationMillis)));
+    }
+  }
+
+  // The stripes are locked in order, so two processes never wait for each other
+  private void lock(StripeSet lockedStripes) {
+    int locked = 0;
+    try {
+      while (locked < lockedStripes.size()) {
+        lock(stripes[lockedStripes.get(locked)]);
+        locked++;
+      }
+    } catch (RuntimeException e) {
+      while (locked > 0) {
+        unlock(stripes[lockedStripes.get(--locked)]);
+      }
+      throw e;
+    }
+  }
+
+  private void unlock(StripeSet lockedStripes) {
+    for (int i = lockedStripes.size() - 1; i >= 0; i--) {
+      unlock(stripes[lockedStripes.get(i)]);
+    }
+  }
+
+  // The threads of the process take the stripe in turn, the first one to take it asks for the
+  // file lock. The lock is reentrant, the calls made while holding it take it again.
+  private void lock(Stripe stripe) {
+    stripe.lock.lock();
+    if (stripe.holdCount == 0) {
+      boolean locked = false;
+      try {
+        stripe.fileLock = lockFile(stripe);
+        locked = true;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } finally {
+        if (!locked) {
+          stripe.lock.unlock();
+        }
+      }
+    }
+    stripe.holdCount++;
+  }
+
+  private void unlock(Stripe stripe) {
+    try {
+      if (--stripe.holdCount == 0) {
+        FileLock fileLock = stripe.fileLock;
+        stripe.fileLock = null;
+        fileLock.release();
+      }
+    } catch (ClosedChannelException e) {
+      // The channel was closed by an interrupted thread, closing it released its locks
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  private Stripe getStripe(long keyHash) {
+    return stripes[getStripeIndex(keyHash)];
+  }
+
+  private int getStripeIndex(long keyHash) {
+    // The slots are picked with the low bits of the hash, the stripes with the high ones
+    return (int) (keyHash >>> 40) & (stripes.length - 1);
+  }
+
+  // The lock is held by the whole process. An interrupted thread closes the channel, it is opened
+  // again.
+  private FileLock lockFile(Stripe stripe) throws IOException {
+    while (true) {
+      FileChannel current = channel;
+      try {
+        return current.lock(stripe.offset, STRIPE_HEADER_SIZE, false);
+      } catch (ClosedChannelException e) {
+        if (closed) {
+          throw e;
+        }
+        boolean interrupted = Thread.interrupted();
+        try {
+          reopen(current);
+        } finally {
+          if (interrupted) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        if (interrupted) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  // Zero when the file is shorter than the magic number
+  private int readMagic() throws IOException {
+    ByteBuffer magic = ByteBuffer.allocate(4);
+    while (magic.hasRemaining()) {
+      if (channel.read(magic, HEADER_MAGIC + magic.position()) < 0) {
+        return 0;
+      }
+    }
+    return magic.getInt(0);
+  }
+
+  private synchronized void reopen(FileChannel closedChannel) throws IOException {
+    if (channel == closedChannel) {
+      channel = open(path);
+    }
+  }
+
+  private void closeQuietly() {
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+    } catch (IOException e) {
+      // The storage could not be opened, the original error is more useful
+    }
+  }
+
+  private static FileChannel open(Path path) throws IOException {
+    return FileChannel.open(
+        path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  private static int getStripeSize(int slotCount, int keysCapacity) {
+    return STRIPE_HEADER_SIZE + slotCount * SLOT_SIZE + keysCapacity;
+  }
+
+  private static int roundToPowerOfTwo(int value) {
+    int rounded = 1;
+    while (rounded < value) {
+      rounded <<= 1;
+    }
+    return rounded;
+  }
+
+  /**
+   * A stripe of the file, only used while holding its lock.
+   */
+  private final class Stripe {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int offset;
+    private final int slots;
+    private final int keys;
+    private FileLock fileLock;
+    private int holdCount;
+
+    private Stripe(int offset) {
+      this.offset = offset;
+      this.slots = offset + STRIPE_HEADER_SIZE;
+      this.keys = slots + slotCount * SLOT_SIZE;
+    }
+
+    private int getOrInsert(
+        long keyHash,
+        long expiration,
+        long now,
+        String resource,
+        String limitName,
+        String property,
+        boolean distributed,
+        long bucket,
+        long expirationMillis,
+        LimitType type) {
+      int slot = find(keyHash);
+      if (buffer.getLong(slot) == KeyHashes.EMPTY) {
+        int keyLength = KeyEncoding.getLength(resource, limitName, property);
+        if (!hasRoom(keyLength)) {
+          removeEntriesExpiredBefore(now);
+          compactKeys();
+          if (!hasRoom(keyLength)) {
+            throw new IllegalStateException(
+                "The stripe of " + path + " is full, the file needs a larger capacity");
+          }
+          slot = find(keyHash);
+        }
+
+        int key = keys + getKeysSize();
+        KeyEncoding.write(
+            buffer,
+            key,
+            resource,
+            limitName,
+            property,
+            distributed,
+            bucket,
+            expirationMillis,
+            type);
+        setKeysSize(getKeysSize() + keyLength);
+        buffer.putLong(slot, keyHash);
+        buffer.putLong(slot + EXPIRATION, expiration);
+        buffer.putLong(slot + VALUE, 0);
+        buffer.putLong(slot + KEY, key);
+        setSize(getSize() + 1);
+        if (expiration < getNextExpiration()) {
+          setNextExpiration(expiration);
+        }
+      }
+      return slot;
+    }
+
+    // One slot is always left empty so the probes end
+    private boolean hasRoom(int keyLength) {
+      return getSize() + 1 < slotCount && getKeysSize() + keyLength <= keysCapacity;
+    }
+
+    // The keys of the removed entries are dropped, the others move to the start of the region
+    private void compactKeys() {
+      byte[] compacted = new byte[getKeysSize()];
+      ByteBuffer source = buffer.duplicate();
+      int size = 0;
+      for (int index = 0; index < slotCount; index++) {
+        int slot = slots + index * SLOT_SIZE;
+        if (buffer.getLong(slot) != KeyHashes.EMPTY) {
+          int key = (int) buffer.getLong(slot + KEY);
+          int keyLength = KeyEncoding.getLength(buffer, key);
+          source.position(key);
+          source.get(compacted, size, keyLength);
+          buffer.putLong(slot + KEY, keys + size);
+          size += keyLength;
+        }
+      }
+
+      ByteBuffer target = buffer.duplicate();
+      target.position(keys);
+      target.put(compacted, 0, size);
+      setKeysSize(size);
+    }
+
+    private void collectCounters(
+        String resource, String limitName, String property, Map<LimitKey, Integer> counters) {
+      for (int index = 0; index < slotCount; index++) {
+        int slot = slots + index * SLOT_SIZE;
+        if (buffer.getLong(slot) == KeyHashes.EMPTY) {
+          continue;
+        }
+        LimitKey limitKey = KeyEncoding.read(buffer, (int) buffer.getLong(slot + KEY));
+        // The GCRA keys hold an arrival time, not a counter
+        if (limitKey.getType() != LimitType.GCRA
+            && (resource == null || resource.equals(limitKey.getResource()))
+            && (limitName == null || limitName.equals(limitKey.getLimitName()))
+            && (property == null || property.equals(limitKey.getProperty()))) {
+          counters.put(limitKey, (int) buffer.getLong(slot + VALUE));
+        }
+      }
+    }
+
+    private void extendExpiration(int slot, long expiration) {
+      if (expiration > buffer.getLong(slot + EXPIRATION)) {
+        buffer.putLong(slot + EXPIRATION, expiration);
+      }
+    }
+
+    private void removeExpiredEntries(long now) {
+      if (getNextExpiration() < now) {
+        removeEntriesExpiredBefore(now);
+      }
+    }
+
+    // Linear probing can't simply clear a slot, the following entries are shifted back instead.
+    private void removeEntriesExpiredBefore(long now) {
+      long nextExpiration = Long.MAX_VALUE;
+      int index = 0;
+      while (index < slotCount) {
+        int slot = slots + index * SLOT_SIZE;
+        if (buffer.getLong(slot) != KeyHashes.EMPTY) {
+          long expiration = buffer.getLong(slot + EXPIRATION);
+          if (expiration < now) {
+            remove(index);
+            // Another entry may have been shifted in this slot
+            continue;
+          }
+          nextExpiration = Math.min(nextExpiration, expiration);
+        }
+        index++;
+      }
+      setNextExpiration(nextExpiration);
+    }
+
+    private void remove(int index) {
+      int mask = slotCount - 1;
+      int next = index;
+      while (true) {
+        next = (next + 1) & mask;
+        long keyHash = buffer.getLong(slots + next * SLOT_SIZE);
+        if (keyHash == KeyHashes.EMPTY) {
+          break;
+        }
+        // The entry stays if its home slot is cyclically between the removed slot and itself
+        int home = (int) keyHash & mask;
+        boolean stays = index <= next ? index < home && home <= next : index < home || home <= next;
+        if (!stays) {
+          copySlot(next, index);
+          index = next;
+        }
+      }
+      buffer.putLong(slots + index * SLOT_SIZE, KeyHashes.EMPTY);
+      setSize(getSize() - 1);
+    }
+
+    private void copySlot(int from, int to) {
+      int source = slots + from * SLOT_SIZE;
+      int target = slots + to * SLOT_SIZE;
+      buffer.putLong(target, buffer.getLong(source));
+      buffer.putLong(target + EXPIRATION, buffer.getLong(source + EXPIRATION));
+      buffer.putLong(target + VALUE, buffer.getLong(source + VALUE));
+      buffer.putLong(target + KEY, buffer.getLong(source + KEY));
+    }
+
+    // Returns the slot holding the key, or the empty slot where it belongs
+    private int find(long keyHash) {
+      int mask = slotCount - 1;
+      int index = (int) keyHash & mask;
+      while (buffer.getLong(slots + index * SLOT_SIZE) != keyHash
+          && buffer.getLong(slots + index * SLOT_SIZE) != KeyHashes.EMPTY) {
+        index = (index + 1) & mask;
+      }
+      return slots + index * SLOT_SIZE;
+    }
+
+    private int getSize() {
+      return buffer.getInt(offset + STRIPE_SIZE);
+    }
+
+    private void setSize(int size) {
+      buffer.putInt(offset + STRIPE_SIZE, size);
+    }
+
+    private int getKeysSize() {
+      return buffer.getInt(offset + STRIPE_KEYS_SIZE);
+    }
+
+    private void setKeysSize(int keysSize) {
+      buffer.putInt(offset + STRIPE_KEYS_SIZE, keysSize);
+    }
+
+    private long getNextExpiration() {
+      return buffer.getLong(offset + STRIPE_NEXT_EXPIRATION);
+    }
+
+    private void setNextExpiration(long nextExpiration) {
+      buffer.putLong(offset + STRIPE_NEXT_EXPIRATION, nextExpiration);
+    }
+  }
+
+  public static final Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    Path path;
+    int capacity;
+    int stripeCount;
+    int keySize;
+    Clock clock;
+
+    private Builder() {
+      this.capacity = 1 << 16;
+      this.stripeCount = 64;
+      this.keySize = 128;
+      this.clock = Clock.systemDefaultZone();
+    }
+
+    /**
+     * @param path The file shared by the processes, created if it does not exist
+     */
+    public void setPath(Path path) {
+      this.path = path;
+    }
+
+    public Builder withPath(Path path) {
+      setPath(path);
+      return this;
+    }
+
+    /**
+     * @param capacity The number of keys the file must hold when it is created, ignored when it
+     *                 already exists. 65536 by default.
+     */
+    public void setCapacity(int capacity) {
+      this.capacity = capacity;
+    }
+
+    public Builder withCapacity(int capacity) {
+      setCapacity(capacity);
+      return this;
+    }
+
+    /**
+     * @param stripeCount The number of stripes of the file when it is created, ignored when it
+     *                    already exists. Rounded up to a power of two, 64 by default.
+     */
+    public void setStripeCount(int stripeCount) {
+      this.stripeCount = stripeCount;
+    }
+
+    public Builder withStripeCount(int stripeCount) {
+      setStripeCount(stripeCount);
+      return this;
+    }
+
+    /**
+     * @param keySize The average number of bytes taken by a key in the file when it is created,
+     *                ignored when it already exists. A key takes 30 bytes and two bytes per
+     *                character of its resource, limit name and property. 128 by default.
+     */
+    public void setKeySize(int keySize) {
+      this.keySize = keySize;
+    }
+
+    public Builder withKeySize(int keySize) {
+      setKeySize(keySize);
+      return this;
+    }
+
+    public MappedFileStorage build() {
+      return new MappedFileStorage(this);
+    }
+  }
+}
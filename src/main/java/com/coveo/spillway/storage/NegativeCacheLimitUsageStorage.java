@@ -0,0 +1,453 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+/**
+ * A {@link LimitUsageStorage} that remembers the limits found exhausted in the wrapped storage
+ * and rejects their calls locally until their bucket ends.
+ * <p>
+ * Once a key reaches its limit, every call that would be rejected by the wrapped storage is
+ * answered with the last counter it returned, without going to the wrapped storage. The
+ * exhausted keys are dropped when their bucket ends, and no key is remembered while the cache
+ * is full of keys that have not expired.
+ * <p>
+ * Only the {@link LimitType#FIXED_WINDOW} limits are remembered as exhausted. The counters of
+ * the other types go down during their bucket, so their rejections always go to the wrapped
+ * storage. The calls adding a cost without any limit also go to the wrapped storage, the counters
+ * they return may however mark their key as exhausted.
+ * <p>
+ * One exhausted limit is enough to reject a call locally. The counters of the keys checked along
+ * with an exhausted key are remembered with it, and a key that is not known yet is read once from
+ * the wrapped storage. The counters reported for the limits that are not exhausted are therefore
+ * the last ones seen by this storage, and may be stale: the calls of other clients are not
+ * counted until a call of this one goes to the wrapped storage again.
+ *
+ * @since 2.1.2
+ */
+public class NegativeCacheLimitUsageStorage implements LimitUsageStorage {
+
+  private static final long CLEANUP_INTERVAL_MILLIS = Duration.ofMinutes(1).toMillis();
+
+  private final LimitUsageStorage wrappedLimitUsageStorage;
+  private final int maxSize;
+  private final Clock clock;
+
+  // The last counter returned by the wrapped storage for each exhausted key and the keys checked
+  // with it
+  private final Map<LimitKey, KnownCounter> knownCounters = new ConcurrentHashMap<>();
+  private final AtomicLong nextCleanup = new AtomicLong();
+
+  public NegativeCacheLimitUsageStorage(LimitUsageStorage wrappedLimitUsageStorage) {
+    this(builder().withWrappedLimitUsageStorage(wrappedLimitUsageStorage));
+  }
+
+  NegativeCacheLimitUsageStorage(Builder builder) {
+    if (builder.wrappedLimitUsageStorage == null) {
+      throw new IllegalArgumentException("'wrappedLimitUsageStorage' must be set");
+    }
+    if (builder.maxSize < 1) {
+      throw new IllegalArgumentException("'maxSize' must be greater than zero");
+    }
+
+    this.wrappedLimitUsageStorage = builder.wrappedLimitUsageStorage;
+    this.maxSize = builder.maxSize;
+    this.clock = builder.clock;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGet(Collection<AddAndGetRequest> requests) {
+    boolean readOnly = true;
+    for (AddAndGetRequest request : requests) {
+      readOnly &= request.getCost() == 0;
+    }
+
+    // Reading the counters is served locally when they are all exhausted
+    if (readOnly) {
+      Map<LimitKey, Integer> counters = new HashMap<>();
+      for (AddAndGetRequest request : requests) {
+        LimitKey limitKey = LimitKey.fromRequest(request);
+        KnownCounter knownCounter = knownCounters.get(limitKey);
+        if (knownCounter == null || !knownCounter.isExhausted(request.getLimit())) {
+          break;
+        }
+        counters.put(limitKey, knownCounter.counter);
+      }
+      if (counters.size() == requests.size()) {
+        return counters;
+      }
+    }
+
+    Map<LimitKey, Integer> counters = wrappedLimitUsageStorage.addAndGet(requests);
+    remember(requests, counters, false);
+    return counters;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
+    // The wrapped storage only refuses the cost of a key already above its limit
+    Map<LimitKey, Integer> counters = new HashMap<>();
+    for (AddAndGetRequest request : requests) {
+      LimitKey limitKey = LimitKey.fromRequest(request);
+      KnownCounter knownCounter = knownCounters.get(limitKey);
+      if (knownCounter == null || !knownCounter.isExhausted(request.getLimit() + 1)) {
+        counters = wrappedLimitUsageStorage.addAndGetWithLimit(requests);
+        remember(requests, counters, false);
+        return counters;
+      }
+      counters.put(limitKey, knownCounter.counter);
+    }
+    return counters;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGetIfWithinLimits(Collection<AddAndGetRequest> requests) {
+    // A call with any cost is refused once one of its counters has reached its limit
+    for (AddAndGetRequest request : requests) {
+      KnownCounter knownCounter = knownCounters.get(LimitKey.fromRequest(request));
+      if (knownCounter != null && knownCounter.isExhausted(request.getLimit())) {
+        Map<LimitKey, Integer> counters = getKnownCounters(requests);
+        if (counters != null) {
+          return counters;
+        }
+        break;
+      }
+    }
+
+    Map<LimitKey, Integer> counters = wrappedLimitUsageStorage.addAndGetIfWithinLimits(requests);
+    boolean withinLimits = true;
+    for (AddAndGetRequest request : requests) {
+      Integer counter = counters.get(LimitKey.fromRequest(request));
+      withinLimits &= counter == null || counter <= request.getLimit();
+    }
+    // Nothing is added when a limit is exceeded
+    remember(requests, counters, !withinLimits);
+    return counters;
+  }
+
+  @Override
+  public boolean addAndGetIfWithinLimits(AddAndGetBatch batch) {
+    // The counters written here are replaced by the wrapped storage if it is called
+    for (int i = 0; i < batch.size(); i++) {
+      KnownCounter knownCounter = knownCounters.get(batch.getLimitKey(i));
+      if (knownCounter != null && knownCounter.isExhausted(batch.getLimit(i))) {
+        if (setKnownCounters(batch)) {
+          return true;
+        }
+        break;
+      }
+    }
+
+    if (!wrappedLimitUsageStorage.addAndGetIfWithinLimits(batch)) {
+      return false;
+    }
+
+    boolean withinLimits = true;
+    for (int i = 0; i < batch.size(); i++) {
+      withinLimits &= batch.getCounter(i) <= batch.getLimit(i);
+    }
+    boolean exhausted = false;
+    for (int i = 0; i < batch.size(); i++) {
+      int counter = batch.getCounter(i) - (withinLimits ? 0 : batch.getCost(i));
+      exhausted |= isExhausted(batch.getLimitKey(i).getType(), counter, batch.getLimit(i));
+    }
+    for (int i = 0; i < batch.size(); i++) {
+      int counter = batch.getCounter(i) - (withinLimits ? 0 : batch.getCost(i));
+      remember(batch.getLimitKey(i), counter, exhausted, true);
+    }
+    return true;
+  }
+
+  @Override
+  public boolean isSharingGcraKeys() {
+    return wrappedLimitUsageStorage.isSharingGcraKeys();
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters() {
+    return wrappedLimitUsageStorage.getCurrentLimitCounters();
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource) {
+    return wrappedLimitUsageStorage.getCurrentLimitCounters(resource);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource, String limitName) {
+    return wrappedLimitUsageStorage.getCurrentLimitCounters(resource, limitName);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return wrappedLimitUsageStorage.getCurrentLimitCounters(resource, limitName, property);
+  }
+
+  @Override
+  public void close() throws Exception {
+    knownCounters.clear();
+    wrappedLimitUsageStorage.close();
+  }
+
+  // The counters of a refused call. The keys that are not known are read once from the wrapped
+  // storage, without adding their cost. Null when the wrapped storage does not return them.
+  private Map<LimitKey, Integer> getKnownCounters(Collection<AddAndGetRequest> requests) {
+    Map<LimitKey, Integer> counters = new HashMap<>();
+    List<AddAndGetRequest> unknownRequests = new ArrayList<>();
+    List<AddAndGetRequest> readRequests = new ArrayList<>();
+    for (AddAndGetRequest request : requests) {
+      LimitKey limitKey = LimitKey.fromRequest(request);
+      KnownCounter knownCounter = knownCounters.get(limitKey);
+      if (knownCounter != null) {
+        counters.put(limitKey, knownCounter.counter + request.getCost());
+      } else {
+        unknownRequests.add(request);
+        readRequests.add(
+            buildReadRequest(limitKey, request.getEventTimestamp(), request.getLimit()));
+      }
+    }
+    if (readRequests.isEmpty()) {
+      return counters;
+    }
+
+    Map<LimitKey, Integer> readCounters = readCounters(readRequests);
+    for (AddAndGetRequest request : unknownRequests) {
+      LimitKey limitKey = LimitKey.fromRequest(request);
+      Integer counter = readCounters.get(limitKey);
+      if (counter == null) {
+        return null;
+      }
+      counters.put(limitKey, counter + request.getCost());
+    }
+    return counters;
+  }
+
+  private boolean setKnownCounters(AddAndGetBatch batch) {
+    int[] unknownIndexes = new int[batch.size()];
+    List<AddAndGetRequest> readRequests = new ArrayList<>();
+    for (int i = 0; i < batch.size(); i++) {
+      KnownCounter knownCounter = knownCounters.get(batch.getLimitKey(i));
+      if (knownCounter != null) {
+        batch.setCounter(i, knownCounter.counter + batch.getCost(i));
+      } else {
+        unknownIndexes[readRequests.size()] = i;
+        readRequests.add(
+            buildReadRequest(
+                batch.getLimitKey(i),
+                Instant.ofEpochMilli(batch.getEventTimestamp(i)),
+                batch.getLimit(i)));
+      }
+    }
+    if (readRequests.isEmpty()) {
+      return true;
+    }
+
+    Map<LimitKey, Integer> readCounters = readCounters(readRequests);
+    for (int i = 0; i < readRequests.size(); i++) {
+      Integer counter = readCounters.get(LimitKey.fromRequest(readRequests.get(i)));
+      if (counter == null) {
+        return false;
+      }
+      int index = unknownIndexes[i];
+      batch.setCounter(index, counter + batch.getCost(index));
+    }
+    return true;
+  }
+
+  private Map<LimitKey, Integer> readCounters(List<AddAndGetRequest> readRequests) {
+    Map<LimitKey, Integer> counters = wrappedLimitUsageStorage.addAndGet(readRequests);
+    for (AddAndGetRequest readRequest : readRequests) {
+      LimitKey limitKey = LimitKey.fromRequest(readRequest);
+      Integer counter = counters.get(limitKey);
+      if (counter != null) {
+        remember(limitKey, counter, true, false);
+      }
+    }
+    return counters;
+  }
+
+  private void remember(
+      Collection<AddAndGetRequest> requests, Map<LimitKey, Integer> counters, boolean costRefused) {
+    // The keys checked with an exhausted one are kept too, to answer its next calls
+    boolean exhausted = false;
+    for (AddAndGetRequest request : requests) {
+      Integer counter = counters.get(LimitKey.fromRequest(request));
+      exhausted |=
+          counter != null
+              && isExhausted(
+                  request.getLimitType(),
+                  costRefused ? counter - request.getCost() : counter,
+                  request.getLimit());
+    }
+
+    for (AddAndGetRequest request : requests) {
+      LimitKey limitKey = LimitKey.fromRequest(request);
+      Integer counter = counters.get(limitKey);
+      if (counter != null) {
+        remember(limitKey, costRefused ? counter - request.getCost() : counter, exhausted, false);
+      }
+    }
+  }
+
+  // The known keys are always updated, a new key is only added when asked. The keys of the
+  // batches are reused by their thread, they are copied before being kept.
+  private void remember(LimitKey limitKey, int counter, boolean add, boolean copy) {
+    removeExpiredCounters(false);
+
+    KnownCounter knownCounter = knownCounters.get(limitKey);
+    if (knownCounter != null) {
+      knownCounter.update(counter);
+      return;
+    }
+    if (!add) {
+      return;
+    }
+
+    if (knownCounters.size() >= maxSize) {
+      removeExpiredCounters(true);
+      if (knownCounters.size() >= maxSize) {
+        return;
+      }
+    }
+    LimitKey key = copy ? copyOf(limitKey) : limitKey;
+    knownCounters.putIfAbsent(key, new KnownCounter(key, counter));
+  }
+
+  private void removeExpiredCounters(boolean force) {
+    long now = clock.millis();
+    long cleanup = nextCleanup.get();
+    if ((force || now >= cleanup)
+        && nextCleanup.compareAndSet(cleanup, now + CLEANUP_INTERVAL_MILLIS)) {
+      knownCounters.values().removeIf(knownCounter -> knownCounter.bucketEnd <= now);
+    }
+  }
+
+  private static LimitKey copyOf(LimitKey limitKey) {
+    LimitKey copy =
+        new LimitKey(
+            limitKey.getResource(),
+            limitKey.getLimitName(),
+            limitKey.getProperty(),
+            limitKey.isDistributed(),
+            limitKey.getBucket(),
+            limitKey.getExpiration());
+    copy.setType(limitKey.getType());
+    return copy;
+  }
+
+  private static AddAndGetRequest buildReadRequest(
+      LimitKey limitKey, Instant eventTimestamp, int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(limitKey.getResource())
+        .withLimitName(limitKey.getLimitName())
+        .withProperty(limitKey.getProperty())
+        .withDistributed(limitKey.isDistributed())
+        .withExpiration(limitKey.getExpiration())
+        .withEventTimestamp(eventTimestamp)
+        .withCost(0)
+        .withLimit(limit)
+        .withLimitType(limitKey.getType())
+        .build();
+  }
+
+  // Only the counters of the fixed windows never go down during their bucket
+  private static boolean isExhausted(LimitType type, int counter, int limit) {
+    return type == LimitType.FIXED_WINDOW && counter >= limit;
+  }
+
+  private static class KnownCounter {
+    private final long bucketEnd;
+    private final LimitType type;
+    private volatile int counter;
+
+    private KnownCounter(LimitKey limitKey, int counter) {
+      this.bucketEnd = limitKey.getBucket().toEpochMilli() + limitKey.getExpiration().toMillis();
+      this.type = limitKey.getType();
+      this.counter = counter;
+    }
+
+    private boolean isExhausted(int limit) {
+      return NegativeCacheLimitUsageStorage.isExhausted(type, counter, limit);
+    }
+
+    private void update(int counter) {
+      this.counter = type == LimitType.FIXED_WINDOW ? Math.max(this.counter, counter) : counter;
+    }
+  }
+
+  public static final Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    LimitUsageStorage wrappedLimitUsageStorage;
+    int maxSize;
+    Clock clock;
+
+    private Builder() {
+      this.maxSize = 10_000;
+      this.clock = Clock.systemUTC();
+    }
+
+    public void setWrappedLimitUsageStorage(LimitUsageStorage wrappedLimitUsageStorage) {
+      this.wrappedLimitUsageStorage = wrappedLimitUsageStorage;
+    }
+
+    public Builder withWrappedLimitUsageStorage(LimitUsageStorage wrappedLimitUsageStorage) {
+      setWrappedLimitUsageStorage(wrappedLimitUsageStorage);
+      return this;
+    }
+
+    /**
+     * @param maxSize The largest number of keys remembered at once. 10000 by default.
+     */
+    public void setMaxSize(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    public Builder withMaxSize(int maxSize) {
+      setMaxSize(maxSize);
+      return this;
+    }
+
+    public NegativeCacheLimitUsageStorage build() {
+      return new NegativeCacheLimitUsageStorage(this);
+    }
+  }
+}
@@ -0,0 +1,686 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+/**
+ * Implementation of {@link LimitUsageStorage} keeping the counters outside of the heap.
+ * <p>
+ * The keys and their counters are stored in direct {@link ByteBuffer}s, split in stripes that
+ * each have their own lock. Each stripe holds an open addressing table of fixed size slots and
+ * the keys they point to. The garbage collector never sees the individual counters, so tens of
+ * millions of them don't weigh on the heap. The buffers count against
+ * {@code -XX:MaxDirectMemorySize} and are freed when the storage is garbage collected.
+ * <p>
+ * The expired keys are swept from a stripe a few slots at a time, by the calls using it. The
+ * buffers are only copied when the table of a stripe passes its load threshold.
+ *
+ * @since 2.1.2
+ */
+public class OffHeapStorage implements LimitUsageStorage {
+  private static final int DEFAULT_STRIPE_COUNT = 64;
+  // Slots examined by a call, at most, while the expired entries of a stripe are swept
+  /*package*/ static final int MAX_SWEPT_SLOTS_PER_CALL = 64;
+
+  private final Stripe[] stripes;
+  private final ThreadLocal<StripeSet> lockedStripes = ThreadLocal.withInitial(StripeSet::new);
+  private final long seed = ThreadLocalRandom.current().nextLong();
+  private final Clock clock;
+
+  public OffHeapStorage() {
+    this(DEFAULT_STRIPE_COUNT);
+  }
+
+  /**
+   * @param stripeCount The number of stripes, which bounds the number of threads updating
+   *                    counters at the same time. Rounded up to a power of two.
+   */
+  public OffHeapStorage(int stripeCount) {
+    this(stripeCount, Clock.systemDefaultZone());
+  }
+
+  /*package*/ OffHeapStorage(int stripeCount, Clock clock) {
+    if (stripeCount < 1) {
+      throw new IllegalArgumentException("'stripeCount' must be greater than zero");
+    }
+
+    int length = 1;
+    while (length < stripeCount) {
+      length <<= 1;
+    }
+    stripes = new Stripe[length];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+    this.clock = clock;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGet(Collection<AddAndGetRequest> requests) {
+    Map<LimitKey, Integer> updatedEntries = new HashMap<>();
+    for (AddAndGetRequest request : requests) {
+      updatedEntries.put(
+          LimitKey.fromRequest(request), add(request, request.getCost(), Long.MAX_VALUE));
+    }
+    return updatedEntries;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
+    Map<LimitKey, Integer> updatedEntries = new HashMap<>();
+    for (AddAndGetRequest request : requests) {
+      updatedEntries.put(
+          LimitKey.fromRequest(request),
+          add(request, request.getCost(), (long) request.getLimit() + request.getCost()));
+    }
+    return updatedEntries;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGetIfWithinLimits(Collection<AddAndGetRequest> requests) {
+    Map<LimitKey, Integer> updatedEntries = new HashMap<>();
+    boolean withinLimits = true;
+
+    StripeSet stripes = lockedStripes.get();
+    stripes.clear();
+    for (AddAndGetRequest request : requests) {
+      addStripes(
+          stripes,
+          request.getResource(),
+          request.getLimitName(),
+          request.getProperty(),
+          request.getExpiration(),
+          request.getEventTimestamp().toEpochMilli(),
+          request.getLimitType());
+    }
+
+    // The counters are only read while the locks are held, the costs are added if they all fit
+    lock(stripes);
+    try {
+      for (AddAndGetRequest request : requests) {
+        // No counter is below the minimum, the cost is never added
+        int value = add(request, request.getCost(), Long.MIN_VALUE) + request.getCost();
+        updatedEntries.put(LimitKey.fromRequest(request), value);
+        withinLimits &= value <= request.getLimit();
+      }
+
+      if (withinLimits) {
+        for (AddAndGetRequest request : requests) {
+          add(request, request.getCost(), Long.MAX_VALUE);
+        }
+      }
+    } finally {
+      unlock(stripes);
+    }
+    return updatedEntries;
+  }
+
+  @Override
+  public boolean addAndGetIfWithinLimits(AddAndGetBatch batch) {
+    boolean withinLimits = true;
+
+    StripeSet stripes = lockedStripes.get();
+    stripes.clear();
+    for (int i = 0; i < batch.size(); i++) {
+      LimitKey limitKey = batch.getLimitKey(i);
+      addStripes(
+          stripes,
+          limitKey.getResource(),
+          limitKey.getLimitName(),
+          limitKey.getProperty(),
+          limitKey.getExpiration(),
+          batch.getEventTimestamp(i),
+          limitKey.getType());
+    }
+
+    lock(stripes);
+    try {
+      for (int i = 0; i < batch.size(); i++) {
+        int value = add(batch, i, batch.getCost(i), Long.MIN_VALUE) + batch.getCost(i);
+        batch.setCounter(i, value);
+        withinLimits &= value <= batch.getLimit(i);
+      }
+
+      if (withinLimits) {
+        for (int i = 0; i < batch.size(); i++) {
+          add(batch, i, batch.getCost(i), Long.MAX_VALUE);
+        }
+      }
+    } finally {
+      unlock(stripes);
+    }
+    return true;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters() {
+    return getLimits(null, null, null);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource) {
+    return getLimits(resource, null, null);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource, String limitName) {
+    return getLimits(resource, limitName, null);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return getLimits(resource, limitName, property);
+  }
+
+  @Override
+  public void close() {}
+
+  // The number of entries of the stripes, expired or not
+  /*package*/ int getSize() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      stripe.lock.lock();
+      try {
+        size += stripe.size;
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+    return size;
+  }
+
+  // A null filter matches every key
+  private Map<LimitKey, Integer> getLimits(String resource, String limitName, String property) {
+    long now = clock.millis();
+    Map<LimitKey, Integer> counters = new HashMap<>();
+    for (Stripe stripe : stripes) {
+      stripe.lock.lock();
+      try {
+        stripe.collectCounters(resource, limitName, property, counters, now);
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+    return Collections.unmodifiableMap(counters);
+  }
+
+  private int add(AddAndGetRequest request, int cost, long maxCounter) {
+    return add(
+        request.getResource(),
+        request.getLimitName(),
+        request.getProperty(),
+        request.isDistributed(),
+        request.getExpiration(),
+        request.getEventTimestamp().toEpochMilli(),
+        cost,
+        request.getLimit(),
+        request.getLimitType(),
+        maxCounter);
+  }
+
+  private int add(AddAndGetBatch batch, int index, int cost, long maxCounter) {
+    LimitKey limitKey = batch.getLimitKey(index);
+    return add(
+        limitKey.getResource(),
+        limitKey.getLimitName(),
+        limitKey.getProperty(),
+        limitKey.isDistributed(),
+        limitKey.getExpiration(),
+        batch.getEventTimestamp(index),
+        cost,
+        batch.getLimit(index),
+        limitKey.getType(),
+        maxCounter);
+  }
+
+  // Adds the cost unless the counter including it goes above the maximum, and returns the counter
+  // including the cost if it was added or without it otherwise.
+  private int add(
+      String resource,
+      String limitName,
+      String property,
+      boolean distributed,
+      Duration expiration,
+      long eventTimestamp,
+      int cost,
+      int limit,
+      LimitType type,
+      long maxCounter) {
+    long expirationMillis = expiration.toMillis();
+    long identity = KeyHashes.hash(seed, resource, limitName, property);
+    long bucket = LimitUtils.calculateBucket(eventTimestamp, expirationMillis, type);
+    long keyHash = KeyHashes.hash(identity, bucket);
+    long now = clock.millis();
+
+    long previous = 0;
+    long end = bucket + expirationMillis;
+    if (type == LimitType.GCRA) {
+      end = now + expirationMillis;
+    } else if (type == LimitType.SLIDING_WINDOW) {
+      long previousBucket = bucket - expirationMillis;
+      previous =
+          LimitUtils.weighPreviousCounter(
+              (int) getValue(resource, limitName, property, identity, previousBucket, now),
+              LimitUtils.calculatePreviousBucketWeight(eventTimestamp, expirationMillis));
+      // Sliding windows still read a bucket during the bucket after it
+      end += expirationMillis;
+    }
+
+    Stripe stripe = getStripe(keyHash);
+    stripe.lock.lock();
+    try {
+      stripe.removeExpiredEntries(now);
+      int slot =
+          stripe.getOrInsert(
+              keyHash,
+              resource,
+              limitName,
+              property,
+              distributed,
+              bucket,
+              expirationMillis,
+              type,
+              end,
+              now);
+      long value = stripe.getValue(slot);
+
+      if (type == LimitType.GCRA) {
+        long nowMicros = eventTimestamp * 1000;
+        long interval = LimitUtils.calculateEmissionInterval(expiration, limit);
+        long arrival = Math.max(value, nowMicros) + cost * interval;
+        int counter = LimitUtils.calculateArrivalCounter(arrival, nowMicros, interval);
+        if (counter > maxCounter) {
+          return counter - cost;
+        }
+        stripe.setValue(slot, arrival);
+        // The key is dropped once its arrival time has passed
+        stripe.extendExpiration(slot, arrival / 1000 + 1);
+        return counter;
+      }
+
+      long counter = value + cost + previous;
+      if (counter > maxCounter) {
+        return (int) (counter - cost);
+      }
+      stripe.setValue(slot, value + cost);
+      return (int) counter;
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  private long getValue(
+      String resource, String limitName, String property, long identity, long bucket, long now) {
+    long keyHash = KeyHashes.hash(identity, bucket);
+    Stripe stripe = getStripe(keyHash);
+    stripe.lock.lock();
+    try {
+      return stripe.get(keyHash, resource, limitName, property, bucket, now);
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  // The stripe of the key of a request, and the one of its previous bucket for a sliding window
+  private void addStripes(
+      StripeSet lockedStripes,
+      String resource,
+      String limitName,
+      String property,
+      Duration expiration,
+      long eventTimestamp,
+      LimitType type) {
+    long expirationMillis = expiration.toMillis();
+    long identity = KeyHashes.hash(seed, resource, limitName, property);
+    long bucket = LimitUtils.calculateBucket(eventTimestamp, expirationMillis, type);
+    lockedStripes.add(getStripeIndex(KeyHashes.hash(identity, bucket)));
+    if (type == LimitType.SLIDING_WINDOW) {
+      lockedStripes.add(getStripeIndex(KeyHashes.hash(identity, bucket - expirationMillis)));
+    }
+  }
+
+  // The locks are reentrant, the calls made while holding them take them again
+  private void lock(StripeSet lockedStripes) {
+    for (int i = 0; i < lockedStripes.size(); i++) {
+      stripes[lockedStripes.get(i)].lock.lock();
+    }
+  }
+
+  private void unlock(StripeSet lockedStripes) {
+    for (int i = lockedStripes.size() - 1; i >= 0; i--) {
+      stripes[lockedStripes.get(i)].lock.unlock();
+    }
+  }
+
+  private Stripe getStripe(long keyHash) {
+    return stripes[getStripeIndex(keyHash)];
+  }
+
+  private int getStripeIndex(long keyHash) {
+    // The slots are picked with the low bits of the hash, the stripes with the high ones
+    return (int) (keyHash >>> 40) & (stripes.length - 1);
+  }
+
+  /**
+   * A part of the keys and their counters, guarded by its own lock.
+   * <p>
+   * Each slot of the table holds the hash of a key, its expiration, its value and the offset of
+   * the key in the key buffer, encoded by {@link KeyEncoding}.
+   */
+  private static final class Stripe {
+    private static final int SLOT_SIZE = 32;
+    private static final int EXPIRATION = 8;
+    private static final int VALUE = 16;
+    private static final int KEY = 24;
+    private static final int INITIAL_SLOT_COUNT = 16;
+
+    private static final int INITIAL_KEYS_SIZE = 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private ByteBuffer table = allocate(INITIAL_SLOT_COUNT * SLOT_SIZE);
+    private int size;
+    // The keys of the slots, and the bytes taken by the live ones
+    private ByteBuffer keys = allocate(INITIAL_KEYS_SIZE);
+    private int keysSize;
+    private int liveKeysSize;
+    // No entry expires before this epoch millisecond
+    private long nextExpiration = Long.MAX_VALUE;
+    // The next slot to sweep, and the earliest expiration of the entries the sweep kept
+    private int sweepIndex;
+    private long sweepNextExpiration = Long.MAX_VALUE;
+
+    private long get(
+        long keyHash, String resource, String limitName, String property, long bucket, long now) {
+      int slot = find(keyHash, resource, limitName, property, bucket);
+      return table.getLong(slot) == KeyHashes.EMPTY || table.getLong(slot + EXPIRATION) < now
+          ? 0
+          : getValue(slot);
+    }
+
+    private long getValue(int slot) {
+      return table.getLong(slot + VALUE);
+    }
+
+    private void setValue(int slot, long value) {
+      table.putLong(slot + VALUE, value);
+    }
+
+    private void extendExpiration(int slot, long expiration) {
+      if (expiration > table.getLong(slot + EXPIRATION)) {
+        table.putLong(slot + EXPIRATION, expiration);
+      }
+    }
+
+    private int getOrInsert(
+        long keyHash,
+        String resource,
+        String limitName,
+        String property,
+        boolean distributed,
+        long bucket,
+        long expirationMillis,
+        LimitType type,
+        long expiration,
+        long now) {
+      int slot = find(keyHash, resource, limitName, property, bucket);
+      if (table.getLong(slot) != KeyHashes.EMPTY) {
+        // An expired entry the sweep has not reached yet starts over
+        if (table.getLong(slot + EXPIRATION) < now) {
+          table.putLong(slot + EXPIRATION, expiration);
+          table.putLong(slot + VALUE, 0);
+        }
+        return slot;
+      }
+
+      // The table is kept at most three quarters full so the probes stay short
+      if ((size + 1) * 4 > slotCount() * 3) {
+        rebuild(now);
+        slot = findEmpty(table, keyHash);
+      }
+      // The key is written first, the slot is not part of the table while the keys are copied
+      int key =
+          writeKey(resource, limitName, property, distributed, bucket, expirationMillis, type);
+      table.putLong(slot, keyHash);
+      table.putLong(slot + EXPIRATION, expiration);
+      table.putLong(slot + VALUE, 0);
+      table.putInt(slot + KEY, key);
+      size++;
+      nextExpiration = Math.min(nextExpiration, expiration);
+      sweepNextExpiration = Math.min(sweepNextExpiration, expiration);
+      return slot;
+    }
+
+    private void collectCounters(
+        String resource,
+        String limitName,
+        String property,
+        Map<LimitKey, Integer> counters,
+        long now) {
+      for (int slot = 0; slot < table.capacity(); slot += SLOT_SIZE) {
+        if (table.getLong(slot) == KeyHashes.EMPTY || table.getLong(slot + EXPIRATION) < now) {
+          continue;
+        }
+        LimitKey limitKey = KeyEncoding.read(keys, table.getInt(slot + KEY));
+        // The GCRA keys hold an arrival time, not a counter
+        if (limitKey.getType() != LimitType.GCRA
+            && (resource == null || resource.equals(limitKey.getResource()))
+            && (limitName == null || limitName.equals(limitKey.getLimitName()))
+            && (property == null || property.equals(limitKey.getProperty()))) {
+          counters.put(limitKey, (int) getValue(slot));
+        }
+      }
+    }
+
+    // Once an entry has expired, each call sweeps the next slots of the table until the whole
+    // table has been swept.
+    private void removeExpiredEntries(long now) {
+      if (nextExpiration >= now) {
+        return;
+      }
+
+      for (int swept = 0; swept < MAX_SWEPT_SLOTS_PER_CALL; swept++) {
+        if (sweepIndex == slotCount()) {
+          // The next sweep starts once the earliest remaining entry has expired
+          nextExpiration = sweepNextExpiration;
+          sweepIndex = 0;
+          sweepNextExpiration = Long.MAX_VALUE;
+          return;
+        }
+
+        int slot = sweepIndex * SLOT_SIZE;
+        if (table.getLong(slot) != KeyHashes.EMPTY) {
+          long expiration = table.getLong(slot + EXPIRATION);
+          if (expiration < now) {
+            remove(sweepIndex);
+            // Another entry may have been shifted in this slot
+            continue;
+          }
+          sweepNextExpiration = Math.min(sweepNextExpiration, expiration);
+        }
+        sweepIndex++;
+      }
+    }
+
+    // Linear probing can't simply clear a slot, the following entries are shifted back instead.
+    private void remove(int index) {
+      liveKeysSize -= KeyEncoding.getLength(keys, table.getInt(index * SLOT_SIZE + KEY));
+      int mask = slotCount() - 1;
+      int next = index;
+      while (true) {
+        next = (next + 1) & mask;
+        long keyHash = table.getLong(next * SLOT_SIZE);
+        if (keyHash == KeyHashes.EMPTY) {
+          break;
+        }
+        // The entry stays if its home slot is cyclically between the removed slot and itself
+        int home = (int) keyHash & mask;
+        boolean stays = index <= next ? index < home && home <= next : index < home || home <= next;
+        if (!stays) {
+          copy(table, next * SLOT_SIZE, table, index * SLOT_SIZE, SLOT_SIZE);
+          // The entry may move behind the sweep, its expiration is kept for the next one
+          sweepNextExpiration =
+              Math.min(sweepNextExpiration, table.getLong(index * SLOT_SIZE + EXPIRATION));
+          index = next;
+        }
+      }
+      table.putLong(index * SLOT_SIZE, KeyHashes.EMPTY);
+      size--;
+    }
+
+    // Copies the entries that have not expired in a table at most half full, which drops the
+    // keys of the removed entries along with them.
+    private void rebuild(long now) {
+      int live = 0;
+      for (int slot = 0; slot < table.capacity(); slot += SLOT_SIZE) {
+        if (table.getLong(slot) != KeyHashes.EMPTY && table.getLong(slot + EXPIRATION) >= now) {
+          live++;
+        }
+      }
+      int slotCount = INITIAL_SLOT_COUNT;
+      while ((live + 1) * 2 > slotCount) {
+        slotCount *= 2;
+      }
+
+      ByteBuffer previousTable = table;
+      table = allocate(slotCount * SLOT_SIZE);
+      size = 0;
+      nextExpiration = Long.MAX_VALUE;
+      sweepIndex = 0;
+      sweepNextExpiration = Long.MAX_VALUE;
+      for (int slot = 0; slot < previousTable.capacity(); slot += SLOT_SIZE) {
+        long keyHash = previousTable.getLong(slot);
+        long expiration = previousTable.getLong(slot + EXPIRATION);
+        if (keyHash != KeyHashes.EMPTY && expiration >= now) {
+          copy(previousTable, slot, table, findEmpty(table, keyHash), SLOT_SIZE);
+          size++;
+          nextExpiration = Math.min(nextExpiration, expiration);
+        }
+      }
+      copyKeys(keys, Math.max(INITIAL_KEYS_SIZE, keys.capacity()));
+    }
+
+    // Copies the keys of the entries of the table in a new buffer
+    private void copyKeys(ByteBuffer previousKeys, int capacity) {
+      keys = allocate(capacity);
+      keysSize = 0;
+      for (int slot = 0; slot < table.capacity(); slot += SLOT_SIZE) {
+        if (table.getLong(slot) != KeyHashes.EMPTY) {
+          int key = table.getInt(slot + KEY);
+          int keyLength = KeyEncoding.getLength(previousKeys, key);
+          copy(previousKeys, key, keys, keysSize, keyLength);
+          table.putInt(slot + KEY, keysSize);
+          keysSize += keyLength;
+        }
+      }
+      liveKeysSize = keysSize;
+    }
+
+    // Returns the slot holding the key, or the empty slot where it belongs
+    private int find(
+        long keyHash, String resource, String limitName, String property, long bucket) {
+      int mask = slotCount() - 1;
+      int index = (int) keyHash & mask;
+      while (true) {
+        int slot = index * SLOT_SIZE;
+        long current = table.getLong(slot);
+        if (current == KeyHashes.EMPTY
+            || (current == keyHash
+                && KeyEncoding.matches(
+                    keys, table.getInt(slot + KEY), resource, limitName, property, bucket))) {
+          return slot;
+        }
+        index = (index + 1) & mask;
+      }
+    }
+
+    private static int findEmpty(ByteBuffer table, long keyHash) {
+      int mask = table.capacity() / SLOT_SIZE - 1;
+      int index = (int) keyHash & mask;
+      while (table.getLong(index * SLOT_SIZE) != KeyHashes.EMPTY) {
+        index = (index + 1) & mask;
+      }
+      return index * SLOT_SIZE;
+    }
+
+    private int slotCount() {
+      return table.capacity() / SLOT_SIZE;
+    }
+
+    private int writeKey(
+        String resource,
+        String limitName,
+        String property,
+        boolean distributed,
+        long bucket,
+        long expirationMillis,
+        LimitType type) {
+      int length = KeyEncoding.getLength(resource, limitName, property);
+      if (keysSize + length > keys.capacity()) {
+        // The keys of the removed entries are dropped, the buffer grows once the live keys fill
+        // half of it
+        int capacity = keys.capacity();
+        while ((liveKeysSize + length) * 2 > capacity) {
+          capacity *= 2;
+        }
+        copyKeys(keys, capacity);
+      }
+
+      int key = keysSize;
+      KeyEncoding.write(
+          keys, key, resource, limitName, property, distributed, bucket, expirationMillis, type);
+      keysSize += length;
+      liveKeysSize += length;
+      return key;
+    }
+
+    private static void copy(ByteBuffer source, int from, ByteBuffer target, int to, int length) {
+      ByteBuffer bytes = source.duplicate();
+      bytes.limit(from + length);
+      bytes.position(from);
+      ByteBuffer destination = target.duplicate();
+      destination.position(to);
+      destination.put(bytes);
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+      return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Sends the scripts of the callers of a {@link RedisStorage} from a few I/O threads.
+ * <p>
+ * The callers queue their script and wait for its future. Each I/O thread takes every queued
+ * script, up to the pipeline size, and sends them in a single pipeline on its connection, so
+ * the number of connections and of packets no longer follows the number of callers.
+ *
+ * @since 2.1.2
+ */
+/*package*/ class RedisDispatcher {
+  private static final Logger logger = LoggerFactory.getLogger(RedisDispatcher.class);
+
+  private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+  private final JedisPool jedisPool;
+  private final int maxPipelineSize;
+  private final BlockingQueue<Command> commands = new LinkedBlockingQueue<>();
+  private final ExecutorService executorService;
+  private volatile boolean closed;
+
+  /*package*/ RedisDispatcher(JedisPool jedisPool, int threadCount, int maxPipelineSize) {
+    this.jedisPool = jedisPool;
+    this.maxPipelineSize = maxPipelineSize;
+
+    AtomicInteger threadIndex = new AtomicInteger();
+    this.executorService =
+        Executors.newFixedThreadPool(
+            threadCount,
+            runnable -> {
+              String name = "spillway-redis-dispatcher-" + threadIndex.incrementAndGet();
+              Thread thread = new Thread(runnable, name);
+              thread.setDaemon(true);
+              return thread;
+            });
+    for (int i = 0; i < threadCount; i++) {
+      executorService.execute(this::dispatch);
+    }
+  }
+
+  /*package*/ CompletableFuture<Object> eval(
+      RedisScript script, List<byte[]> keys, List<byte[]> arguments) {
+    Command command = new Command(script, keys, arguments);
+    if (closed) {
+      command.future.completeExceptionally(
+          new IllegalStateException("The Redis storage is closed"));
+      return command.future;
+    }
+
+    commands.add(command);
+    // The I/O threads may have stopped before the command was queued
+    if (closed && commands.remove(command)) {
+      command.future.completeExceptionally(
+          new IllegalStateException("The Redis storage is closed"));
+    }
+    return command.future;
+  }
+
+  /**
+   * Stops the I/O threads once the queued commands are sent.
+   */
+  /*package*/ void close() {
+    closed = true;
+    executorService.shutdownNow();
+    try {
+      executorService.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    Command command;
+    while ((command = commands.poll()) != null) {
+      command.future.completeExceptionally(
+          new IllegalStateException("The Redis storage is closed"));
+    }
+  }
+
+  private void dispatch() {
+    List<Command> pipeline = new ArrayList<>(maxPipelineSize);
+    while (!closed || !commands.isEmpty()) {
+      try {
+        Command command = commands.poll(100, TimeUnit.MILLISECONDS);
+        if (command == null) {
+          continue;
+        }
+        pipeline.add(command);
+      } catch (InterruptedException e) {
+        // Closing, the commands already queued are still sent
+        if (commands.isEmpty()) {
+          return;
+        }
+      }
+      commands.drainTo(pipeline, maxPipelineSize - pipeline.size());
+
+      try {
+        send(pipeline);
+      } catch (RuntimeException e) {
+        logger.warn("Failed to send a pipeline of {} scripts to Redis.", pipeline.size(), e);
+        for (Command command : pipeline) {
+          command.future.completeExceptionally(e);
+        }
+      } finally {
+        pipeline.clear();
+      }
+    }
+  }
+
+  private void send(List<Command> pipelineCommands) {
+    try (Jedis jedis = jedisPool.getResource()) {
+      Pipeline pipeline = jedis.pipelined();
+      List<Response<Object>> responses = new ArrayList<>(pipelineCommands.size());
+      for (Command command : pipelineCommands) {
+        responses.add(command.script.evalsha(pipeline, command.keys, command.arguments));
+      }
+      pipeline.sync();
+
+      for (int i = 0; i < pipelineCommands.size(); i++) {
+        Command command = pipelineCommands.get(i);
+        try {
+          command.future.complete(responses.get(i).get());
+        } catch (JedisDataException e) {
+          if (!RedisScript.isNoScript(e)) {
+            command.future.completeExceptionally(e);
+            continue;
+          }
+          // Redis lost its scripts, the first one sent again loads them back
+          try {
+            command.future.complete(command.script.eval(jedis, command.keys, command.arguments));
+          } catch (RuntimeException evalException) {
+            command.future.completeExceptionally(evalException);
+          }
+        }
+      }
+    }
+  }
+
+  private static class Command {
+    private final RedisScript script;
+    private final List<byte[]> keys;
+    private final List<byte[]> arguments;
+    private final CompletableFuture<Object> future = new CompletableFuture<>();
+
+    private Command(RedisScript script, List<byte[]> keys, List<byte[]> arguments) {
+      this.script = script;
+      this.keys = keys;
+      this.arguments = arguments;
+    }
+  }
+}
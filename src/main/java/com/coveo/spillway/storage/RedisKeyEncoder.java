@@ -0,0 +1,182 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.coveo.spillway.limit.LimitKey;
+
+/**
+ * Encodes {@link LimitKey}s into the binary Redis keys used by the {@link RedisStorage}.
+ * <p>
+ * The resource, the limit name and the expiration of a limit never change, so their encoding
+ * is cached. The bucket is only rendered again when it changes and the key is written in a
+ * buffer reused by each thread.
+ *
+ * @since 2.1.2
+ */
+/*package*/ class RedisKeyEncoder {
+  private static final byte SEPARATOR = (byte) RedisStorage.KEY_SEPARATOR.charAt(0);
+  private static final byte SEPARATOR_SUBSTITUTE =
+      (byte) RedisStorage.KEY_SEPARATOR_SUBSTITUTE.charAt(0);
+
+  private final String keyPrefix;
+  // The encoded "prefix|resource|limitName|" of each limit, by resource and limit name
+  private final ConcurrentMap<String, ConcurrentMap<String, byte[]>> limitPrefixes =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<Duration, ExpirationEncoding> expirations = new ConcurrentHashMap<>();
+  private final ThreadLocal<KeyBuffer> buffers = ThreadLocal.withInitial(KeyBuffer::new);
+
+  /*package*/ RedisKeyEncoder(String keyPrefix) {
+    this.keyPrefix = keyPrefix;
+  }
+
+  /*package*/ byte[] encode(LimitKey limitKey) {
+    return encode(limitKey, limitKey.getBucket());
+  }
+
+  /*package*/ byte[] encode(LimitKey limitKey, Instant bucket) {
+    ExpirationEncoding expiration =
+        expirations.computeIfAbsent(limitKey.getExpiration(), ExpirationEncoding::new);
+
+    KeyBuffer buffer = buffers.get();
+    buffer.reset();
+    buffer.write(getLimitPrefix(limitKey.getResource(), limitKey.getLimitName()));
+    buffer.writeCleaned(limitKey.getProperty());
+    buffer.write(SEPARATOR);
+    buffer.write(expiration.getBucket(bucket));
+    buffer.write(expiration.suffix);
+    return buffer.toByteArray();
+  }
+
+  private byte[] getLimitPrefix(String resource, String limitName) {
+    return limitPrefixes
+        .computeIfAbsent(resource, (key) -> new ConcurrentHashMap<>())
+        .computeIfAbsent(
+            limitName,
+            (key)
+                -> encode(
+                    RedisStorage.clean(keyPrefix)
+                        + RedisStorage.KEY_SEPARATOR
+                        + RedisStorage.clean(resource)
+                        + RedisStorage.KEY_SEPARATOR
+                        + RedisStorage.clean(limitName)
+                        + RedisStorage.KEY_SEPARATOR));
+  }
+
+  private static byte[] encode(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static class ExpirationEncoding {
+    private final byte[] suffix;
+    private volatile BucketEncoding lastBucket;
+    private volatile BucketEncoding previousBucket;
+
+    private ExpirationEncoding(Duration expiration) {
+      suffix = encode(RedisStorage.KEY_SEPARATOR + RedisStorage.clean(expiration.toString()));
+    }
+
+    // Every limit sharing this expiration is in the same bucket until the bucket ends. Sliding
+    // windows also read the bucket before it, so it is kept as well.
+    private byte[] getBucket(Instant bucket) {
+      BucketEncoding last = lastBucket;
+      if (last != null && last.bucket.equals(bucket)) {
+        return last.encoded;
+      }
+      BucketEncoding previous = previousBucket;
+      if (previous != null && previous.bucket.equals(bucket)) {
+        return previous.encoded;
+      }
+
+      BucketEncoding encoding = new BucketEncoding(bucket);
+      if (last == null || bucket.isAfter(last.bucket)) {
+        previousBucket = last;
+        lastBucket = encoding;
+      } else {
+        previousBucket = encoding;
+      }
+      return encoding.encoded;
+    }
+  }
+
+  private static class BucketEncoding {
+    private final Instant bucket;
+    private final byte[] encoded;
+
+    private BucketEncoding(Instant bucket) {
+      this.bucket = bucket;
+      this.encoded = encode(RedisStorage.clean(bucket.toString()));
+    }
+  }
+
+  private static class KeyBuffer {
+    private byte[] bytes = new byte[128];
+    private int length;
+
+    private void reset() {
+      length = 0;
+    }
+
+    private void write(byte value) {
+      ensureCapacity(1);
+      bytes[length++] = value;
+    }
+
+    private void write(byte[] values) {
+      ensureCapacity(values.length);
+      System.arraycopy(values, 0, bytes, length, values.length);
+      length += values.length;
+    }
+
+    // ASCII values are written as is, anything else goes through the UTF-8 encoder
+    private void writeCleaned(String value) {
+      int start = length;
+      ensureCapacity(value.length());
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c >= 0x80) {
+          length = start;
+          write(encode(RedisStorage.clean(value)));
+          return;
+        }
+        bytes[length++] = c == SEPARATOR ? SEPARATOR_SUBSTITUTE : (byte) c;
+      }
+    }
+
+    private byte[] toByteArray() {
+      return Arrays.copyOf(bytes, length);
+    }
+
+    private void ensureCapacity(int additionalLength) {
+      if (length + additionalLength > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additionalLength));
+      }
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+import redis.clients.jedis.Protocol;
+
+/**
+ * The keys and the arguments of the scripts of the Redis storages for a batch of requests.
+ * <p>
+ * Every Redis storage sends the same keys and arguments to the same scripts, so they can share
+ * a Redis server.
+ *
+ * @since 2.1.2
+ */
+/*package*/ class RedisRequests {
+  private final List<LimitKey> limitKeys;
+  private final List<byte[]> keys;
+  private final List<byte[]> arguments;
+
+  /*package*/ RedisRequests(RedisKeyEncoder keyEncoder, Collection<AddAndGetRequest> requests) {
+    limitKeys = new ArrayList<>(requests.size());
+    keys = new ArrayList<>(requests.size());
+    arguments = new ArrayList<>(requests.size() * 6);
+    List<byte[]> previousKeys = new ArrayList<>();
+
+    for (AddAndGetRequest request : requests) {
+      LimitKey limitKey = LimitKey.fromRequest(request);
+      limitKeys.add(limitKey);
+      keys.add(keyEncoder.encode(limitKey));
+      arguments.add(Protocol.toByteArray(request.getCost()));
+      arguments.add(Protocol.toByteArray(request.getLimit()));
+      // We set the expire to twice the expiration period. The expiration is there to ensure that we don't fill the Redis cluster with
+      // useless keys. The actual expiration mechanism is handled by the bucketing mechanism.
+      // The previous bucket of a sliding window is still read during the current bucket, which
+      // this expiration also covers.
+      arguments.add(Protocol.toByteArray(request.getExpiration().getSeconds() * 2));
+
+      if (request.getLimitType() == LimitType.SLIDING_WINDOW) {
+        Instant previousBucket = limitKey.getBucket().minus(limitKey.getExpiration());
+        previousKeys.add(keyEncoder.encode(limitKey, previousBucket));
+        arguments.add(
+            Protocol.toByteArray(
+                LimitUtils.calculatePreviousBucketWeight(
+                    request.getEventTimestamp().toEpochMilli(),
+                    request.getExpiration().toMillis())));
+      } else {
+        arguments.add(Protocol.toByteArray(0));
+      }
+
+      if (request.getLimitType() == LimitType.GCRA) {
+        arguments.add(Protocol.toByteArray(request.getEventTimestamp().toEpochMilli() * 1000));
+        arguments.add(
+            Protocol.toByteArray(
+                LimitUtils.calculateEmissionInterval(
+                    request.getExpiration(), request.getLimit())));
+      } else {
+        arguments.add(Protocol.toByteArray(0));
+        arguments.add(Protocol.toByteArray(0));
+      }
+    }
+    keys.addAll(previousKeys);
+  }
+
+  /*package*/ List<byte[]> getKeys() {
+    return keys;
+  }
+
+  /*package*/ List<byte[]> getArguments() {
+    return arguments;
+  }
+
+  /**
+   * @param counters The counters returned by the script, in the order of the requests
+   * @return The counter of each limit
+   */
+  /*package*/ Map<LimitKey, Integer> toCounters(List<?> counters) {
+    Map<LimitKey, Integer> responses = new LinkedHashMap<>();
+    for (int i = 0; i < limitKeys.size(); i++) {
+      responses.put(limitKeys.get(i), ((Long) counters.get(i)).intValue());
+    }
+    return responses;
+  }
+}
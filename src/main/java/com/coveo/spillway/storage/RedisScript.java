@@ -0,0 +1,103 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Lua script invoked with {@code EVALSHA} so only its digest is sent to Redis.
+ * <p>
+ * When Redis does not know the script, after a restart or a failover for instance,
+ * it is sent once with {@code EVAL}, which also adds it back to the script cache.
+ *
+ * @since 2.1.2
+ */
+/*package*/ class RedisScript {
+  private static final String NO_SCRIPT_ERROR = "NOSCRIPT";
+
+  private final byte[] source;
+  private final String digest;
+  private final byte[] sha;
+
+  /*package*/ RedisScript(String source) {
+    this.source = SafeEncoder.encode(source);
+    this.digest = sha1(source);
+    this.sha = SafeEncoder.encode(digest);
+  }
+
+  /*package*/ byte[] getSource() {
+    return source;
+  }
+
+  /*package*/ String getDigest() {
+    return digest;
+  }
+
+  /*package*/ Object eval(Jedis jedis, List<byte[]> keys, List<byte[]> arguments) {
+    try {
+      return jedis.evalsha(sha, keys, arguments);
+    } catch (JedisDataException e) {
+      if (!isNoScript(e)) {
+        throw e;
+      }
+      return jedis.eval(source, keys, arguments);
+    }
+  }
+
+  /**
+   * Queues the script in a pipeline. Its response fails with a {@link JedisDataException} for
+   * which {@link #isNoScript(JedisDataException)} is true if Redis does not know the script.
+   */
+  /*package*/ Response<Object> evalsha(
+      Pipeline pipeline, List<byte[]> keys, List<byte[]> arguments) {
+    return pipeline.evalsha(sha, keys, arguments);
+  }
+
+  /*package*/ static boolean isNoScript(JedisDataException e) {
+    return e.getMessage() != null && e.getMessage().startsWith(NO_SCRIPT_ERROR);
+  }
+
+  private static String sha1(String source) {
+    try {
+      byte[] digest =
+          MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8));
+      StringBuilder sha = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        sha.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return sha.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-1
+      throw new IllegalStateException(e);
+    }
+  }
+}
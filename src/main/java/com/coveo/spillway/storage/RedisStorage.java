@@ -22,30 +22,31 @@
  */
 package com.coveo.spillway.storage;
 
-import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.utils.LimitUtils;
 import com.coveo.spillway.storage.utils.AddAndGetRequest;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.Pipeline;
-import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
 
 /**
  * Implementation of {@link LimitUsageStorage} using a Redis storage.
@@ -55,6 +56,10 @@ import redis.clients.jedis.Response;
  * <p>
  * We suggest to wrap this storage in the {@link AsyncBatchLimitUsageStorage}
  * to avoid slowing down queries if external troubles occurs with the database.
+ * <p>
+ * With a dispatcher, the calling threads don't borrow a connection. They queue their script
+ * and a few I/O threads send the queued scripts of all the callers in a single pipeline per
+ * connection. The async methods then return without waiting for Redis.
  *
  * @author Guillaume Simard
  * @author Emile Fugulin
@@ -66,106 +71,210 @@ public class RedisStorage implements LimitUsageStorage {
 
   /*package*/ static final String DEFAULT_PREFIX = "spillway";
   /*package*/ static final String KEY_SEPARATOR = "|";
-
-  private static final String KEY_SEPARATOR_SUBSTITUTE = "_";
-  private static final String WILD_CARD_OPERATOR = "*";
-  private static final String COUNTER_SCRIPT =
-      "local counter = redis.call('INCRBY', KEYS[1], ARGV[1]); "
-          + "if counter  > tonumber(ARGV[2]) + tonumber(ARGV[1])"
-          + "then counter = redis.call('INCRBY', KEYS[1], -ARGV[1]) "
+  /*package*/ static final int DEFAULT_SCAN_COUNT = 1000;
+
+  /*package*/ static final String KEY_SEPARATOR_SUBSTITUTE = "_";
+  /*package*/ static final String WILD_CARD_OPERATOR = "*";
+  // Every script receives one key per request and its cost, limit, ttl, previous bucket weight,
+  // time and emission interval as arguments, and returns the counter of each key in the same
+  // order. The requests with a weight, the sliding windows, also have the key of their previous
+  // bucket after the other keys. The requests with an interval are GCRA keys, which hold the
+  // theoretical arrival time in microseconds instead of a counter.
+  private static final String PREVIOUS_COUNTERS =
+      "local n = #ARGV / 6 "
+          + "local previous = {} "
+          + "local p = n "
+          + "for i = 1, n do "
+          + "local weight = tonumber(ARGV[i * 6 - 2]) "
+          + "previous[i] = 0 "
+          + "if weight > 0 then "
+          + "p = p + 1 "
+          + "previous[i] = math.floor(tonumber(redis.call('GET', KEYS[p]) or '0') * weight / "
+          + LimitUtils.WEIGHT_SCALE
+          + ") "
+          + "end "
+          + "end "
+          + "local function isArrival(i) return tonumber(ARGV[i * 6]) > 0 end "
+          + "local function addArrival(i, cost) "
+          + "local now = tonumber(ARGV[i * 6 - 1]) "
+          + "local interval = tonumber(ARGV[i * 6]) "
+          + "local arrival = math.max(tonumber(redis.call('GET', KEYS[i]) or '0'), now) + cost * interval "
+          + "return math.max(0, math.ceil((arrival - now) / interval)), arrival, now "
           + "end "
-          + "return tostring(counter)";
+          + "local function setArrival(i, arrival, now) "
+          + "if arrival > now then "
+          + "redis.call('SET', KEYS[i], string.format('%.0f', arrival), 'PX', math.ceil((arrival - now) / 1000)) "
+          + "else "
+          + "redis.call('DEL', KEYS[i]) "
+          + "end "
+          + "end ";
+  /*package*/ static final RedisScript COUNTERS_SCRIPT =
+      new RedisScript(
+          PREVIOUS_COUNTERS
+              + "local counters = {} "
+              + "for i = 1, n do "
+              + "local cost = tonumber(ARGV[i * 6 - 5]) "
+              + "if isArrival(i) then "
+              + "local counter, arrival, now = addArrival(i, cost) "
+              + "if cost ~= 0 then setArrival(i, arrival, now) end "
+              + "counters[i] = counter "
+              + "else "
+              + "counters[i] = redis.call('INCRBY', KEYS[i], cost) + previous[i] "
+              + "redis.call('EXPIRE', KEYS[i], ARGV[i * 6 - 3]) "
+              + "end "
+              + "end "
+              + "return counters");
+  /*package*/ static final RedisScript COUNTERS_WITH_LIMIT_SCRIPT =
+      new RedisScript(
+          PREVIOUS_COUNTERS
+              + "local counters = {} "
+              + "for i = 1, n do "
+              + "local cost = tonumber(ARGV[i * 6 - 5]) "
+              + "local limit = tonumber(ARGV[i * 6 - 4]) "
+              + "local counter "
+              + "if isArrival(i) then "
+              + "local arrival, now "
+              + "counter, arrival, now = addArrival(i, cost) "
+              + "if counter > limit + cost then "
+              + "counter = counter - cost "
+              + "else "
+              + "setArrival(i, arrival, now) "
+              + "end "
+              + "else "
+              + "counter = redis.call('INCRBY', KEYS[i], cost) + previous[i] "
+              + "if counter > limit + cost then "
+              + "counter = redis.call('INCRBY', KEYS[i], -cost) + previous[i] "
+              + "end "
+              + "redis.call('EXPIRE', KEYS[i], ARGV[i * 6 - 3]) "
+              + "end "
+              + "counters[i] = counter "
+              + "end "
+              + "return counters");
+  /*package*/ static final RedisScript COUNTERS_WITHIN_LIMITS_SCRIPT =
+      new RedisScript(
+          PREVIOUS_COUNTERS
+              + "local counters = {} "
+              + "local arrivals = {} "
+              + "local nows = {} "
+              + "local withinLimits = true "
+              + "for i = 1, n do "
+              + "local cost = tonumber(ARGV[i * 6 - 5]) "
+              + "local counter "
+              + "if isArrival(i) then "
+              + "counter, arrivals[i], nows[i] = addArrival(i, cost) "
+              + "else "
+              + "counter = tonumber(redis.call('GET', KEYS[i]) or '0') + cost + previous[i] "
+              + "end "
+              + "if counter > tonumber(ARGV[i * 6 - 4]) then withinLimits = false end "
+              + "counters[i] = counter "
+              + "end "
+              + "if withinLimits then "
+              + "for i = 1, n do "
+              + "if isArrival(i) then "
+              + "setArrival(i, arrivals[i], nows[i]) "
+              + "else "
+              + "redis.call('INCRBY', KEYS[i], ARGV[i * 6 - 5]) "
+              + "redis.call('EXPIRE', KEYS[i], ARGV[i * 6 - 3]) "
+              + "end "
+              + "end "
+              + "end "
+              + "return counters");
 
   private final JedisPool jedisPool;
   private final String keyPrefix;
+  private final int scanCount;
+  private final RedisKeyEncoder keyEncoder;
+  private final RedisDispatcher dispatcher;
 
   RedisStorage(Builder builder) {
+    if (builder.dispatching && builder.dispatcherThreadCount < 1) {
+      throw new IllegalArgumentException("'dispatcherThreadCount' must be greater than zero");
+    }
+    if (builder.dispatching && builder.maxPipelineSize < 1) {
+      throw new IllegalArgumentException("'maxPipelineSize' must be greater than zero");
+    }
+
     this.jedisPool = builder.jedisPool;
     this.keyPrefix = builder.keyPrefix;
+    this.scanCount = builder.scanCount;
+    this.keyEncoder = new RedisKeyEncoder(builder.keyPrefix);
+    this.dispatcher =
+        builder.dispatching
+            ? new RedisDispatcher(
+                builder.jedisPool, builder.dispatcherThreadCount, builder.maxPipelineSize)
+            : null;
   }
 
   @Override
   public Map<LimitKey, Integer> addAndGet(Collection<AddAndGetRequest> requests) {
-    Map<LimitKey, Response<Long>> responses = new LinkedHashMap<>();
+    return evalCounters(COUNTERS_SCRIPT, requests);
+  }
 
-    try (Jedis jedis = jedisPool.getResource()) {
-      try (Pipeline pipeline = jedis.pipelined()) {
-
-        for (AddAndGetRequest request : requests) {
-          pipeline.multi();
-          LimitKey limitKey = LimitKey.fromRequest(request);
-          String redisKey =
-              Stream.of(
-                      keyPrefix,
-                      limitKey.getResource(),
-                      limitKey.getLimitName(),
-                      limitKey.getProperty(),
-                      limitKey.getBucket().toString(),
-                      limitKey.getExpiration().toString())
-                  .map(RedisStorage::clean)
-                  .collect(Collectors.joining(KEY_SEPARATOR));
-
-          responses.put(limitKey, pipeline.incrBy(redisKey, request.getCost()));
-          // We set the expire to twice the expiration period. The expiration is there to ensure that we don't fill the Redis cluster with
-          // useless keys. The actual expiration mechanism is handled by the bucketing mechanism.
-          pipeline.expire(redisKey, (int) request.getExpiration().getSeconds() * 2);
-          pipeline.exec();
-        }
+  @Override
+  public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
+    return evalCounters(COUNTERS_WITH_LIMIT_SCRIPT, requests);
+  }
 
-        pipeline.sync();
-      } catch (IOException e) {
-        logger.error("Unable to close redis storage pipeline.", e);
-      }
-    }
+  @Override
+  public Map<LimitKey, Integer> addAndGetIfWithinLimits(Collection<AddAndGetRequest> requests) {
+    return evalCounters(COUNTERS_WITHIN_LIMITS_SCRIPT, requests);
+  }
 
-    return responses
-        .entrySet()
-        .stream()
-        .collect(Collectors.toMap(Map.Entry::getKey, kvp -> kvp.getValue().get().intValue()));
+  @Override
+  public CompletableFuture<Map<LimitKey, Integer>> addAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    if (dispatcher == null) {
+      return LimitUsageStorage.super.addAndGetAsync(requests);
+    }
+    return dispatchCounters(COUNTERS_SCRIPT, requests);
   }
 
   @Override
-  public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
-    Map<LimitKey, Response<String>> responses = new LinkedHashMap<>();
+  public CompletableFuture<Map<LimitKey, Integer>> addAndGetIfWithinLimitsAsync(
+      Collection<AddAndGetRequest> requests) {
+    if (dispatcher == null) {
+      return LimitUsageStorage.super.addAndGetIfWithinLimitsAsync(requests);
+    }
+    return dispatchCounters(COUNTERS_WITHIN_LIMITS_SCRIPT, requests);
+  }
 
-    try (Jedis jedis = jedisPool.getResource()) {
-      try (Pipeline pipeline = jedis.pipelined()) {
-        requests.forEach(
-            request -> {
-              pipeline.multi();
-              LimitKey limitKey = LimitKey.fromRequest(request);
-              String redisKey =
-                  Stream.of(
-                          keyPrefix,
-                          limitKey.getResource(),
-                          limitKey.getLimitName(),
-                          limitKey.getProperty(),
-                          limitKey.getBucket().toString(),
-                          limitKey.getExpiration().toString())
-                      .map(RedisStorage::clean)
-                      .collect(Collectors.joining(KEY_SEPARATOR));
-
-              responses.put(
-                  limitKey,
-                  pipeline.eval(
-                      COUNTER_SCRIPT,
-                      Collections.singletonList(redisKey),
-                      Arrays.asList(
-                          String.valueOf(request.getCost()), String.valueOf(request.getLimit()))));
-              pipeline.expire(redisKey, (int) request.getExpiration().getSeconds() * 2);
-              pipeline.exec();
-            });
-        pipeline.sync();
-      } catch (IOException e) {
-        logger.error("Unable to close redis storage pipeline.", e);
+  // Sends the whole batch in a single script invocation instead of a transaction per request.
+  private Map<LimitKey, Integer> evalCounters(
+      RedisScript script, Collection<AddAndGetRequest> requests) {
+    if (requests.isEmpty()) {
+      return Collections.emptyMap();
+    }
+
+    if (dispatcher != null) {
+      try {
+        return dispatchCounters(script, requests).join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw e;
       }
     }
 
-    return responses
-        .entrySet()
-        .stream()
-        .collect(
-            Collectors.toMap(Map.Entry::getKey, kvp -> Integer.parseInt(kvp.getValue().get())));
+    RedisRequests redisRequests = new RedisRequests(keyEncoder, requests);
+    List<?> counters;
+    try (Jedis jedis = jedisPool.getResource()) {
+      counters =
+          (List<?>) script.eval(jedis, redisRequests.getKeys(), redisRequests.getArguments());
+    }
+    return redisRequests.toCounters(counters);
+  }
+
+  private CompletableFuture<Map<LimitKey, Integer>> dispatchCounters(
+      RedisScript script, Collection<AddAndGetRequest> requests) {
+    if (requests.isEmpty()) {
+      return CompletableFuture.completedFuture(Collections.emptyMap());
+    }
+
+    RedisRequests redisRequests = new RedisRequests(keyEncoder, requests);
+    return dispatcher
+        .eval(script, redisRequests.getKeys(), redisRequests.getArguments())
+        .thenApply(counters -> redisRequests.toCounters((List<?>) counters));
   }
 
   @Override
@@ -189,52 +298,127 @@ public class RedisStorage implements LimitUsageStorage {
     return getLimits(buildKeyPattern(keyPrefix, resource, limitName, property, WILD_CARD_OPERATOR));
   }
 
+  /**
+   * Behaves like {@link #getCurrentLimitCounters()}, but passes each limit and its current count
+   * to the action as they are read instead of returning them all at once.
+   * <p>
+   * The keys are read incrementally, so a limit might be passed more than once if keys are
+   * added or removed while iterating.
+   *
+   * @param action The action applied on each limit and its current count
+   */
+  public void forEachCurrentLimitCounter(BiConsumer<LimitKey, Integer> action) {
+    forEachLimit(buildKeyPattern(keyPrefix, WILD_CARD_OPERATOR), action);
+  }
+
+  /**
+   * @see #forEachCurrentLimitCounter(BiConsumer)
+   *
+   * @param resource The resource for which you want to get the current limit counts
+   * @param action The action applied on each limit and its current count
+   */
+  public void forEachCurrentLimitCounter(String resource, BiConsumer<LimitKey, Integer> action) {
+    forEachLimit(buildKeyPattern(keyPrefix, resource, WILD_CARD_OPERATOR), action);
+  }
+
+  /**
+   * @see #forEachCurrentLimitCounter(BiConsumer)
+   *
+   * @param resource The resource for which you want to get the current limit counts
+   * @param limitName The limit name for which you want to get the current limit counts
+   * @param action The action applied on each limit and its current count
+   */
+  public void forEachCurrentLimitCounter(
+      String resource, String limitName, BiConsumer<LimitKey, Integer> action) {
+    forEachLimit(buildKeyPattern(keyPrefix, resource, limitName, WILD_CARD_OPERATOR), action);
+  }
+
+  /**
+   * @see #forEachCurrentLimitCounter(BiConsumer)
+   *
+   * @param resource The resource for which you want to get the current limit counts
+   * @param limitName The limit name for which you want to get the current limit counts
+   * @param property The property for which you want to get the current limit counts
+   * @param action The action applied on each limit and its current count
+   */
+  public void forEachCurrentLimitCounter(
+      String resource, String limitName, String property, BiConsumer<LimitKey, Integer> action) {
+    forEachLimit(
+        buildKeyPattern(keyPrefix, resource, limitName, property, WILD_CARD_OPERATOR), action);
+  }
+
   private Map<LimitKey, Integer> getLimits(String keyPattern) {
     Map<LimitKey, Integer> counters = new HashMap<>();
+    forEachLimit(keyPattern, counters::put);
+    return Collections.unmodifiableMap(counters);
+  }
+
+  // Unlike KEYS, SCAN does not block the server while it walks a large keyspace. The values
+  // of each page are then fetched with a single MGET.
+  private void forEachLimit(String keyPattern, BiConsumer<LimitKey, Integer> action) {
+    ScanParams scanParams = new ScanParams().match(keyPattern).count(scanCount);
 
     try (Jedis jedis = jedisPool.getResource()) {
-      Set<String> keys = jedis.keys(keyPattern);
-      for (String key : keys) {
-        String valueAsString = jedis.get(key);
-        if (StringUtils.isNotEmpty(valueAsString)) {
-          int value = Integer.parseInt(valueAsString);
-
-          String[] keyComponents = StringUtils.split(key, KEY_SEPARATOR);
-
-          counters.put(
-              new LimitKey(
-                  keyComponents[1],
-                  keyComponents[2],
-                  keyComponents[3],
-                  true,
-                  Instant.parse(keyComponents[4]),
-                  keyComponents.length == 6
-                      ? Duration.parse(keyComponents[5])
-                      : Duration
-                          .ZERO), // Version pre alpha.3 are not storing the expiration within the key so we fallback to 0
-              value);
-        } else {
-          logger.info("Key '{}' has no value and will not be included in counters", key);
+      String cursor = ScanParams.SCAN_POINTER_START;
+      do {
+        ScanResult<String> page = jedis.scan(cursor, scanParams);
+        List<String> keys = page.getResult();
+        if (!keys.isEmpty()) {
+          List<String> values = jedis.mget(keys.toArray(new String[keys.size()]));
+          for (int i = 0; i < keys.size(); i++) {
+            acceptCounter(keys.get(i), values.get(i), action);
+          }
         }
+        cursor = page.getStringCursor();
+      } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+    }
+  }
+
+  /*package*/ static void acceptCounter(
+      String key, String valueAsString, BiConsumer<LimitKey, Integer> action) {
+    if (StringUtils.isNotEmpty(valueAsString)) {
+      LimitKey limitKey = parseRedisKey(key);
+      // The GCRA keys hold an arrival time, not a counter
+      if (!Instant.EPOCH.equals(limitKey.getBucket())) {
+        action.accept(limitKey, Integer.parseInt(valueAsString));
       }
+    } else {
+      logger.info("Key '{}' has no value and will not be included in counters", key);
     }
-    return Collections.unmodifiableMap(counters);
+  }
+
+  private static LimitKey parseRedisKey(String key) {
+    String[] keyComponents = StringUtils.split(key, KEY_SEPARATOR);
+
+    return new LimitKey(
+        keyComponents[1],
+        keyComponents[2],
+        keyComponents[3],
+        true,
+        Instant.parse(keyComponents[4]),
+        keyComponents.length == 6
+            ? Duration.parse(keyComponents[5])
+            : Duration
+                .ZERO); // Version pre alpha.3 are not storing the expiration within the key so we fallback to 0
   }
 
   @Override
   public void close() {
+    if (dispatcher != null) {
+      dispatcher.close();
+    }
     jedisPool.destroy();
   }
 
-  private String buildKeyPattern(String... keyComponents) {
+  /*package*/ static String buildKeyPattern(String... keyComponents) {
     return Arrays.asList(keyComponents)
         .stream()
         .map(RedisStorage::clean)
         .collect(Collectors.joining(KEY_SEPARATOR));
   }
 
-  private static final String clean(String keyComponent) {
-    return keyComponent.replace(KEY_SEPARATOR, KEY_SEPARATOR_SUBSTITUTE);
+  /*package*/ static String clean(String keyComponent) {
+    return keyComponent.replace(KEY_SEPARATOR.charAt(0), KEY_SEPARATOR_SUBSTITUTE.charAt(0));
   }
 
   public static final Builder builder() {
@@ -244,9 +428,14 @@ public class RedisStorage implements LimitUsageStorage {
   public static class Builder {
     JedisPool jedisPool;
     String keyPrefix;
+    int scanCount;
+    boolean dispatching;
+    int dispatcherThreadCount;
+    int maxPipelineSize;
 
     private Builder() {
       this.keyPrefix = RedisStorage.DEFAULT_PREFIX;
+      this.scanCount = RedisStorage.DEFAULT_SCAN_COUNT;
     }
 
     public void setJedisPool(JedisPool jedisPool) {
@@ -267,6 +456,35 @@ public class RedisStorage implements LimitUsageStorage {
       return this;
     }
 
+    /**
+     * @param scanCount The number of keys Redis should look at in each SCAN iteration
+     *                  when reading the current limit counters
+     */
+    public void setScanCount(int scanCount) {
+      this.scanCount = scanCount;
+    }
+
+    public Builder withScanCount(int scanCount) {
+      setScanCount(scanCount);
+      return this;
+    }
+
+    /**
+     * @param dispatcherThreadCount The number of I/O threads sending the scripts of the callers,
+     *                              each using one connection of the pool
+     * @param maxPipelineSize The maximum number of scripts sent in a single pipeline
+     */
+    public void setDispatcher(int dispatcherThreadCount, int maxPipelineSize) {
+      this.dispatching = true;
+      this.dispatcherThreadCount = dispatcherThreadCount;
+      this.maxPipelineSize = maxPipelineSize;
+    }
+
+    public Builder withDispatcher(int dispatcherThreadCount, int maxPipelineSize) {
+      setDispatcher(dispatcherThreadCount, maxPipelineSize);
+      return this;
+    }
+
     public RedisStorage build() {
       return new RedisStorage(this);
     }
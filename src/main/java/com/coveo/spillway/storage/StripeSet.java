@@ -0,0 +1,66 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.util.Arrays;
+
+/**
+ * The indexes of the stripes used by a call of the storages that keep their counters in
+ * stripes. They are kept sorted so every call locks its stripes in the same order, and calls
+ * sharing stripes can't deadlock.
+ *
+ * @since 2.1.2
+ */
+/*package*/ final class StripeSet {
+  private int[] indexes = new int[8];
+  private int size;
+
+  /*package*/ void clear() {
+    size = 0;
+  }
+
+  /*package*/ void add(int index) {
+    int position = size;
+    while (position > 0 && indexes[position - 1] > index) {
+      position--;
+    }
+    if (position > 0 && indexes[position - 1] == index) {
+      return;
+    }
+
+    if (size == indexes.length) {
+      indexes = Arrays.copyOf(indexes, size * 2);
+    }
+    System.arraycopy(indexes, position, indexes, position + 1, size - position);
+    indexes[position] = index;
+    size++;
+  }
+
+  /*package*/ int size() {
+    return size;
+  }
+
+  /*package*/ int get(int position) {
+    return indexes[position];
+  }
+}
@@ -0,0 +1,241 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage.utils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.coveo.spillway.Spillway;
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.LimitUsageStorage;
+
+/**
+ * Reusable container of the requests sent to the storage by a single {@link Spillway} call.
+ * <p>
+ * Unlike {@link AddAndGetRequest}, the requests are kept in arrays and are updated in place so a
+ * thread can evaluate its limits without allocating. The counters returned by the storage are
+ * written back in the batch at the position of their request.
+ * <p>
+ * A batch must only be used by one thread at a time, and the {@link LimitKey}s it exposes
+ * change with its content. Storages that keep a key must copy it.
+ *
+ * @see LimitUsageStorage#addAndGetIfWithinLimits(AddAndGetBatch)
+ *
+ * @since 2.1.2
+ */
+public class AddAndGetBatch {
+  private final LimitKey[] limitKeys;
+  private final long[] buckets;
+  private final long[] eventTimestamps;
+  private final int[] costs;
+  private final int[] limits;
+  private final int[] counters;
+  private int size;
+  // Only created for sliding windows
+  private LimitKey[] previousLimitKeys;
+
+  public AddAndGetBatch(int capacity) {
+    limitKeys = new LimitKey[capacity];
+    buckets = new long[capacity];
+    eventTimestamps = new long[capacity];
+    costs = new int[capacity];
+    limits = new int[capacity];
+    counters = new int[capacity];
+    for (int i = 0; i < capacity; i++) {
+      limitKeys[i] = new LimitKey(null, null, null, false, null, null);
+    }
+  }
+
+  /**
+   * Removes all the requests of the batch.
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Adds a request at the end of the batch.
+   *
+   * @param resource The resource name on which the limit is enforced
+   * @param limitName The name of the limit
+   * @param property The name of the property used in the limit
+   * @param distributed If the limit is going to be shared when using a cached storage
+   * @param expiration The duration of the limit before it is reset
+   * @param eventTimestamp The epoch millisecond at which the event was recorded
+   * @param cost The cost the query
+   * @param limit The max limit of the request
+   */
+  public void add(
+      String resource,
+      String limitName,
+      String property,
+      boolean distributed,
+      Duration expiration,
+      long eventTimestamp,
+      int cost,
+      int limit) {
+    add(
+        resource,
+        limitName,
+        property,
+        distributed,
+        expiration,
+        eventTimestamp,
+        cost,
+        limit,
+        LimitType.FIXED_WINDOW);
+  }
+
+  /**
+   * Adds a request at the end of the batch.
+   *
+   * @param resource The resource name on which the limit is enforced
+   * @param limitName The name of the limit
+   * @param property The name of the property used in the limit
+   * @param distributed If the limit is going to be shared when using a cached storage
+   * @param expiration The duration of the limit before it is reset
+   * @param eventTimestamp The epoch millisecond at which the event was recorded
+   * @param cost The cost the query
+   * @param limit The max limit of the request
+   * @param type How the calls are counted against the limit
+   */
+  public void add(
+      String resource,
+      String limitName,
+      String property,
+      boolean distributed,
+      Duration expiration,
+      long eventTimestamp,
+      int cost,
+      int limit,
+      LimitType type) {
+    LimitKey limitKey = limitKeys[size];
+    limitKey.setResource(resource);
+    limitKey.setLimitName(limitName);
+    limitKey.setProperty(property);
+    limitKey.setDistributed(distributed);
+    limitKey.setExpiration(expiration);
+    limitKey.setType(type);
+
+    // The bucket Instant only changes once per expiration, it is kept until then.
+    long bucket = LimitUtils.calculateBucket(eventTimestamp, expiration.toMillis(), type);
+    if (limitKey.getBucket() == null || buckets[size] != bucket) {
+      buckets[size] = bucket;
+      limitKey.setBucket(Instant.ofEpochMilli(bucket));
+    }
+
+    eventTimestamps[size] = eventTimestamp;
+    costs[size] = cost;
+    limits[size] = limit;
+    counters[size] = 0;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public LimitKey getLimitKey(int index) {
+    return limitKeys[index];
+  }
+
+  /**
+   * Returns the key of the bucket before the one of a request, which sliding windows also read.
+   * Like the other keys of the batch, it changes with the content of the batch.
+   *
+   * @param index The position of the request
+   * @return The {@link LimitKey} of the previous bucket
+   */
+  public LimitKey getPreviousLimitKey(int index) {
+    if (previousLimitKeys == null) {
+      previousLimitKeys = new LimitKey[limitKeys.length];
+    }
+    LimitKey previousLimitKey = previousLimitKeys[index];
+    if (previousLimitKey == null) {
+      previousLimitKey = new LimitKey(null, null, null, false, null, null);
+      previousLimitKeys[index] = previousLimitKey;
+    }
+
+    LimitKey limitKey = limitKeys[index];
+    previousLimitKey.setResource(limitKey.getResource());
+    previousLimitKey.setLimitName(limitKey.getLimitName());
+    previousLimitKey.setProperty(limitKey.getProperty());
+    previousLimitKey.setDistributed(limitKey.isDistributed());
+    previousLimitKey.setExpiration(limitKey.getExpiration());
+    previousLimitKey.setType(limitKey.getType());
+
+    long bucket = buckets[index] - limitKey.getExpiration().toMillis();
+    if (previousLimitKey.getBucket() == null
+        || previousLimitKey.getBucket().toEpochMilli() != bucket) {
+      previousLimitKey.setBucket(Instant.ofEpochMilli(bucket));
+    }
+    return previousLimitKey;
+  }
+
+  public long getEventTimestamp(int index) {
+    return eventTimestamps[index];
+  }
+
+  public int getCost(int index) {
+    return costs[index];
+  }
+
+  public int getLimit(int index) {
+    return limits[index];
+  }
+
+  public int getCounter(int index) {
+    return counters[index];
+  }
+
+  public void setCounter(int index, int counter) {
+    counters[index] = counter;
+  }
+
+  /**
+   * @return A copy of the batch as {@link AddAndGetRequest}s, for storages that work on requests
+   */
+  public List<AddAndGetRequest> toRequests() {
+    List<AddAndGetRequest> requests = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      LimitKey limitKey = limitKeys[i];
+      requests.add(
+          new AddAndGetRequest.Builder()
+              .withResource(limitKey.getResource())
+              .withLimitName(limitKey.getLimitName())
+              .withProperty(limitKey.getProperty())
+              .withDistributed(limitKey.isDistributed())
+              .withExpiration(limitKey.getExpiration())
+              .withEventTimestamp(Instant.ofEpochMilli(eventTimestamps[i]))
+              .withCost(costs[i])
+              .withLimit(limits[i])
+              .withLimitType(limitKey.getType())
+              .build());
+    }
+    return requests;
+  }
+}
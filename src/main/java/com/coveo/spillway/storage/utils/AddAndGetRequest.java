@@ -25,6 +25,7 @@ package com.coveo.spillway.storage.utils;
 import java.time.Duration;
 import java.time.Instant;
 
+import com.coveo.spillway.limit.LimitType;
 import com.coveo.spillway.limit.utils.LimitUtils;
 
 /**
@@ -48,6 +49,7 @@ public class AddAndGetRequest {
   private Instant eventTimestamp;
   private int cost;
   private int limit;
+  private LimitType limitType;
 
   private Instant bucket;
 
@@ -87,6 +89,10 @@ public class AddAndGetRequest {
     return limit;
   }
 
+  public LimitType getLimitType() {
+    return limitType;
+  }
+
   private AddAndGetRequest(Builder builder) {
     resource = builder.resource;
     limitName = builder.limitName;
@@ -96,7 +102,11 @@ public class AddAndGetRequest {
     eventTimestamp = builder.eventTimestamp;
     cost = builder.cost;
     limit = builder.limit;
-    bucket = LimitUtils.calculateBucket(eventTimestamp, expiration);
+    limitType = builder.limitType;
+    bucket =
+        Instant.ofEpochMilli(
+            LimitUtils.calculateBucket(
+                eventTimestamp.toEpochMilli(), expiration.toMillis(), limitType));
   }
 
   /**
@@ -122,6 +132,7 @@ public class AddAndGetRequest {
     private Instant eventTimestamp;
     private int cost = 1;
     private int limit;
+    private LimitType limitType = LimitType.FIXED_WINDOW;
 
     public Builder() {}
 
@@ -134,6 +145,7 @@ public class AddAndGetRequest {
       this.eventTimestamp = other.eventTimestamp;
       this.cost = other.cost;
       this.limit = other.limit;
+      this.limitType = other.limitType;
     }
 
     public Builder withResource(String val) {
@@ -176,6 +188,11 @@ public class AddAndGetRequest {
       return this;
     }
 
+    public Builder withLimitType(LimitType val) {
+      limitType = val;
+      return this;
+    }
+
     public AddAndGetRequest build() {
       return new AddAndGetRequest(this);
     }
@@ -190,6 +207,7 @@ public class AddAndGetRequest {
 
     if (cost != that.cost) return false;
     if (limit != that.limit) return false;
+    if (limitType != that.limitType) return false;
     if (resource != null ? !resource.equals(that.resource) : that.resource != null) return false;
     if (limitName != null ? !limitName.equals(that.limitName) : that.limitName != null)
       return false;
@@ -211,6 +229,7 @@ public class AddAndGetRequest {
     result = 31 * result + (eventTimestamp != null ? eventTimestamp.hashCode() : 0);
     result = 31 * result + cost;
     result = 31 * result + limit;
+    result = 31 * result + (limitType != null ? limitType.hashCode() : 0);
     result = 31 * result + (bucket != null ? bucket.hashCode() : 0);
     return result;
   }
@@ -237,6 +256,8 @@ public class AddAndGetRequest {
         + bucket
         + ", limit="
         + limit
+        + ", limitType="
+        + limitType
         + '}';
   }
 }
@@ -0,0 +1,67 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.coveo.spillway.limit.LimitType;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.InMemoryStorage;
+
+/**
+ * Container of the theoretical arrival time used in the {@link InMemoryStorage}
+ * to evaluate the {@link LimitType#GCRA} limits.
+ *
+ * @since 2.1.2
+ */
+public class ArrivalTime {
+  private final AtomicLong arrivalMicros = new AtomicLong(0);
+
+  /**
+   * Moves the arrival time by the cost, unless the resulting counter is above the maximum.
+   *
+   * @param cost The cost of the query, negative to give units back
+   * @param nowMicros The epoch microsecond of the event
+   * @param intervalMicros The interval returned by {@link LimitUtils#calculateEmissionInterval}
+   * @param maxCounter The highest counter for which the cost is added
+   * @return The counter including the cost, whether it was added or not
+   */
+  public int addAndGet(int cost, long nowMicros, long intervalMicros, int maxCounter) {
+    long current;
+    long next;
+    int counter;
+    do {
+      current = arrivalMicros.get();
+      next = Math.max(current, nowMicros) + cost * intervalMicros;
+      counter = LimitUtils.calculateArrivalCounter(next, nowMicros, intervalMicros);
+      if (cost == 0 || counter > maxCounter) {
+        return counter;
+      }
+    } while (!arrivalMicros.compareAndSet(current, next));
+    return counter;
+  }
+
+  public long getArrivalMicros() {
+    return arrivalMicros.get();
+  }
+}
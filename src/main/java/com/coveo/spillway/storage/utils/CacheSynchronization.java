@@ -22,11 +22,17 @@
  */
 package com.coveo.spillway.storage.utils;
 
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TimerTask;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
-import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,12 +52,63 @@ import com.coveo.spillway.storage.LimitUsageStorage;
 public class CacheSynchronization extends TimerTask {
   private static final Logger logger = LoggerFactory.getLogger(CacheSynchronization.class);
 
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+
   private InMemoryStorage cache;
   private LimitUsageStorage storage;
+  private int batchSize;
+  private Duration timeBetweenIdleRefreshes;
+  private Clock clock;
+  private Instant nextIdleRefresh = Instant.MIN;
 
   public CacheSynchronization(InMemoryStorage cache, LimitUsageStorage storage) {
+    this(cache, storage, DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * @param cache The local cache to synchronize
+   * @param storage The distributed storage
+   * @param batchSize The maximum number of keys sent to the storage in a single call
+   */
+  public CacheSynchronization(InMemoryStorage cache, LimitUsageStorage storage, int batchSize) {
+    this(cache, storage, batchSize, Duration.ZERO);
+  }
+
+  /**
+   * Creates a synchronization that only sends the keys modified since the previous pass.
+   * Every key, including the idle ones, is refreshed from the storage at a slower cadence.
+   *
+   * @param cache The local cache to synchronize
+   * @param storage The distributed storage
+   * @param batchSize The maximum number of keys sent to the storage in a single call
+   * @param timeBetweenIdleRefreshes The time between two passes over every key, every pass
+   *                                 goes over every key if zero
+   */
+  public CacheSynchronization(
+      InMemoryStorage cache,
+      LimitUsageStorage storage,
+      int batchSize,
+      Duration timeBetweenIdleRefreshes) {
+    this(cache, storage, batchSize, timeBetweenIdleRefreshes, Clock.systemUTC());
+  }
+
+  /*package*/ CacheSynchronization(
+      InMemoryStorage cache,
+      LimitUsageStorage storage,
+      int batchSize,
+      Duration timeBetweenIdleRefreshes,
+      Clock clock) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("'batchSize' must be greater than zero");
+    }
     this.cache = cache;
     this.storage = storage;
+    this.batchSize = batchSize;
+    this.timeBetweenIdleRefreshes = timeBetweenIdleRefreshes;
+    this.clock = clock;
+
+    // The cache keeps the expired entries until their last usage is sent
+    cache.trackModifiedKeys();
   }
 
   public void init() {
@@ -66,36 +123,67 @@ public class CacheSynchronization extends TimerTask {
 
   @Override
   public void run() {
-    cache.applyOnEach(
-        instantEntry -> {
-          try {
-            if (instantEntry.getKey().isDistributed()) {
-              applyOnEachEntry(instantEntry);
+    // The distributed entries are sent in batches so a pass takes one call per batch
+    // instead of one call per key.
+    List<Entry<LimitKey, Capacity>> batch = new ArrayList<>(batchSize);
+    Consumer<Entry<LimitKey, Capacity>> addToBatch =
+        entry -> {
+          if (entry.getKey().isDistributed()) {
+            batch.add(entry);
+            if (batch.size() >= batchSize) {
+              synchronize(batch);
+              batch.clear();
             }
-          } catch (Exception e) {
-            logger.warn("Exception during synchronization, ignoring.", e);
           }
-        });
+        };
+
+    // Idle keys have no delta to send, they are only read again from time to time to pick up
+    // the usage of the other instances.
+    Instant now = clock.instant();
+    // The last batch is sent before the cache removes the expired entries
+    if (timeBetweenIdleRefreshes.isZero() || !now.isBefore(nextIdleRefresh)) {
+      nextIdleRefresh = now.plus(timeBetweenIdleRefreshes);
+      cache.applyOnEach(addToBatch, () -> synchronize(batch));
+    } else {
+      cache.applyOnEachModified(addToBatch, () -> synchronize(batch));
+    }
   }
 
-  private void applyOnEachEntry(Entry<LimitKey, Capacity> entry) {
-    LimitKey limitKey = entry.getKey();
+  private void synchronize(List<Entry<LimitKey, Capacity>> entries) {
+    if (entries.isEmpty()) {
+      return;
+    }
 
-    int cost = entry.getValue().getDelta();
+    try {
+      int[] costs = new int[entries.size()];
+      List<AddAndGetRequest> requests = new ArrayList<>(entries.size());
+      for (int i = 0; i < entries.size(); i++) {
+        LimitKey limitKey = entries.get(i).getKey();
+        costs[i] = entries.get(i).getValue().getDelta();
+        requests.add(
+            new AddAndGetRequest.Builder()
+                .withResource(limitKey.getResource())
+                .withLimitName(limitKey.getLimitName())
+                .withProperty(limitKey.getProperty())
+                .withExpiration(limitKey.getExpiration())
+                .withEventTimestamp(limitKey.getBucket())
+                .withCost(costs[i])
+                .build());
+      }
 
-    AddAndGetRequest request =
-        new AddAndGetRequest.Builder()
-            .withResource(limitKey.getResource())
-            .withLimitName(limitKey.getLimitName())
-            .withProperty(limitKey.getProperty())
-            .withExpiration(limitKey.getExpiration())
-            .withEventTimestamp(limitKey.getBucket())
-            .withCost(cost)
-            .build();
+      Map<LimitKey, Integer> responses = storage.addAndGet(requests);
 
-    Pair<LimitKey, Integer> reponse = storage.addAndGet(request);
+      for (int i = 0; i < entries.size(); i++) {
+        Capacity capacity = entries.get(i).getValue();
+        capacity.substractAndGet(costs[i]);
 
-    entry.getValue().substractAndGet(cost);
-    entry.getValue().setTotal(reponse.getValue());
+        Integer total = responses.get(entries.get(i).getKey());
+        if (total != null) {
+          capacity.setTotal(total);
+        }
+      }
+    } catch (Exception e) {
+      logger.warn("Exception during synchronization, ignoring.", e);
+    }
   }
 }
@@ -47,24 +47,24 @@ public class Capacity {
     this.total = new AtomicInteger(total);
   }
 
-  public Integer addAndGetWithLimit(int cost, int limit) {
+  public int addAndGetWithLimit(int cost, int limit) {
     return delta.accumulateAndGet(cost, (left, right) -> left > limit ? left : left + right)
         + total.get();
   }
 
-  public Integer addAndGet(int cost) {
+  public int addAndGet(int cost) {
     return delta.addAndGet(cost) + total.get();
   }
 
-  public Integer substractAndGet(int cost) {
+  public int substractAndGet(int cost) {
     return delta.addAndGet(-cost) + total.get();
   }
 
-  public Integer get() {
+  public int get() {
     return delta.get() + total.get();
   }
 
-  public Integer getDelta() {
+  public int getDelta() {
     return delta.get();
   }
 
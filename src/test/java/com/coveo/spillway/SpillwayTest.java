@@ -6,6 +6,7 @@ import com.coveo.spillway.limit.Limit;
 import com.coveo.spillway.limit.LimitBuilder;
 import com.coveo.spillway.limit.LimitDefinition;
 import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
 import com.coveo.spillway.limit.override.LimitOverride;
 import com.coveo.spillway.limit.override.LimitOverrideBuilder;
 import com.coveo.spillway.storage.InMemoryStorage;
@@ -24,6 +25,8 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
@@ -85,7 +88,7 @@ public class SpillwayTest {
     mockedStorage = mock(LimitUsageStorage.class);
     mockedFactory = new SpillwayFactory(mockedStorage);
 
-    when(clock.instant()).thenReturn(Instant.now());
+    when(clock.millis()).thenReturn(Instant.now().toEpochMilli());
   }
 
   @Test
@@ -207,7 +210,7 @@ public class SpillwayTest {
     assertThat(spillway.tryCall(john)).isFalse();
 
     // Fake sleep two seconds to ensure that we bump to another bucket
-    when(clock.instant()).thenReturn(Instant.now().plusSeconds(2));
+    when(clock.millis()).thenReturn(Instant.now().plusSeconds(2).toEpochMilli());
 
     assertThat(spillway.tryCall(john)).isTrue();
   }
@@ -225,6 +228,27 @@ public class SpillwayTest {
     assertThat(counters.values()).containsExactly(0);
   }
 
+  @Test
+  public void exceededLimitDoesNotIncrementTheOtherLimits() throws Exception {
+    Limit<User> ipLimit =
+        LimitBuilder.of("perIp", User::getIp).to(1).per(Duration.ofHours(1)).build();
+    Limit<User> userLimit =
+        LimitBuilder.of("perUser", User::getName).to(5).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway = inMemoryFactory.enforce("testResource", ipLimit, userLimit);
+
+    assertThat(spillway.tryCall(gina)).isTrue();
+    assertThat(spillway.tryCall(john)).isFalse(); // John is on Gina's IP.
+
+    Map<LimitKey, Integer> counters = inMemoryStorage.getCurrentLimitCounters("testResource");
+    for (Map.Entry<LimitKey, Integer> counter : counters.entrySet()) {
+      if (counter.getKey().getProperty().equals(john.getName())) {
+        assertThat(counter.getValue()).isEqualTo(0);
+      } else {
+        assertThat(counter.getValue()).isEqualTo(1);
+      }
+    }
+  }
+
   @Test
   public void canGetCurrentLimitStatus() throws Exception {
     Limit<User> userLimit =
@@ -343,7 +367,7 @@ public class SpillwayTest {
 
   @Test
   public void triggersAreIgnoreIfTheStorageReturnsAnIncoherentResponse() throws Exception {
-    when(mockedStorage.addAndGet(anyListOf(AddAndGetRequest.class)))
+    when(mockedStorage.addAndGetIfWithinLimits(anyListOf(AddAndGetRequest.class)))
         .thenReturn(
             ImmutableMap.of(
                 mock(LimitKey.class), 1, mock(LimitKey.class), 2, mock(LimitKey.class), 3));
@@ -395,7 +419,7 @@ public class SpillwayTest {
     assertThat(spillway.tryCall(john, 1)).isFalse();
 
     // Fake sleep two seconds to ensure that we bump to another bucket
-    when(clock.instant()).thenReturn(Instant.now().plusSeconds(2));
+    when(clock.millis()).thenReturn(Instant.now().plusSeconds(2).toEpochMilli());
 
     assertThat(spillway.tryCall(john, A_CAPACITY)).isTrue();
   }
@@ -452,6 +476,33 @@ public class SpillwayTest {
     assertThat(spillway.tryCall(john, A_SMALLER_CAPACITY + 10)).isFalse();
   }
 
+  @Test(expected = IllegalArgumentException.class)
+  public void distributedGcraLimitsAreRefusedByStoragesKeepingThemLocal() throws Exception {
+    when(mockedStorage.isSharingGcraKeys()).thenReturn(false);
+    Limit<User> limit1 =
+        LimitBuilder.of("perUser", User::getName)
+            .to(2)
+            .per(Duration.ofHours(1))
+            .withLimitType(LimitType.GCRA)
+            .build();
+
+    mockedFactory.enforce("testResource", limit1);
+  }
+
+  @Test
+  public void localGcraLimitsAreAcceptedByStoragesKeepingThemLocal() throws Exception {
+    when(mockedStorage.isSharingGcraKeys()).thenReturn(false);
+    Limit<User> limit1 =
+        LimitBuilder.of("perUser", User::getName)
+            .to(2)
+            .per(Duration.ofHours(1))
+            .withLimitType(LimitType.GCRA)
+            .withDistributed(false)
+            .build();
+
+    assertThat(mockedFactory.enforce("testResource", limit1)).isNotNull();
+  }
+
   @Test(expected = IllegalArgumentException.class)
   public void positiveCostOnlyCall() throws Exception {
     Limit<User> limit1 =
@@ -528,4 +579,37 @@ public class SpillwayTest {
 
     verify(callback, never()).trigger(userLimit.getDefinition(), john);
   }
+
+  @Test
+  public void tryCallAsyncCompletesImmediatelyWithALocalStorage() throws Exception {
+    Limit<User> limit1 =
+        LimitBuilder.of("perUser", User::getName).to(2).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway = inMemoryFactory.enforce("testResource", limit1);
+
+    CompletableFuture<Boolean> first = spillway.tryCallAsync(john);
+    CompletableFuture<Boolean> second = spillway.tryCallAsync(john);
+    CompletableFuture<Boolean> third = spillway.tryCallAsync(john);
+
+    assertThat(first.isDone()).isTrue();
+    assertThat(first.get()).isTrue();
+    assertThat(second.get()).isTrue();
+    assertThat(third.get()).isFalse();
+  }
+
+  @Test
+  public void callAsyncFailsWhenALimitIsExceeded() throws Exception {
+    Limit<User> limit1 =
+        LimitBuilder.of("perUser", User::getName).to(1).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway = inMemoryFactory.enforce("testResource", limit1);
+
+    spillway.callAsync(john).get();
+    try {
+      spillway.callAsync(john).get();
+      fail();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(SpillwayLimitExceededException.class);
+      assertThat(((SpillwayLimitExceededException) e.getCause()).getExceededLimits())
+          .containsExactly(limit1.getDefinition());
+    }
+  }
 }
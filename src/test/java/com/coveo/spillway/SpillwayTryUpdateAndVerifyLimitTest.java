@@ -85,7 +85,7 @@ public class SpillwayTryUpdateAndVerifyLimitTest {
     mockedStorage = mock(LimitUsageStorage.class);
     mockedFactory = new SpillwayFactory(mockedStorage);
 
-    when(clock.instant()).thenReturn(Instant.now());
+    when(clock.millis()).thenReturn(Instant.now().toEpochMilli());
   }
 
   @Test
@@ -208,7 +208,7 @@ public class SpillwayTryUpdateAndVerifyLimitTest {
     assertThat(spillway.tryUpdateAndVerifyLimit(john)).isFalse();
 
     // Fake sleep two seconds to ensure that we bump to another bucket
-    when(clock.instant()).thenReturn(Instant.now().plusSeconds(2));
+    when(clock.millis()).thenReturn(Instant.now().plusSeconds(2).toEpochMilli());
 
     assertThat(spillway.tryUpdateAndVerifyLimit(john)).isTrue();
   }
@@ -396,7 +396,7 @@ public class SpillwayTryUpdateAndVerifyLimitTest {
     assertThat(spillway.tryUpdateAndVerifyLimit(john, 1)).isFalse();
 
     // Fake sleep two seconds to ensure that we bump to another bucket
-    when(clock.instant()).thenReturn(Instant.now().plusSeconds(2));
+    when(clock.millis()).thenReturn(Instant.now().plusSeconds(2).toEpochMilli());
 
     assertThat(spillway.tryUpdateAndVerifyLimit(john, A_CAPACITY)).isTrue();
   }
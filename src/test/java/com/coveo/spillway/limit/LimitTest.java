@@ -26,6 +26,8 @@ import org.junit.Test;
 
 import com.coveo.spillway.limit.Limit;
 import com.coveo.spillway.limit.LimitDefinition;
+import com.coveo.spillway.limit.override.LimitOverride;
+import com.coveo.spillway.limit.override.LimitOverrideBuilder;
 
 import java.time.Duration;
 import java.util.ArrayList;
@@ -45,4 +47,38 @@ public class LimitTest {
 
     assertThat(limit.toString()).isEqualTo(limitDefinition.toString());
   }
+
+  @Test
+  public void overridesAreFoundByProperty() {
+    LimitOverride override =
+        LimitOverrideBuilder.of("overridden").to(10).per(Duration.ofMinutes(1)).build();
+    Limit<String> limit =
+        LimitBuilder.of("potato")
+            .to(5)
+            .per(Duration.ofDays(100))
+            .withLimitOverride(override)
+            .build();
+
+    assertThat(limit.getCapacity("overridden")).isEqualTo(10);
+    assertThat(limit.getExpiration("overridden")).isEqualTo(Duration.ofMinutes(1));
+    assertThat(limit.getDefinition("overridden").getName()).isEqualTo("potato");
+    assertThat(limit.getLimitTriggers("overridden")).isSameAs(override.getLimitTriggers());
+    assertThat(limit.getCapacity("notOverridden")).isEqualTo(5);
+    assertThat(limit.getDefinition("notOverridden")).isSameAs(limit.getDefinition());
+  }
+
+  @Test
+  public void overridesHaveTheTypeOfTheLimit() {
+    Limit<String> limit =
+        LimitBuilder.of("potato")
+            .to(5)
+            .per(Duration.ofDays(100))
+            .withLimitType(LimitType.SLIDING_WINDOW)
+            .withLimitOverride(
+                LimitOverrideBuilder.of("overridden").to(10).per(Duration.ofMinutes(1)).build())
+            .build();
+
+    assertThat(limit.getDefinition().getType()).isEqualTo(LimitType.SLIDING_WINDOW);
+    assertThat(limit.getDefinition("overridden").getType()).isEqualTo(LimitType.SLIDING_WINDOW);
+  }
 }
@@ -13,7 +13,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
-import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -27,6 +26,7 @@ import org.mockito.runners.MockitoJUnitRunner;
 import com.coveo.spillway.limit.LimitKey;
 import com.coveo.spillway.storage.utils.AddAndGetRequest;
 import com.coveo.spillway.storage.utils.CacheSynchronization;
+import com.google.common.collect.ImmutableMap;
 
 @RunWith(MockitoJUnitRunner.class)
 public class AsyncBatchLimitUsageStorageTest {
@@ -121,12 +121,14 @@ public class AsyncBatchLimitUsageStorageTest {
   //sleep must be after the second debugCacheLimitCounters snapshot.
   @Test
   public void testSynchronizeIsNotAffectingProcess() throws Exception {
-    when(storageMock.addAndGet(any(AddAndGetRequest.class)))
+    when(storageMock.addAndGet(anyCollectionOf(AddAndGetRequest.class)))
         .then(
             invocation -> {
               Thread.sleep(MOCKED_STORAGE_SLEEP);
-              return ImmutablePair.of(
-                  LimitKey.fromRequest(invocation.getArgumentAt(0, AddAndGetRequest.class)), 100);
+              AddAndGetRequest request =
+                  (AddAndGetRequest)
+                      invocation.getArgumentAt(0, Collection.class).iterator().next();
+              return ImmutableMap.of(LimitKey.fromRequest(request), 100);
             });
 
     asyncBatchLimitUsageStorage =
@@ -161,13 +163,27 @@ public class AsyncBatchLimitUsageStorageTest {
         new SimpleImmutableEntry<>(
             Instant.now(), asyncBatchLimitUsageStorage.debugCacheLimitCounters()));
 
-    verify(storageMock).addAndGet(any(AddAndGetRequest.class));
+    verify(storageMock).addAndGet(anyCollectionOf(AddAndGetRequest.class));
 
     assertThat(history.get(0).getValue()).hasSize(1);
     assertThat(history.get(1).getValue()).isEmpty();
     assertThat(history.get(2).getValue()).isEmpty();
   }
 
+  @Test
+  public void storageCanBeBuiltWithIdleRefreshes() throws Exception {
+    asyncBatchLimitUsageStorage =
+        AsyncBatchLimitUsageStorage.builder()
+            .withWrappedLimitUsageStorage(storageMock)
+            .withTimeBetweenSynchronizations(Duration.ofDays(1))
+            .withTimeBetweenIdleRefreshes(Duration.ofDays(10))
+            .build();
+
+    asyncBatchLimitUsageStorage.addAndGet(givenDefaultAddAndGetRequest(1));
+
+    assertThat(asyncBatchLimitUsageStorage.debugCacheLimitCounters()).hasSize(1);
+  }
+
   private AddAndGetRequest givenDefaultAddAndGetRequest(int cost) {
     return givenAddAndGetRequest(
         RESOURCE, LIMITNAME, PROPERTY, true, EXPIRATION, Instant.now(), cost);
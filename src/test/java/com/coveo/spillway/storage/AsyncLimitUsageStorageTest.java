@@ -24,20 +24,32 @@ package com.coveo.spillway.storage;
 
 import com.coveo.spillway.limit.LimitKey;
 import com.coveo.spillway.storage.AsyncLimitUsageStorage;
+import com.coveo.spillway.storage.AsyncLimitUsageStorage.OverflowPolicy;
 import com.coveo.spillway.storage.utils.AddAndGetRequest;
 import com.google.common.collect.ImmutableMap;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class AsyncLimitUsageStorageTest {
@@ -90,4 +102,165 @@ public class AsyncLimitUsageStorageTest {
     counter = asyncStorage.addAndGet(request).getValue();
     assertThat(counter).isEqualTo(MOCKED_STORAGE_COUNTER + 1);
   }
+
+  @Test
+  public void microBatchesMergeTheCostsOfTheSameLimit() throws Exception {
+    LimitUsageStorage wrappedStorage = mock(LimitUsageStorage.class);
+    when(wrappedStorage.addAndGet(anyCollectionOf(AddAndGetRequest.class)))
+        .thenReturn(ImmutableMap.of(LimitKey.fromRequest(request), MOCKED_STORAGE_COUNTER));
+    AsyncLimitUsageStorage batchingStorage =
+        new AsyncLimitUsageStorage(wrappedStorage, 10, Duration.ofMillis(MOCKED_STORAGE_SLEEP));
+
+    for (int i = 0; i < 3; i++) {
+      batchingStorage.addAndGet(request);
+    }
+    batchingStorage.shutdownStorage();
+    batchingStorage.awaitTermination(Duration.ofSeconds(1));
+
+    ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+    verify(wrappedStorage).addAndGet(captor.capture());
+    assertThat(captor.getValue()).hasSize(1);
+    assertThat(((AddAndGetRequest) captor.getValue().iterator().next()).getCost()).isEqualTo(3);
+  }
+
+  @Test
+  public void requestsAreDroppedWhenTheQueueIsFull() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    AsyncLimitUsageStorage boundedStorage =
+        givenBlockedStorage(OverflowPolicy.DROP, new AtomicInteger(), release);
+
+    for (int i = 0; i < 3; i++) {
+      boundedStorage.addAndGet(request);
+    }
+
+    assertThat(boundedStorage.getDroppedRequests()).isEqualTo(1);
+    assertThat(boundedStorage.getQueueDepth()).isEqualTo(1);
+    release.countDown();
+  }
+
+  @Test
+  public void overflowingRequestsAreMergedAndSentLater() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    LimitUsageStorage wrappedStorage = givenBlockingStorage(new AtomicInteger(), release);
+    AsyncLimitUsageStorage boundedStorage =
+        givenBoundedStorage(wrappedStorage, OverflowPolicy.MERGE);
+
+    for (int i = 0; i < 4; i++) {
+      boundedStorage.addAndGet(request);
+    }
+    release.countDown();
+    boundedStorage.shutdownStorage();
+    boundedStorage.awaitTermination(Duration.ofSeconds(1));
+
+    ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+    verify(wrappedStorage, times(3)).addAndGet(captor.capture());
+    List<Integer> costs = new ArrayList<>();
+    for (Collection<?> requests : captor.getAllValues()) {
+      costs.add(((AddAndGetRequest) requests.iterator().next()).getCost());
+    }
+    assertThat(costs).containsExactly(1, 2, 1);
+    assertThat(boundedStorage.getDroppedRequests()).isEqualTo(0);
+  }
+
+  @Test
+  public void overflowingRequestsCanRunInline() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger calls = new AtomicInteger();
+    AsyncLimitUsageStorage boundedStorage =
+        givenBlockedStorage(OverflowPolicy.RUN_INLINE, calls, release);
+
+    boundedStorage.addAndGet(request);
+    while (calls.get() == 0) {
+      Thread.sleep(1);
+    }
+    boundedStorage.addAndGet(request);
+    boundedStorage.addAndGet(request);
+
+    // The first call is blocked in the storage thread, the second is queued and the third
+    // was sent by this thread.
+    assertThat(calls.get()).isEqualTo(2);
+    release.countDown();
+  }
+
+  @Test
+  public void callsFarBelowTheLimitAreServedFromTheCache() {
+    LimitUsageStorage wrappedStorage = mock(LimitUsageStorage.class);
+    AsyncLimitUsageStorage fastStorage = givenFastStorage(wrappedStorage);
+
+    Map<LimitKey, Integer> counters =
+        fastStorage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(10, 100)));
+
+    assertThat(counters.values()).containsExactly(10);
+    verify(wrappedStorage, never())
+        .addAndGetIfWithinLimits(anyCollectionOf(AddAndGetRequest.class));
+  }
+
+  @Test
+  public void callsNearTheLimitAreConfirmedSynchronously() {
+    LimitUsageStorage wrappedStorage = mock(LimitUsageStorage.class);
+    when(wrappedStorage.addAndGetIfWithinLimits(anyCollectionOf(AddAndGetRequest.class)))
+        .thenReturn(ImmutableMap.of(LimitKey.fromRequest(request), 95));
+    AsyncLimitUsageStorage fastStorage = givenFastStorage(wrappedStorage);
+
+    Map<LimitKey, Integer> counters =
+        fastStorage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(60, 100)));
+
+    assertThat(counters.values()).containsExactly(95);
+    verify(wrappedStorage).addAndGetIfWithinLimits(anyCollectionOf(AddAndGetRequest.class));
+  }
+
+  @Test
+  public void callsRefusedByTheWrappedStorageAreNotCached() {
+    LimitUsageStorage wrappedStorage = mock(LimitUsageStorage.class);
+    when(wrappedStorage.addAndGetIfWithinLimits(anyCollectionOf(AddAndGetRequest.class)))
+        .thenReturn(ImmutableMap.of(LimitKey.fromRequest(request), 101));
+    AsyncLimitUsageStorage fastStorage = givenFastStorage(wrappedStorage);
+
+    Map<LimitKey, Integer> refused =
+        fastStorage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(60, 100)));
+    Map<LimitKey, Integer> counters =
+        fastStorage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(1, 100)));
+
+    assertThat(refused.values()).containsExactly(101);
+    assertThat(counters.values()).containsExactly(42);
+  }
+
+  private AsyncLimitUsageStorage givenFastStorage(LimitUsageStorage wrappedStorage) {
+    return AsyncLimitUsageStorage.builder()
+        .withWrappedLimitUsageStorage(wrappedStorage)
+        .withFastPath(0.5)
+        .build();
+  }
+
+  private AddAndGetRequest givenRequest(int cost, int limit) {
+    return new AddAndGetRequest.Builder(request).withCost(cost).withLimit(limit).build();
+  }
+
+  private AsyncLimitUsageStorage givenBlockedStorage(
+      OverflowPolicy overflowPolicy, AtomicInteger calls, CountDownLatch release) {
+    return givenBoundedStorage(givenBlockingStorage(calls, release), overflowPolicy);
+  }
+
+  private AsyncLimitUsageStorage givenBoundedStorage(
+      LimitUsageStorage wrappedStorage, OverflowPolicy overflowPolicy) {
+    return AsyncLimitUsageStorage.builder()
+        .withWrappedLimitUsageStorage(wrappedStorage)
+        .withQueueCapacity(1)
+        .withOverflowPolicy(overflowPolicy)
+        .build();
+  }
+
+  // Only the first call blocks, until the latch is released
+  private LimitUsageStorage givenBlockingStorage(AtomicInteger calls, CountDownLatch release) {
+    LimitUsageStorage wrappedStorage = mock(LimitUsageStorage.class);
+    when(wrappedStorage.addAndGet(anyCollectionOf(AddAndGetRequest.class)))
+        .then(
+            invocation -> {
+              if (calls.incrementAndGet() == 1) {
+                release.await();
+              }
+              return ImmutableMap.of(LimitKey.fromRequest(request), MOCKED_STORAGE_COUNTER);
+            });
+    return wrappedStorage;
+  }
 }
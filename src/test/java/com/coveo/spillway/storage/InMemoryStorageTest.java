@@ -30,11 +30,23 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+import com.coveo.spillway.storage.utils.OverrideKeyRequest;
 
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.*;
@@ -57,7 +69,7 @@ public class InMemoryStorageTest {
 
   @Before
   public void setup() {
-    when(clock.instant()).thenReturn(Instant.now());
+    when(clock.millis()).thenReturn(Instant.now().toEpochMilli());
   }
 
   @Test
@@ -124,8 +136,301 @@ public class InMemoryStorageTest {
     assertThat(storage.getCurrentLimitCounters()).hasSize(1);
 
     // Fake sleep two seconds to ensure that we bump to another bucket
-    when(clock.instant()).thenReturn(Instant.now().plusSeconds(2));
+    when(clock.millis()).thenReturn(Instant.now().plusSeconds(2).toEpochMilli());
 
     assertThat(storage.getCurrentLimitCounters()).isEmpty();
   }
+
+  @Test
+  public void onlyExpiredEntriesAreRemoved() {
+    Instant now = Instant.now();
+    storage.incrementAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, Duration.ofSeconds(2), now);
+    storage.incrementAndGet(RESOURCE1, LIMIT2, PROPERTY1, true, EXPIRATION, now);
+    storage.overrideKeys(
+        Arrays.asList(
+            new OverrideKeyRequest(
+                new LimitKey(RESOURCE2, LIMIT1, PROPERTY2, true, now, Duration.ofSeconds(2)), 10)));
+    assertThat(storage.map).hasSize(3);
+
+    // Fake sleep three seconds to ensure that both short buckets are over
+    when(clock.millis()).thenReturn(now.plusSeconds(3).toEpochMilli());
+    storage.incrementAndGet(RESOURCE1, LIMIT2, PROPERTY1, true, EXPIRATION, now);
+
+    assertThat(storage.map).hasSize(1);
+    assertThat(storage.map.keySet().iterator().next().getLimitName()).isEqualTo(LIMIT2);
+  }
+  @Test
+  public void aCallOnlyRemovesABoundedNumberOfExpiredEntries() {
+    Instant now = Instant.now();
+    int removalsPerCall = InMemoryStorage.MAX_EXPIRED_ENTRIES_PER_CALL;
+    int expiredEntries = removalsPerCall * 2 + 1;
+    for (int i = 0; i < expiredEntries; i++) {
+      storage.incrementAndGet(RESOURCE1, LIMIT1, "property" + i, true, Duration.ofSeconds(2), now);
+    }
+
+    when(clock.millis()).thenReturn(now.plusSeconds(3).toEpochMilli());
+    storage.incrementAndGet(RESOURCE1, LIMIT2, PROPERTY1, true, EXPIRATION, now);
+    assertThat(storage.map).hasSize(expiredEntries - removalsPerCall + 1);
+
+    storage.incrementAndGet(RESOURCE1, LIMIT2, PROPERTY1, true, EXPIRATION, now);
+    storage.incrementAndGet(RESOURCE1, LIMIT2, PROPERTY1, true, EXPIRATION, now);
+    assertThat(storage.map).hasSize(1);
+  }
+
+  @Test
+  public void listingTheCountersRemovesAllTheExpiredEntries() {
+    Instant now = Instant.now();
+    for (int i = 0; i < InMemoryStorage.MAX_EXPIRED_ENTRIES_PER_CALL * 2; i++) {
+      storage.incrementAndGet(RESOURCE1, LIMIT1, "property" + i, true, Duration.ofSeconds(2), now);
+    }
+
+    when(clock.millis()).thenReturn(now.plusSeconds(3).toEpochMilli());
+
+    assertThat(storage.getCurrentLimitCounters()).isEmpty();
+  }
+  @Test
+  public void expiredEntriesAreKeptUntilTheirLastModificationIsPassed() {
+    Instant now = Instant.now();
+    storage.trackModifiedKeys();
+    storage.incrementAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, Duration.ofSeconds(2), now);
+
+    when(clock.millis()).thenReturn(now.plusSeconds(3).toEpochMilli());
+    assertThat(storage.getCurrentLimitCounters()).hasSize(1);
+
+    List<LimitKey> passedKeys = new ArrayList<>();
+    storage.applyOnEachModified(entry -> passedKeys.add(entry.getKey()));
+
+    assertThat(passedKeys).hasSize(1);
+    assertThat(storage.getCurrentLimitCounters()).isEmpty();
+  }
+
+
+
+  @Test
+  public void addAndGetIfWithinLimitsAddsAllCostsWhenNoLimitIsExceeded() {
+    Map<LimitKey, Integer> result =
+        storage.addAndGetIfWithinLimits(
+            Arrays.asList(
+                givenRequest(LIMIT1, PROPERTY1, 2, 5), givenRequest(LIMIT2, PROPERTY2, 3, 5)));
+
+    assertThat(result.values()).containsExactly(2, 3);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1).values()).containsExactly(2, 3);
+  }
+
+  @Test
+  public void addAndGetIfWithinLimitsAddsNothingWhenALimitIsExceeded() {
+    storage.addAndGet(RESOURCE1, LIMIT2, PROPERTY2, true, EXPIRATION, TIMESTAMP, 4);
+
+    Map<LimitKey, Integer> result =
+        storage.addAndGetIfWithinLimits(
+            Arrays.asList(
+                givenRequest(LIMIT1, PROPERTY1, 2, 5), givenRequest(LIMIT2, PROPERTY2, 2, 5)));
+
+    assertThat(result.values()).containsExactly(2, 6);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT1).values()).doesNotContain(2);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT2).values()).containsExactly(4);
+  }
+  @Test
+  public void addAndGetIfWithinLimitsNeverRejectsACallBecauseOfAConcurrentOne() throws Exception {
+    int limit = 500;
+    AtomicInteger accepted = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < limit * 2; i++) {
+      executor.execute(
+          () -> {
+            Map<LimitKey, Integer> result =
+                storage.addAndGetIfWithinLimits(
+                    Arrays.asList(
+                        givenRequest(LIMIT1, PROPERTY1, 1, limit),
+                        givenRequest(LIMIT2, PROPERTY2, 1, limit * 2)));
+            if (result.values().stream().allMatch(value -> value <= limit)) {
+              accepted.incrementAndGet();
+            }
+          });
+    }
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+
+    assertThat(accepted.get()).isEqualTo(limit);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT1).values()).containsExactly(limit);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT2).values()).containsExactly(limit);
+  }
+
+
+  @Test
+  public void batchCountersAreWrittenByPosition() {
+    AddAndGetBatch batch = new AddAndGetBatch(2);
+    batch.add(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP.toEpochMilli(), 2, 5);
+    batch.add(RESOURCE1, LIMIT2, PROPERTY2, true, EXPIRATION, TIMESTAMP.toEpochMilli(), 3, 5);
+
+    assertThat(storage.addAndGetIfWithinLimits(batch)).isTrue();
+
+    assertThat(batch.getCounter(0)).isEqualTo(2);
+    assertThat(batch.getCounter(1)).isEqualTo(3);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1).values()).containsExactly(2, 3);
+  }
+
+  @Test
+  public void reusedBatchDoesNotChangeTheStoredKeys() {
+    AddAndGetBatch batch = new AddAndGetBatch(1);
+    batch.add(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP.toEpochMilli(), 2, 5);
+    storage.addAndGetIfWithinLimits(batch);
+
+    batch.clear();
+    batch.add(RESOURCE1, LIMIT1, PROPERTY2, true, EXPIRATION, TIMESTAMP.toEpochMilli(), 3, 5);
+    storage.addAndGetIfWithinLimits(batch);
+
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT1, PROPERTY1).values())
+        .containsExactly(2);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT1, PROPERTY2).values())
+        .containsExactly(3);
+  }
+
+  @Test
+  public void batchAddsNothingWhenALimitIsExceeded() {
+    storage.addAndGet(RESOURCE1, LIMIT2, PROPERTY2, true, EXPIRATION, TIMESTAMP, 4);
+
+    AddAndGetBatch batch = new AddAndGetBatch(2);
+    batch.add(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP.toEpochMilli(), 2, 5);
+    batch.add(RESOURCE1, LIMIT2, PROPERTY2, true, EXPIRATION, TIMESTAMP.toEpochMilli(), 2, 5);
+    storage.addAndGetIfWithinLimits(batch);
+
+    assertThat(batch.getCounter(1)).isEqualTo(6);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT1).values()).doesNotContain(2);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT2).values()).containsExactly(4);
+  }
+
+  @Test
+  public void slidingWindowsWeighThePreviousBucket() {
+    Instant bucket = LimitUtils.calculateBucket(TIMESTAMP, EXPIRATION);
+    storage.addAndGet(givenSlidingRequest(bucket.minus(EXPIRATION.dividedBy(2)), 10, 100));
+
+    int result =
+        storage
+            .addAndGet(givenSlidingRequest(bucket.plus(EXPIRATION.dividedBy(4)), 1, 100))
+            .getValue();
+
+    // A quarter of the current bucket has passed, so three quarters of the previous one count.
+    assertThat(result).isEqualTo(1 + 7);
+  }
+
+  @Test
+  public void slidingWindowsWeighThePreviousBucketInBatches() {
+    Instant bucket = LimitUtils.calculateBucket(TIMESTAMP, EXPIRATION);
+    storage.addAndGet(givenSlidingRequest(bucket.minus(EXPIRATION.dividedBy(2)), 10, 100));
+
+    AddAndGetBatch batch = new AddAndGetBatch(1);
+    long eventTimestamp = bucket.plus(EXPIRATION.dividedBy(4)).toEpochMilli();
+    batch.add(
+        RESOURCE1,
+        LIMIT1,
+        PROPERTY1,
+        true,
+        EXPIRATION,
+        eventTimestamp,
+        1,
+        8,
+        LimitType.SLIDING_WINDOW);
+    storage.addAndGetIfWithinLimits(batch);
+    assertThat(batch.getCounter(0)).isEqualTo(8);
+
+    batch.clear();
+    batch.add(
+        RESOURCE1,
+        LIMIT1,
+        PROPERTY1,
+        true,
+        EXPIRATION,
+        eventTimestamp,
+        1,
+        8,
+        LimitType.SLIDING_WINDOW);
+    storage.addAndGetIfWithinLimits(batch);
+    assertThat(batch.getCounter(0)).isEqualTo(9);
+    assertThat(
+            storage
+                .getCurrentLimitCounters(RESOURCE1, LIMIT1, PROPERTY1)
+                .get(new LimitKey(RESOURCE1, LIMIT1, PROPERTY1, true, bucket, EXPIRATION)))
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void gcraPacesTheCalls() {
+    Duration interval = EXPIRATION.dividedBy(4);
+
+    for (int i = 1; i <= 4; i++) {
+      Map<LimitKey, Integer> result =
+          storage.addAndGetIfWithinLimits(Arrays.asList(givenGcraRequest(TIMESTAMP, 1, 4)));
+      assertThat(result.values()).containsExactly(i);
+    }
+    Map<LimitKey, Integer> result =
+        storage.addAndGetIfWithinLimits(Arrays.asList(givenGcraRequest(TIMESTAMP, 1, 4)));
+    assertThat(result.values()).containsExactly(5);
+
+    // A single call is paid back after one interval, not the whole capacity.
+    result =
+        storage.addAndGetIfWithinLimits(
+            Arrays.asList(givenGcraRequest(TIMESTAMP.plus(interval), 1, 4)));
+    assertThat(result.values()).containsExactly(4);
+    result =
+        storage.addAndGetIfWithinLimits(
+            Arrays.asList(givenGcraRequest(TIMESTAMP.plus(interval), 1, 4)));
+    assertThat(result.values()).containsExactly(5);
+
+    result = storage.addAndGet(Arrays.asList(givenGcraRequest(TIMESTAMP.plus(EXPIRATION), 0, 4)));
+    assertThat(result.values()).containsExactly(1);
+    assertThat(storage.getCurrentLimitCounters()).isEmpty();
+  }
+
+  @Test
+  public void gcraRespectsTheLimitOfAddAndGetWithLimit() {
+    storage.addAndGet(Arrays.asList(givenGcraRequest(TIMESTAMP, 4, 4)));
+
+    Map<LimitKey, Integer> result =
+        storage.addAndGetWithLimit(Arrays.asList(givenGcraRequest(TIMESTAMP, 1, 4)));
+    assertThat(result.values()).containsExactly(5);
+    result = storage.addAndGetWithLimit(Arrays.asList(givenGcraRequest(TIMESTAMP, 1, 4)));
+    assertThat(result.values()).containsExactly(5);
+  }
+
+  private AddAndGetRequest givenRequest(String limitName, String property, int cost, int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE1)
+        .withLimitName(limitName)
+        .withProperty(property)
+        .withDistributed(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(TIMESTAMP)
+        .withCost(cost)
+        .withLimit(limit)
+        .build();
+  }
+
+  private AddAndGetRequest givenSlidingRequest(Instant eventTimestamp, int cost, int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE1)
+        .withLimitName(LIMIT1)
+        .withProperty(PROPERTY1)
+        .withDistributed(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(eventTimestamp)
+        .withCost(cost)
+        .withLimit(limit)
+        .withLimitType(LimitType.SLIDING_WINDOW)
+        .build();
+  }
+
+  private AddAndGetRequest givenGcraRequest(Instant eventTimestamp, int cost, int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE1)
+        .withLimitName(LIMIT1)
+        .withProperty(PROPERTY1)
+        .withDistributed(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(eventTimestamp)
+        .withCost(cost)
+        .withLimit(limit)
+        .withLimitType(LimitType.GCRA)
+        .build();
+  }
 }
@@ -0,0 +1,212 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class LeasingLimitUsageStorageTest {
+  private static final String RESOURCE = "TheResource";
+  private static final String PROPERTY = "TheProperty";
+  private static final String LIMITNAME = "TheLimit";
+  private static final Instant INSTANT = Instant.now();
+  private static final Duration EXPIRATION = Duration.ofHours(1);
+
+  private InMemoryStorage wrappedStorage;
+
+  @Before
+  public void setup() {
+    wrappedStorage = spy(new InMemoryStorage());
+  }
+
+  @Test
+  public void callsAreServedFromTheLease() {
+    LeasingLimitUsageStorage storage =
+        LeasingLimitUsageStorage.builder()
+            .withWrappedLimitUsageStorage(wrappedStorage)
+            .withMinLeaseSize(50)
+            .build();
+
+    Map<LimitKey, Integer> counters = null;
+    for (int i = 0; i < 10; i++) {
+      counters = storage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(100)));
+    }
+
+    assertThat(counters.values()).containsExactly(10);
+    assertThat(wrappedStorage.getCurrentLimitCounters().values()).containsExactly(50);
+    verify(wrappedStorage, times(1))
+        .addAndGetIfWithinLimits(anyCollectionOf(AddAndGetRequest.class));
+  }
+
+  @Test
+  public void instancesSharingAStorageNeverGoPastTheLimit() throws Exception {
+    LeasingLimitUsageStorage first =
+        LeasingLimitUsageStorage.builder()
+            .withWrappedLimitUsageStorage(wrappedStorage)
+            .withMinLeaseSize(4)
+            .build();
+    LeasingLimitUsageStorage second =
+        LeasingLimitUsageStorage.builder()
+            .withWrappedLimitUsageStorage(wrappedStorage)
+            .withMinLeaseSize(4)
+            .build();
+
+    int allowed = 0;
+    for (int i = 0; i < 20; i++) {
+      for (LeasingLimitUsageStorage storage : Arrays.asList(first, second)) {
+        Map<LimitKey, Integer> counters =
+            storage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(10)));
+        if (counters.values().iterator().next() <= 10) {
+          allowed++;
+        }
+      }
+    }
+
+    assertThat(allowed).isAtMost(10);
+    assertThat(allowed).isAtLeast(10 - 2 * 4);
+    assertThat(wrappedStorage.getCurrentLimitCounters().values().iterator().next()).isAtMost(10);
+  }
+
+  @Test
+  public void refusedBatchesGiveTheirUnitsBackToTheLease() {
+    LeasingLimitUsageStorage storage =
+        LeasingLimitUsageStorage.builder()
+            .withWrappedLimitUsageStorage(wrappedStorage)
+            .withMinLeaseSize(5)
+            .build();
+    AddAndGetRequest otherRequest =
+        new AddAndGetRequest.Builder(givenRequest(0)).withProperty(PROPERTY + 2).build();
+
+    Map<LimitKey, Integer> counters =
+        storage.addAndGetIfWithinLimits(Arrays.asList(givenRequest(10), otherRequest));
+
+    assertThat(counters.get(LimitKey.fromRequest(otherRequest))).isGreaterThan(0);
+    assertThat(
+            storage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(10))).values())
+        .containsExactly(1);
+  }
+
+  @Test(timeout = 5000)
+  public void aSlowReservationDoesNotBlockTheOtherCallers() throws Exception {
+    CountDownLatch reserving = new CountDownLatch(1);
+    CountDownLatch storageResponds = new CountDownLatch(1);
+    AtomicBoolean first = new AtomicBoolean(true);
+    doAnswer(
+            invocation -> {
+              if (first.getAndSet(false)) {
+                reserving.countDown();
+                storageResponds.await();
+              }
+              return invocation.callRealMethod();
+            })
+        .when(wrappedStorage)
+        .addAndGetIfWithinLimits(anyCollectionOf(AddAndGetRequest.class));
+    LeasingLimitUsageStorage storage =
+        LeasingLimitUsageStorage.builder()
+            .withWrappedLimitUsageStorage(wrappedStorage)
+            .withMinLeaseSize(50)
+            .build();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    Future<Map<LimitKey, Integer>> slowCall =
+        executor.submit(
+            () -> storage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(100))));
+    reserving.await();
+    Map<LimitKey, Integer> counters =
+        storage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(100)));
+    storageResponds.countDown();
+
+    assertThat(counters.values()).containsExactly(1);
+    assertThat(slowCall.get(5, TimeUnit.SECONDS).values().iterator().next()).isAtMost(100);
+    executor.shutdown();
+  }
+
+  @Test
+  public void leasesGrowWithTheLocalRate() {
+    LeasingLimitUsageStorage storage =
+        LeasingLimitUsageStorage.builder()
+            .withWrappedLimitUsageStorage(wrappedStorage)
+            .withLeaseDuration(Duration.ofHours(1))
+            .withMaxLeaseRatio(1)
+            .build();
+
+    for (int i = 0; i < 1000; i++) {
+      storage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(1_000_000)));
+    }
+
+    verify(wrappedStorage, atMost(10))
+        .addAndGetIfWithinLimits(anyCollectionOf(AddAndGetRequest.class));
+  }
+
+  @Test
+  public void unusedUnitsAreGivenBackOnClose() throws Exception {
+    LeasingLimitUsageStorage storage =
+        LeasingLimitUsageStorage.builder()
+            .withWrappedLimitUsageStorage(wrappedStorage)
+            .withMinLeaseSize(20)
+            .build();
+
+    for (int i = 0; i < 3; i++) {
+      storage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(100)));
+    }
+    storage.close();
+
+    assertThat(wrappedStorage.getCurrentLimitCounters().values()).containsExactly(3);
+  }
+
+  private AddAndGetRequest givenRequest(int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE)
+        .withProperty(PROPERTY)
+        .withLimitName(LIMITNAME)
+        .withDistributed(true)
+        .withEventTimestamp(INSTANT)
+        .withCost(1)
+        .withExpiration(EXPIRATION)
+        .withLimit(limit)
+        .build();
+  }
+}
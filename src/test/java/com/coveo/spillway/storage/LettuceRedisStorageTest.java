@@ -0,0 +1,173 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import static com.google.common.truth.Truth.*;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.embedded.RedisServer;
+
+/**
+ * Like the RedisStorageTest, these tests run against an embedded Redis server.
+ */
+public class LettuceRedisStorageTest {
+
+  private static final String RESOURCE1 = "someResource";
+  private static final String LIMIT1 = "someLimit";
+  private static final String LIMIT2 = "someOtherLimit";
+  private static final String PROPERTY1 = "someProperty";
+  private static final Duration EXPIRATION = Duration.ofHours(1);
+  private static final Instant TIMESTAMP = Instant.now();
+
+  private static final Logger logger = LoggerFactory.getLogger(LettuceRedisStorageTest.class);
+
+  private static RedisServer redisServer;
+  private static JedisPool jedis;
+  private static LettuceRedisStorage storage;
+  private static RedisStorage jedisStorage;
+
+  @SuppressWarnings("resource")
+  @BeforeClass
+  public static void startRedis() throws IOException {
+    try {
+      redisServer = new RedisServer(6390);
+    } catch (IOException e) {
+      logger.error("Failed to start Redis server. Is port 6390 available?");
+      throw e;
+    }
+    redisServer.start();
+    jedis = new JedisPool("localhost", 6390);
+    storage =
+        LettuceRedisStorage.builder()
+            .withRedisUri("redis://localhost:6390")
+            .withConnectionCount(2)
+            .build();
+    jedisStorage = RedisStorage.builder().withJedisPool(new JedisPool("localhost", 6390)).build();
+  }
+
+  @AfterClass
+  public static void stopRedis() {
+    storage.close();
+    jedisStorage.close();
+    redisServer.stop();
+  }
+
+  @Before
+  public void flushDataInRedis() {
+    try (Jedis resource = jedis.getResource()) {
+      resource.flushDB();
+    }
+  }
+
+  @Test
+  public void canIncrementMultipleTimes() {
+    for (int i = 0; i < 10; i++) {
+      int result =
+          storage
+              .incrementAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP)
+              .getValue();
+      assertThat(result).isEqualTo(i + 1);
+    }
+  }
+
+  @Test
+  public void countersAreSharedWithTheRedisStorage() {
+    storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 5);
+    int result =
+        jedisStorage
+            .addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 1)
+            .getValue();
+
+    assertThat(result).isEqualTo(6);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT1).values()).containsExactly(6);
+  }
+
+  @Test
+  public void asyncCallsArePipelinedOnTheSharedConnections() {
+    List<CompletableFuture<Map<LimitKey, Integer>>> futures = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      futures.add(storage.addAndGetAsync(Arrays.asList(givenRequest(LIMIT1, 1, 1000))));
+    }
+
+    int max = 0;
+    for (CompletableFuture<Map<LimitKey, Integer>> future : futures) {
+      max = Math.max(max, future.join().values().iterator().next());
+    }
+    assertThat(max).isEqualTo(100);
+  }
+
+  @Test
+  public void addAndGetIfWithinLimitsAddsNothingWhenALimitIsExceeded() {
+    Map<LimitKey, Integer> counters =
+        storage.addAndGetIfWithinLimits(
+            Arrays.asList(givenRequest(LIMIT1, 1, 5), givenRequest(LIMIT2, 6, 5)));
+
+    assertThat(counters.values()).containsExactly(1, 6).inOrder();
+    assertThat(storage.getCurrentLimitCounters()).isEmpty();
+  }
+
+  @Test
+  public void scriptsAreLoadedAgainAfterAFlush() {
+    storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 1);
+    try (Jedis resource = jedis.getResource()) {
+      resource.scriptFlush();
+    }
+
+    int result =
+        storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 1).getValue();
+
+    assertThat(result).isEqualTo(2);
+  }
+
+  private AddAndGetRequest givenRequest(String limitName, int cost, int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE1)
+        .withLimitName(limitName)
+        .withProperty(PROPERTY1)
+        .withDistributed(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(TIMESTAMP)
+        .withCost(cost)
+        .withLimit(limit)
+        .build();
+  }
+}
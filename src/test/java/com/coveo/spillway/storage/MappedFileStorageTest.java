@@ -0,0 +1,361 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MappedFileStorageTest {
+
+  private static final String RESOURCE1 = "someResource";
+  private static final String RESOURCE2 = "someOtherResource";
+  private static final String LIMIT1 = "someLimit";
+  private static final String LIMIT2 = "someOtherLimit";
+  private static final String PROPERTY1 = "someProperty";
+  private static final String PROPERTY2 = "someOtherProperty";
+  private static final Duration EXPIRATION = Duration.ofHours(1);
+  private static final Instant TIMESTAMP = Instant.now();
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Mock private Clock clock;
+
+  private Path path;
+  private MappedFileStorage storage;
+
+  @Before
+  public void setup() throws IOException {
+    when(clock.millis()).thenReturn(TIMESTAMP.toEpochMilli());
+    path = folder.getRoot().toPath().resolve("spillway");
+    storage = givenStorage(1024);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    storage.close();
+  }
+
+  @Test
+  public void canAddToExistingCounters() {
+    storage.incrementAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP);
+    int result =
+        storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 5).getValue();
+
+    assertThat(result).isEqualTo(6);
+  }
+
+  @Test
+  public void countersSurviveReopeningTheFile() throws IOException {
+    storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 5);
+    storage.close();
+
+    storage = givenStorage(1024);
+    int result =
+        storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 1).getValue();
+
+    assertThat(result).isEqualTo(6);
+  }
+
+  @Test
+  public void storagesOpeningTheSameFileShareTheCounters() throws IOException {
+    MappedFileStorage other = givenStorage(1);
+    try {
+      storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 5);
+      int result =
+          other.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 1).getValue();
+
+      assertThat(result).isEqualTo(6);
+    } finally {
+      other.close();
+    }
+  }
+
+  @Test
+  public void manyKeysAreKept() {
+    for (int i = 0; i < 1000; i++) {
+      storage.addAndGet(RESOURCE1, LIMIT1, "property" + i, true, EXPIRATION, TIMESTAMP, i);
+    }
+    for (int i = 0; i < 1000; i++) {
+      int result =
+          storage
+              .addAndGet(RESOURCE1, LIMIT1, "property" + i, true, EXPIRATION, TIMESTAMP, 0)
+              .getValue();
+      assertThat(result).isEqualTo(i);
+    }
+  }
+
+  @Test
+  public void expiredKeysAreSweptToMakeRoom() {
+    for (int i = 0; i < 1000; i++) {
+      storage.addAndGet(RESOURCE1, LIMIT1, "property" + i, true, EXPIRATION, TIMESTAMP, 1);
+    }
+
+    Instant later = TIMESTAMP.plus(EXPIRATION.multipliedBy(2));
+    when(clock.millis()).thenReturn(later.toEpochMilli());
+    for (int i = 0; i < 1000; i++) {
+      int result =
+          storage
+              .addAndGet(RESOURCE1, LIMIT1, "property" + i, true, EXPIRATION, later, 2)
+              .getValue();
+      assertThat(result).isEqualTo(2);
+    }
+  }
+
+  @Test
+  public void addAndGetWithLimitStopsAtTheLimit() {
+    storage.addAndGetWithLimit(Arrays.asList(givenRequest(PROPERTY1, 4, 5)));
+    int result =
+        storage
+            .addAndGetWithLimit(Arrays.asList(givenRequest(PROPERTY1, 2, 5)))
+            .values()
+            .iterator()
+            .next();
+    int exceeded =
+        storage
+            .addAndGetWithLimit(Arrays.asList(givenRequest(PROPERTY1, 2, 5)))
+            .values()
+            .iterator()
+            .next();
+
+    assertThat(result).isEqualTo(6);
+    assertThat(exceeded).isEqualTo(6);
+  }
+
+  @Test
+  public void addAndGetIfWithinLimitsAddsNothingWhenALimitIsExceeded() {
+    storage.addAndGetIfWithinLimits(
+        Arrays.asList(givenRequest(PROPERTY1, 1, 5), givenRequest(PROPERTY2, 6, 5)));
+
+    int result =
+        storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 0).getValue();
+    assertThat(result).isEqualTo(0);
+  }
+
+  @Test
+  public void addAndGetIfWithinLimitsNeverRejectsACallBecauseOfAConcurrentOne() throws Exception {
+    int limit = 500;
+    AtomicInteger accepted = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < limit * 2; i++) {
+      executor.execute(
+          () -> {
+            Map<LimitKey, Integer> result =
+                storage.addAndGetIfWithinLimits(
+                    Arrays.asList(
+                        givenRequest(PROPERTY1, 1, limit), givenRequest(PROPERTY2, 1, limit * 2)));
+            if (result.values().stream().allMatch(value -> value <= limit)) {
+              accepted.incrementAndGet();
+            }
+          });
+    }
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+
+    assertThat(accepted.get()).isEqualTo(limit);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1).values()).containsExactly(limit, limit);
+  }
+
+  @Test
+  public void gcraPacesTheCallsWithoutListingTheirKeys() {
+    for (int i = 1; i <= 4; i++) {
+      int result =
+          storage.addAndGet(givenRequest(PROPERTY1, 1, 4, TIMESTAMP, LimitType.GCRA)).getValue();
+      assertThat(result).isEqualTo(i);
+    }
+
+    int result =
+        storage
+            .addAndGet(
+                givenRequest(
+                    PROPERTY1, 0, 4, TIMESTAMP.plus(EXPIRATION.dividedBy(4)), LimitType.GCRA))
+            .getValue();
+    assertThat(result).isEqualTo(3);
+    assertThat(storage.getCurrentLimitCounters()).isEmpty();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void filesOfAnotherVersionAreRejected() throws IOException {
+    storage.close();
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+      file.seek(4);
+      file.writeInt(MappedFileStorage.VERSION + 1);
+    }
+
+    storage = givenStorage(1024);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void filesOfAnotherFormatAreRejected() throws IOException {
+    storage.close();
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+      file.writeInt(MappedFileStorage.MAGIC + 1);
+    }
+
+    storage = givenStorage(1024);
+  }
+
+  @Test
+  public void filesWhoseCreationWasNotCompletedAreCreatedAgain() throws IOException {
+    storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 5);
+    storage.close();
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+      file.writeInt(0);
+    }
+
+    storage = givenStorage(1024);
+    int result =
+        storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 1).getValue();
+
+    assertThat(result).isEqualTo(1);
+  }
+
+  @Test
+  public void canGetLimitsPerResourceLimitAndProperty() {
+    storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 5);
+    storage.addAndGet(RESOURCE1, LIMIT2, PROPERTY1, false, EXPIRATION, TIMESTAMP, 10);
+    storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY2, true, EXPIRATION, TIMESTAMP, 15);
+    storage.addAndGet(RESOURCE2, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 20);
+
+    assertThat(storage.getCurrentLimitCounters()).hasSize(4);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1).values()).containsExactly(5, 10, 15);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT1).values()).containsExactly(5, 15);
+    Map<LimitKey, Integer> result =
+        storage.getCurrentLimitCounters(RESOURCE1, LIMIT2, PROPERTY1);
+    assertThat(result.values()).containsExactly(10);
+
+    LimitKey limitKey = result.keySet().iterator().next();
+    assertThat(limitKey)
+        .isEqualTo(
+            new LimitKey(
+                RESOURCE1,
+                LIMIT2,
+                PROPERTY1,
+                false,
+                LimitUtils.calculateBucket(TIMESTAMP, EXPIRATION),
+                EXPIRATION));
+    assertThat(limitKey.isDistributed()).isFalse();
+  }
+
+  @Test
+  public void countersAreListedFromTheFile() throws IOException {
+    storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 5);
+    storage.close();
+
+    storage = givenStorage(1024);
+    Map<LimitKey, Integer> result = storage.getCurrentLimitCounters();
+
+    assertThat(result).hasSize(1);
+    assertThat(result.keySet().iterator().next().getProperty()).isEqualTo(PROPERTY1);
+    assertThat(result.values()).containsExactly(5);
+  }
+
+  @Test
+  public void keysOfExpiredEntriesAreDroppedToMakeRoom() throws IOException {
+    storage.close();
+    path = folder.getRoot().toPath().resolve("smallKeys");
+    storage = givenStorage(1024, 64);
+    for (int i = 0; i < 1000; i++) {
+      storage.addAndGet(RESOURCE1, LIMIT1, "property" + i, true, EXPIRATION, TIMESTAMP, 1);
+    }
+
+    Instant later = TIMESTAMP.plus(EXPIRATION.multipliedBy(2));
+    when(clock.millis()).thenReturn(later.toEpochMilli());
+    for (int i = 0; i < 1000; i++) {
+      storage.addAndGet(RESOURCE1, LIMIT1, "otherProperty" + i, true, EXPIRATION, later, 2);
+    }
+
+    Map<LimitKey, Integer> result = storage.getCurrentLimitCounters();
+    assertThat(result).hasSize(1000);
+    for (Map.Entry<LimitKey, Integer> entry : result.entrySet()) {
+      assertThat(entry.getKey().getProperty()).startsWith("otherProperty");
+      assertThat(entry.getValue()).isEqualTo(2);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void keySizeMustBePositive() {
+    MappedFileStorage.builder().withPath(path).withKeySize(0).build();
+  }
+
+  private MappedFileStorage givenStorage(int capacity) {
+    return givenStorage(capacity, 128);
+  }
+
+  private MappedFileStorage givenStorage(int capacity, int keySize) {
+    MappedFileStorage.Builder builder =
+        MappedFileStorage.builder()
+            .withPath(path)
+            .withCapacity(capacity)
+            .withStripeCount(4)
+            .withKeySize(keySize);
+    builder.clock = clock;
+    return builder.build();
+  }
+
+  private AddAndGetRequest givenRequest(String property, int cost, int limit) {
+    return givenRequest(property, cost, limit, TIMESTAMP, LimitType.FIXED_WINDOW);
+  }
+
+  private AddAndGetRequest givenRequest(
+      String property, int cost, int limit, Instant eventTimestamp, LimitType type) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE1)
+        .withLimitName(property.equals(PROPERTY1) ? LIMIT1 : LIMIT2)
+        .withProperty(property)
+        .withDistributed(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(eventTimestamp)
+        .withCost(cost)
+        .withLimit(limit)
+        .withLimitType(type)
+        .build();
+  }
+}
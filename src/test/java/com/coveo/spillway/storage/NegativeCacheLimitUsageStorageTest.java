@@ -0,0 +1,274 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class NegativeCacheLimitUsageStorageTest {
+  private static final String RESOURCE = "TheResource";
+  private static final String PROPERTY = "TheProperty";
+  private static final String LIMITNAME = "TheLimit";
+  private static final Instant INSTANT = Instant.now();
+  private static final Duration EXPIRATION = Duration.ofHours(1);
+
+  private InMemoryStorage wrappedStorage;
+  private Clock clock;
+
+  @Before
+  public void setup() {
+    wrappedStorage = spy(new InMemoryStorage());
+    clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(INSTANT.toEpochMilli());
+  }
+
+  @Test
+  public void exhaustedKeysAreRejectedLocally() {
+    NegativeCacheLimitUsageStorage storage = givenStorage(10);
+
+    Map<LimitKey, Integer> counters = null;
+    for (int i = 0; i < 5; i++) {
+      counters = storage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(3)));
+    }
+
+    assertThat(counters.values()).containsExactly(4);
+    assertThat(wrappedStorage.getCurrentLimitCounters().values()).containsExactly(3);
+    verify(wrappedStorage, times(3))
+        .addAndGetIfWithinLimits(anyCollectionOf(AddAndGetRequest.class));
+  }
+
+  @Test
+  public void exhaustedBatchesAreRejectedLocally() {
+    NegativeCacheLimitUsageStorage storage = givenStorage(10);
+    AddAndGetBatch batch = new AddAndGetBatch(1);
+
+    for (int i = 0; i < 5; i++) {
+      batch.clear();
+      batch.add(RESOURCE, LIMITNAME, PROPERTY, true, EXPIRATION, INSTANT.toEpochMilli(), 2, 5);
+      storage.addAndGetIfWithinLimits(batch);
+    }
+
+    // The third call is refused by the wrapped storage, but a smaller cost could still fit
+    assertThat(batch.getCounter(0)).isEqualTo(6);
+    verify(wrappedStorage, times(5)).addAndGetIfWithinLimits(any(AddAndGetBatch.class));
+
+    for (int i = 0; i < 3; i++) {
+      batch.clear();
+      batch.add(RESOURCE, LIMITNAME, PROPERTY, true, EXPIRATION, INSTANT.toEpochMilli(), 1, 5);
+      storage.addAndGetIfWithinLimits(batch);
+    }
+
+    assertThat(batch.getCounter(0)).isEqualTo(6);
+    verify(wrappedStorage, times(6)).addAndGetIfWithinLimits(any(AddAndGetBatch.class));
+  }
+
+  @Test
+  public void callsCheckingAnExhaustedLimitAreRejectedLocally() {
+    NegativeCacheLimitUsageStorage storage = givenStorage(10);
+    AddAndGetRequest otherRequest =
+        new AddAndGetRequest.Builder(givenRequest(10)).withLimitName(LIMITNAME + 2).build();
+    storage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(1)));
+    wrappedStorage.addAndGet(Collections.singletonList(otherRequest));
+
+    Map<LimitKey, Integer> counters = null;
+    for (int i = 0; i < 3; i++) {
+      counters = storage.addAndGetIfWithinLimits(Arrays.asList(givenRequest(1), otherRequest));
+    }
+
+    // The other limit is read once, without adding the refused cost
+    assertThat(counters.get(LimitKey.fromRequest(otherRequest))).isEqualTo(2);
+    assertThat(counters.get(LimitKey.fromRequest(givenRequest(1)))).isEqualTo(2);
+    assertThat(wrappedStorage.getCurrentLimitCounters().values()).containsExactly(1, 1);
+    verify(wrappedStorage, times(1))
+        .addAndGetIfWithinLimits(anyCollectionOf(AddAndGetRequest.class));
+    verify(wrappedStorage, times(2)).addAndGet(anyCollectionOf(AddAndGetRequest.class));
+  }
+
+  @Test
+  public void theLastCountersOfTheOtherLimitsAreReported() {
+    NegativeCacheLimitUsageStorage storage = givenStorage(10);
+    AddAndGetRequest otherRequest =
+        new AddAndGetRequest.Builder(givenRequest(10)).withLimitName(LIMITNAME + 2).build();
+    storage.addAndGetIfWithinLimits(Arrays.asList(givenRequest(1), otherRequest));
+
+    // The calls of other clients are not seen while the calls are rejected locally
+    wrappedStorage.addAndGet(Collections.singletonList(otherRequest));
+    Map<LimitKey, Integer> counters = null;
+    for (int i = 0; i < 3; i++) {
+      counters = storage.addAndGetIfWithinLimits(Arrays.asList(givenRequest(1), otherRequest));
+    }
+
+    assertThat(counters.get(LimitKey.fromRequest(otherRequest))).isEqualTo(2);
+    assertThat(counters.get(LimitKey.fromRequest(givenRequest(1)))).isEqualTo(2);
+    verify(wrappedStorage, times(1))
+        .addAndGetIfWithinLimits(anyCollectionOf(AddAndGetRequest.class));
+    verify(wrappedStorage, times(1)).addAndGet(anyCollectionOf(AddAndGetRequest.class));
+  }
+
+  @Test
+  public void batchesCheckingAnExhaustedLimitAreRejectedLocally() {
+    NegativeCacheLimitUsageStorage storage = givenStorage(10);
+    AddAndGetBatch batch = new AddAndGetBatch(2);
+    storage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(1)));
+    wrappedStorage.addAndGet(
+        Collections.singletonList(
+            new AddAndGetRequest.Builder(givenRequest(10))
+                .withLimitName(LIMITNAME + 2)
+                .withCost(5)
+                .build()));
+
+    for (int i = 0; i < 3; i++) {
+      batch.clear();
+      batch.add(RESOURCE, LIMITNAME, PROPERTY, true, EXPIRATION, INSTANT.toEpochMilli(), 1, 1);
+      batch.add(
+          RESOURCE, LIMITNAME + 2, PROPERTY, true, EXPIRATION, INSTANT.toEpochMilli(), 1, 10);
+      assertThat(storage.addAndGetIfWithinLimits(batch)).isTrue();
+    }
+
+    assertThat(batch.getCounter(0)).isEqualTo(2);
+    assertThat(batch.getCounter(1)).isEqualTo(6);
+    verify(wrappedStorage, times(0)).addAndGetIfWithinLimits(any(AddAndGetBatch.class));
+    verify(wrappedStorage, times(2)).addAndGet(anyCollectionOf(AddAndGetRequest.class));
+  }
+
+  @Test
+  public void theNextBucketGoesToTheWrappedStorage() {
+    NegativeCacheLimitUsageStorage storage = givenStorage(10);
+    for (int i = 0; i < 3; i++) {
+      storage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(2)));
+    }
+
+    AddAndGetRequest nextBucket =
+        new AddAndGetRequest.Builder(givenRequest(2))
+            .withEventTimestamp(INSTANT.plus(EXPIRATION))
+            .build();
+    Map<LimitKey, Integer> counters =
+        storage.addAndGetIfWithinLimits(Collections.singletonList(nextBucket));
+
+    assertThat(counters.values()).containsExactly(1);
+  }
+
+  @Test
+  public void slidingWindowsAreNotRemembered() {
+    NegativeCacheLimitUsageStorage storage = givenStorage(10);
+    AddAndGetRequest request =
+        new AddAndGetRequest.Builder(givenRequest(1))
+            .withLimitType(LimitType.SLIDING_WINDOW)
+            .build();
+
+    for (int i = 0; i < 3; i++) {
+      storage.addAndGetIfWithinLimits(Collections.singletonList(request));
+    }
+
+    verify(wrappedStorage, times(3))
+        .addAndGetIfWithinLimits(anyCollectionOf(AddAndGetRequest.class));
+  }
+
+  @Test
+  public void noKeyIsRememberedWhileTheCacheIsFull() {
+    NegativeCacheLimitUsageStorage storage = givenStorage(1);
+    AddAndGetRequest otherRequest =
+        new AddAndGetRequest.Builder(givenRequest(1)).withProperty(PROPERTY + 2).build();
+
+    storage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(1)));
+    for (int i = 0; i < 3; i++) {
+      storage.addAndGetIfWithinLimits(Collections.singletonList(otherRequest));
+    }
+
+    verify(wrappedStorage, times(4))
+        .addAndGetIfWithinLimits(anyCollectionOf(AddAndGetRequest.class));
+  }
+
+  @Test
+  public void endedBucketsAreEvictedWhenTheCacheIsFull() {
+    NegativeCacheLimitUsageStorage storage = givenStorage(1);
+    Instant later = INSTANT.plus(EXPIRATION.multipliedBy(2));
+    AddAndGetRequest laterRequest =
+        new AddAndGetRequest.Builder(givenRequest(1)).withEventTimestamp(later).build();
+
+    storage.addAndGetIfWithinLimits(Collections.singletonList(givenRequest(1)));
+    when(clock.millis()).thenReturn(later.toEpochMilli());
+    for (int i = 0; i < 3; i++) {
+      storage.addAndGetIfWithinLimits(Collections.singletonList(laterRequest));
+    }
+
+    verify(wrappedStorage, times(2))
+        .addAndGetIfWithinLimits(anyCollectionOf(AddAndGetRequest.class));
+  }
+
+  @Test
+  public void addAndGetWithLimitIsRejectedLocallyAboveTheLimit() {
+    NegativeCacheLimitUsageStorage storage = givenStorage(10);
+
+    Map<LimitKey, Integer> counters = null;
+    for (int i = 0; i < 5; i++) {
+      counters = storage.addAndGetWithLimit(Collections.singletonList(givenRequest(2)));
+    }
+
+    assertThat(counters.values()).containsExactly(3);
+    verify(wrappedStorage, times(3)).addAndGetWithLimit(anyCollectionOf(AddAndGetRequest.class));
+  }
+
+  private NegativeCacheLimitUsageStorage givenStorage(int maxSize) {
+    NegativeCacheLimitUsageStorage.Builder builder =
+        NegativeCacheLimitUsageStorage.builder()
+            .withWrappedLimitUsageStorage(wrappedStorage)
+            .withMaxSize(maxSize);
+    builder.clock = clock;
+    return builder.build();
+  }
+
+  private AddAndGetRequest givenRequest(int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE)
+        .withProperty(PROPERTY)
+        .withLimitName(LIMITNAME)
+        .withDistributed(true)
+        .withEventTimestamp(INSTANT)
+        .withCost(1)
+        .withExpiration(EXPIRATION)
+        .withLimit(limit)
+        .build();
+  }
+}
@@ -0,0 +1,273 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.LimitType;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class OffHeapStorageTest {
+
+  private static final String RESOURCE1 = "someResource";
+  private static final String RESOURCE2 = "someOtherResource";
+  private static final String LIMIT1 = "someLimit";
+  private static final String LIMIT2 = "someOtherLimit";
+  private static final String PROPERTY1 = "someProperty";
+  private static final String PROPERTY2 = "someOtherProperty";
+  private static final Duration EXPIRATION = Duration.ofHours(1);
+  private static final Instant TIMESTAMP = Instant.now();
+
+  @Mock private Clock clock;
+
+  private OffHeapStorage storage;
+
+  @Before
+  public void setup() {
+    when(clock.millis()).thenReturn(TIMESTAMP.toEpochMilli());
+    storage = new OffHeapStorage(1, clock);
+  }
+
+  @Test
+  public void canAddToExistingCounters() {
+    storage.incrementAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP);
+    int result =
+        storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 5).getValue();
+
+    assertThat(result).isEqualTo(6);
+  }
+
+  @Test
+  public void canGetLimitsPerResourceLimitAndProperty() {
+    storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 5);
+    storage.addAndGet(RESOURCE1, LIMIT2, PROPERTY1, false, EXPIRATION, TIMESTAMP, 10);
+    storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY2, true, EXPIRATION, TIMESTAMP, 15);
+    storage.addAndGet(RESOURCE2, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 20);
+
+    assertThat(storage.getCurrentLimitCounters()).hasSize(4);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1).values()).containsExactly(5, 10, 15);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT1).values()).containsExactly(5, 15);
+    Map<LimitKey, Integer> result =
+        storage.getCurrentLimitCounters(RESOURCE1, LIMIT2, PROPERTY1);
+    assertThat(result.values()).containsExactly(10);
+
+    LimitKey limitKey = result.keySet().iterator().next();
+    assertThat(limitKey)
+        .isEqualTo(
+            new LimitKey(
+                RESOURCE1,
+                LIMIT2,
+                PROPERTY1,
+                false,
+                LimitUtils.calculateBucket(TIMESTAMP, EXPIRATION),
+                EXPIRATION));
+    assertThat(limitKey.isDistributed()).isFalse();
+    assertThat(limitKey.getExpiration()).isEqualTo(EXPIRATION);
+  }
+
+  @Test
+  public void manyKeysSurviveTheGrowthOfTheBuffers() {
+    for (int i = 0; i < 10000; i++) {
+      storage.addAndGet(RESOURCE1, LIMIT1, "property" + i, true, EXPIRATION, TIMESTAMP, i);
+    }
+    for (int i = 0; i < 10000; i++) {
+      int result =
+          storage
+              .addAndGet(RESOURCE1, LIMIT1, "property" + i, true, EXPIRATION, TIMESTAMP, 0)
+              .getValue();
+      assertThat(result).isEqualTo(i);
+    }
+    assertThat(storage.getCurrentLimitCounters()).hasSize(10000);
+  }
+
+  @Test
+  public void keysKeepTheirCharacters() {
+    String property = "propriété|東京";
+    storage.addAndGet(RESOURCE1, LIMIT1, property, true, EXPIRATION, TIMESTAMP, 3);
+
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT1, property).values())
+        .containsExactly(3);
+  }
+
+  @Test
+  public void expiredKeysAreRemoved() {
+    storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 5);
+    storage.addAndGet(
+        RESOURCE1, LIMIT1, PROPERTY2, true, EXPIRATION, TIMESTAMP.plus(EXPIRATION), 5);
+
+    when(clock.millis()).thenReturn(TIMESTAMP.plus(EXPIRATION).toEpochMilli());
+    Map<LimitKey, Integer> result = storage.getCurrentLimitCounters();
+
+    assertThat(result).hasSize(1);
+    assertThat(result.keySet().iterator().next().getProperty()).isEqualTo(PROPERTY2);
+  }
+
+  @Test
+  public void addAndGetWithLimitStopsAtTheLimit() {
+    storage.addAndGetWithLimit(Arrays.asList(givenRequest(PROPERTY1, 4, 5)));
+    Map<LimitKey, Integer> result =
+        storage.addAndGetWithLimit(Arrays.asList(givenRequest(PROPERTY1, 2, 5)));
+    Map<LimitKey, Integer> exceeded =
+        storage.addAndGetWithLimit(Arrays.asList(givenRequest(PROPERTY1, 2, 5)));
+
+    assertThat(result.values()).containsExactly(6);
+    assertThat(exceeded.values()).containsExactly(6);
+  }
+
+  @Test
+  public void batchesAddNothingWhenALimitIsExceeded() {
+    AddAndGetBatch batch = new AddAndGetBatch(2);
+    batch.add(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP.toEpochMilli(), 3, 5);
+    batch.add(RESOURCE1, LIMIT2, PROPERTY1, true, EXPIRATION, TIMESTAMP.toEpochMilli(), 3, 5);
+    storage.addAndGetIfWithinLimits(batch);
+
+    batch.clear();
+    batch.add(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP.toEpochMilli(), 1, 5);
+    batch.add(RESOURCE1, LIMIT2, PROPERTY1, true, EXPIRATION, TIMESTAMP.toEpochMilli(), 3, 5);
+    storage.addAndGetIfWithinLimits(batch);
+    assertThat(batch.getCounter(0)).isEqualTo(4);
+    assertThat(batch.getCounter(1)).isEqualTo(6);
+
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1).values()).containsExactly(3, 3);
+  }
+
+  @Test
+  public void slidingWindowsWeighThePreviousBucket() {
+    Instant bucket = LimitUtils.calculateBucket(TIMESTAMP, EXPIRATION);
+    Instant previousTimestamp = bucket.minus(EXPIRATION.dividedBy(2));
+    Instant eventTimestamp = bucket.plus(EXPIRATION.dividedBy(4));
+    storage.addAndGet(
+        givenRequest(PROPERTY1, 10, 100, previousTimestamp, LimitType.SLIDING_WINDOW));
+
+    int result =
+        storage
+            .addAndGet(givenRequest(PROPERTY1, 1, 100, eventTimestamp, LimitType.SLIDING_WINDOW))
+            .getValue();
+
+    assertThat(result).isEqualTo(1 + 7);
+  }
+
+  @Test
+  public void gcraPacesTheCallsWithoutListingTheirKeys() {
+    for (int i = 1; i <= 4; i++) {
+      int result =
+          storage.addAndGet(givenRequest(PROPERTY1, 1, 4, TIMESTAMP, LimitType.GCRA)).getValue();
+      assertThat(result).isEqualTo(i);
+    }
+
+    int result =
+        storage
+            .addAndGet(
+                givenRequest(
+                    PROPERTY1, 0, 4, TIMESTAMP.plus(EXPIRATION.dividedBy(4)), LimitType.GCRA))
+            .getValue();
+    assertThat(result).isEqualTo(3);
+    assertThat(storage.getCurrentLimitCounters()).isEmpty();
+  }
+
+  @Test
+  public void aCallOnlySweepsABoundedNumberOfSlots() {
+    int expiredEntries = 100;
+    for (int i = 0; i < expiredEntries; i++) {
+      storage.addAndGet(RESOURCE1, LIMIT1, "property" + i, true, EXPIRATION, TIMESTAMP, 1);
+    }
+
+    Instant later = TIMESTAMP.plus(EXPIRATION.multipliedBy(2));
+    when(clock.millis()).thenReturn(later.toEpochMilli());
+    storage.addAndGet(RESOURCE1, LIMIT2, PROPERTY1, true, EXPIRATION, later, 1);
+    assertThat(storage.getSize())
+        .isAtLeast(expiredEntries - OffHeapStorage.MAX_SWEPT_SLOTS_PER_CALL + 1);
+
+    for (int i = 0; i < 5; i++) {
+      storage.addAndGet(RESOURCE1, LIMIT2, PROPERTY1, true, EXPIRATION, later, 1);
+    }
+    assertThat(storage.getSize()).isEqualTo(1);
+    assertThat(storage.getCurrentLimitCounters().values()).containsExactly(6);
+  }
+
+  @Test
+  public void addAndGetIfWithinLimitsNeverRejectsACallBecauseOfAConcurrentOne() throws Exception {
+    OffHeapStorage sharedStorage = new OffHeapStorage(64, clock);
+    int limit = 500;
+    AtomicInteger accepted = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < limit * 2; i++) {
+      executor.execute(
+          () -> {
+            Map<LimitKey, Integer> result =
+                sharedStorage.addAndGetIfWithinLimits(
+                    Arrays.asList(
+                        givenRequest(PROPERTY1, 1, limit), givenRequest(PROPERTY2, 1, limit * 2)));
+            if (result.values().stream().allMatch(value -> value <= limit)) {
+              accepted.incrementAndGet();
+            }
+          });
+    }
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+
+    assertThat(accepted.get()).isEqualTo(limit);
+    assertThat(sharedStorage.getCurrentLimitCounters(RESOURCE1).values())
+        .containsExactly(limit, limit);
+  }
+
+  private AddAndGetRequest givenRequest(String property, int cost, int limit) {
+    return givenRequest(property, cost, limit, TIMESTAMP, LimitType.FIXED_WINDOW);
+  }
+
+  private AddAndGetRequest givenRequest(
+      String property, int cost, int limit, Instant eventTimestamp, LimitType type) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE1)
+        .withLimitName(LIMIT1)
+        .withProperty(property)
+        .withDistributed(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(eventTimestamp)
+        .withCost(cost)
+        .withLimit(limit)
+        .withLimitType(type)
+        .build();
+  }
+}
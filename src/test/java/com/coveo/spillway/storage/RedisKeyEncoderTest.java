@@ -0,0 +1,72 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import static com.google.common.truth.Truth.*;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.Test;
+
+import com.coveo.spillway.limit.LimitKey;
+
+public class RedisKeyEncoderTest {
+  private static final Duration EXPIRATION = Duration.ofHours(1);
+  private static final Instant BUCKET = Instant.parse("2007-12-03T10:00:00Z");
+
+  private RedisKeyEncoder encoder = new RedisKeyEncoder("spillway");
+
+  @Test
+  public void keysContainEveryComponent() {
+    assertThat(encode("resource", "limit", "property", BUCKET))
+        .isEqualTo("spillway|resource|limit|property|2007-12-03T10:00:00Z|PT1H");
+  }
+
+  @Test
+  public void separatorsAreReplacedInEveryComponent() {
+    assertThat(encode("re|source", "li|mit", "pro|perty", BUCKET))
+        .isEqualTo("spillway|re_source|li_mit|pro_perty|2007-12-03T10:00:00Z|PT1H");
+  }
+
+  @Test
+  public void nonAsciiPropertiesAreEncodedInUtf8() {
+    assertThat(encode("resource", "limit", "prop|érty", BUCKET))
+        .isEqualTo("spillway|resource|limit|prop_érty|2007-12-03T10:00:00Z|PT1H");
+  }
+
+  @Test
+  public void bucketChangesAreEncoded() {
+    encode("resource", "limit", "property", BUCKET);
+
+    assertThat(encode("resource", "limit", "property", BUCKET.plus(EXPIRATION)))
+        .isEqualTo("spillway|resource|limit|property|2007-12-03T11:00:00Z|PT1H");
+  }
+
+  private String encode(String resource, String limitName, String property, Instant bucket) {
+    return new String(
+        encoder.encode(new LimitKey(resource, limitName, property, true, bucket, EXPIRATION)),
+        StandardCharsets.UTF_8);
+  }
+}
@@ -28,7 +28,14 @@ import static org.mockito.Mockito.*;
 import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -39,10 +46,14 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.coveo.spillway.limit.LimitKey;
-import com.google.common.collect.Sets;
+import com.coveo.spillway.limit.LimitType;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
 import redis.embedded.RedisServer;
 
 /**
@@ -149,6 +160,33 @@ public class RedisStorageTest {
     }
   }
 
+  @Test
+  public void canGetLimitsWhenTheKeysSpanManyScanIterations() {
+    RedisStorage smallScanStorage =
+        RedisStorage.builder()
+            .withJedisPool(new JedisPool("localhost", 6389))
+            .withScanCount(2)
+            .build();
+    for (int i = 0; i < 25; i++) {
+      storage.incrementAndGet(RESOURCE1, LIMIT1, PROPERTY1 + i, true, EXPIRATION, TIMESTAMP);
+    }
+
+    assertThat(smallScanStorage.getCurrentLimitCounters(RESOURCE1)).hasSize(25);
+    smallScanStorage.close();
+  }
+
+  @Test
+  public void canIterateOverLimits() {
+    storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 5);
+    storage.addAndGet(RESOURCE1, LIMIT2, PROPERTY1, true, EXPIRATION, TIMESTAMP, 10);
+    storage.addAndGet(RESOURCE2, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 15);
+
+    Map<LimitKey, Integer> result = new HashMap<>();
+    storage.forEachCurrentLimitCounter(RESOURCE1, result::put);
+
+    assertThat(result.values()).containsExactly(5, 10);
+  }
+
   @Test
   public void canGetLimitsPerResource() {
     storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 5);
@@ -222,10 +260,10 @@ public class RedisStorageTest {
   @Test
   public void nullAndEmptyValueDoNotCauseExceptionWhenGettingLimits() {
     Jedis jedisMock = mock(Jedis.class);
-    when(jedisMock.keys(anyString())).thenReturn(Sets.newHashSet(KEY1, KEY2, KEY3));
-    when(jedisMock.get(KEY1)).thenReturn("12");
-    when(jedisMock.get(KEY2)).thenReturn(null);
-    when(jedisMock.get(KEY3)).thenReturn("");
+    when(jedisMock.scan(anyString(), any(ScanParams.class)))
+        .thenReturn(
+            new ScanResult<>(ScanParams.SCAN_POINTER_START, Arrays.asList(KEY1, KEY2, KEY3)));
+    when(jedisMock.mget(KEY1, KEY2, KEY3)).thenReturn(Arrays.asList("12", null, ""));
     JedisPool jedisPool = mock(JedisPool.class);
     when(jedisPool.getResource()).thenReturn(jedisMock);
     RedisStorage redisStorage = RedisStorage.builder().withJedisPool(jedisPool).build();
@@ -234,4 +272,230 @@ public class RedisStorageTest {
 
     assertThat(counters.values()).containsExactly(12);
   }
+
+  @Test
+  public void addAndGetIfWithinLimitsAddsAllCostsWhenNoLimitIsExceeded() {
+    Map<LimitKey, Integer> result =
+        storage.addAndGetIfWithinLimits(
+            Arrays.asList(
+                givenRequest(LIMIT1, PROPERTY1, 2, 5), givenRequest(LIMIT2, PROPERTY2, 3, 5)));
+
+    assertThat(result.values()).containsExactly(2, 3);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1).values()).containsExactly(2, 3);
+  }
+
+  @Test
+  public void addAndGetIfWithinLimitsAddsNothingWhenALimitIsExceeded() {
+    storage.addAndGet(RESOURCE1, LIMIT2, PROPERTY2, true, EXPIRATION, TIMESTAMP, 4);
+
+    Map<LimitKey, Integer> result =
+        storage.addAndGetIfWithinLimits(
+            Arrays.asList(
+                givenRequest(LIMIT1, PROPERTY1, 2, 5), givenRequest(LIMIT2, PROPERTY2, 2, 5)));
+
+    assertThat(result.values()).containsExactly(2, 6);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT1).values()).doesNotContain(2);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT2).values()).containsExactly(4);
+  }
+
+  @Test
+  public void addAndGetSetsTheExpirationOfEveryKey() {
+    storage.addAndGet(
+        Arrays.asList(
+            givenRequest(LIMIT1, PROPERTY1, 2, 5), givenRequest(LIMIT2, PROPERTY2, 3, 5)));
+
+    try (Jedis resource = jedis.getResource()) {
+      for (String key : resource.keys("*")) {
+        assertThat(resource.ttl(key)).isGreaterThan(EXPIRATION.getSeconds());
+      }
+    }
+  }
+
+  @Test
+  public void addAndGetWithLimitDoesNotGoPastTheLimit() {
+    storage.addAndGet(RESOURCE1, LIMIT2, PROPERTY2, true, EXPIRATION, TIMESTAMP, 4);
+
+    Map<LimitKey, Integer> result =
+        storage.addAndGetWithLimit(
+            Arrays.asList(
+                givenRequest(LIMIT1, PROPERTY1, 2, 5), givenRequest(LIMIT2, PROPERTY2, 2, 5)));
+
+    assertThat(result.values()).containsExactly(2, 6);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT1).values()).containsExactly(2);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT2).values()).containsExactly(6);
+  }
+
+  @Test
+  public void scriptsAreSentAgainAfterTheScriptCacheIsFlushed() {
+    storage.addAndGet(Arrays.asList(givenRequest(LIMIT1, PROPERTY1, 2, 5)));
+    try (Jedis resource = jedis.getResource()) {
+      resource.scriptFlush();
+    }
+
+    Map<LimitKey, Integer> result =
+        storage.addAndGet(Arrays.asList(givenRequest(LIMIT1, PROPERTY1, 2, 5)));
+
+    assertThat(result.values()).containsExactly(4);
+  }
+
+  @Test
+  public void slidingWindowsWeighThePreviousBucket() {
+    Instant bucket = LimitUtils.calculateBucket(TIMESTAMP, EXPIRATION);
+    storage.addAndGet(givenSlidingRequest(bucket.minus(EXPIRATION.dividedBy(2)), 10, 100));
+    Instant eventTimestamp = bucket.plus(EXPIRATION.dividedBy(4));
+
+    Map<LimitKey, Integer> result =
+        storage.addAndGetIfWithinLimits(Arrays.asList(givenSlidingRequest(eventTimestamp, 1, 8)));
+    assertThat(result.values()).containsExactly(8);
+
+    result =
+        storage.addAndGetIfWithinLimits(Arrays.asList(givenSlidingRequest(eventTimestamp, 1, 8)));
+    assertThat(result.values()).containsExactly(9);
+
+    result = storage.addAndGet(Arrays.asList(givenSlidingRequest(eventTimestamp, 0, 8)));
+    assertThat(result.values()).containsExactly(8);
+    result = storage.addAndGetWithLimit(Arrays.asList(givenSlidingRequest(eventTimestamp, 1, 8)));
+    assertThat(result.values()).containsExactly(9);
+    result = storage.addAndGetWithLimit(Arrays.asList(givenSlidingRequest(eventTimestamp, 1, 8)));
+    assertThat(result.values()).containsExactly(9);
+  }
+
+  @Test
+  public void gcraPacesTheCalls() {
+    Duration interval = EXPIRATION.dividedBy(4);
+
+    for (int i = 1; i <= 4; i++) {
+      Map<LimitKey, Integer> result =
+          storage.addAndGetIfWithinLimits(Arrays.asList(givenGcraRequest(TIMESTAMP, 1, 4)));
+      assertThat(result.values()).containsExactly(i);
+    }
+    Map<LimitKey, Integer> result =
+        storage.addAndGetIfWithinLimits(Arrays.asList(givenGcraRequest(TIMESTAMP, 1, 4)));
+    assertThat(result.values()).containsExactly(5);
+
+    // A single call is paid back after one interval, not the whole capacity.
+    result =
+        storage.addAndGetIfWithinLimits(
+            Arrays.asList(givenGcraRequest(TIMESTAMP.plus(interval), 1, 4)));
+    assertThat(result.values()).containsExactly(4);
+    result =
+        storage.addAndGetIfWithinLimits(
+            Arrays.asList(givenGcraRequest(TIMESTAMP.plus(interval), 1, 4)));
+    assertThat(result.values()).containsExactly(5);
+
+    result = storage.addAndGet(Arrays.asList(givenGcraRequest(TIMESTAMP.plus(EXPIRATION), 0, 4)));
+    assertThat(result.values()).containsExactly(1);
+    assertThat(storage.getCurrentLimitCounters()).isEmpty();
+  }
+
+  @Test
+  public void gcraRespectsTheLimitOfAddAndGetWithLimit() {
+    storage.addAndGet(Arrays.asList(givenGcraRequest(TIMESTAMP, 4, 4)));
+
+    Map<LimitKey, Integer> result =
+        storage.addAndGetWithLimit(Arrays.asList(givenGcraRequest(TIMESTAMP, 1, 4)));
+    assertThat(result.values()).containsExactly(5);
+    result = storage.addAndGetWithLimit(Arrays.asList(givenGcraRequest(TIMESTAMP, 1, 4)));
+    assertThat(result.values()).containsExactly(5);
+  }
+
+  @Test
+  public void dispatcherPipelinesTheCallsOfConcurrentThreads() throws Exception {
+    RedisStorage dispatchingStorage =
+        RedisStorage.builder()
+            .withJedisPool(new JedisPool("localhost", 6389))
+            .withDispatcher(1, 100)
+            .build();
+    try {
+      ExecutorService callers = Executors.newFixedThreadPool(8);
+      List<Future<?>> calls = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        calls.add(
+            callers.submit(
+                () -> {
+                  for (int j = 0; j < 50; j++) {
+                    dispatchingStorage.incrementAndGet(
+                        RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP);
+                  }
+                }));
+      }
+      for (Future<?> call : calls) {
+        call.get();
+      }
+      callers.shutdown();
+
+      assertThat(storage.getCurrentLimitCounters().values()).containsExactly(400);
+    } finally {
+      dispatchingStorage.close();
+    }
+  }
+
+  @Test
+  public void dispatcherCompletesTheAsyncCallsAndReloadsTheScripts() {
+    RedisStorage dispatchingStorage =
+        RedisStorage.builder()
+            .withJedisPool(new JedisPool("localhost", 6389))
+            .withDispatcher(2, 100)
+            .build();
+    try {
+      try (Jedis resource = jedis.getResource()) {
+        resource.scriptFlush();
+      }
+      Map<LimitKey, Integer> first =
+          dispatchingStorage
+              .addAndGetIfWithinLimitsAsync(Arrays.asList(givenRequest(LIMIT1, PROPERTY1, 2, 5)))
+              .join();
+      Map<LimitKey, Integer> second =
+          dispatchingStorage
+              .addAndGetIfWithinLimitsAsync(Arrays.asList(givenRequest(LIMIT1, PROPERTY1, 4, 5)))
+              .join();
+
+      assertThat(first.values()).containsExactly(2);
+      assertThat(second.values()).containsExactly(6);
+      assertThat(storage.getCurrentLimitCounters().values()).containsExactly(2);
+    } finally {
+      dispatchingStorage.close();
+    }
+  }
+
+  private AddAndGetRequest givenRequest(String limitName, String property, int cost, int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE1)
+        .withLimitName(limitName)
+        .withProperty(property)
+        .withDistributed(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(TIMESTAMP)
+        .withCost(cost)
+        .withLimit(limit)
+        .build();
+  }
+
+  private AddAndGetRequest givenSlidingRequest(Instant eventTimestamp, int cost, int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE1)
+        .withLimitName(LIMIT1)
+        .withProperty(PROPERTY1)
+        .withDistributed(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(eventTimestamp)
+        .withCost(cost)
+        .withLimit(limit)
+        .withLimitType(LimitType.SLIDING_WINDOW)
+        .build();
+  }
+
+  private AddAndGetRequest givenGcraRequest(Instant eventTimestamp, int cost, int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE1)
+        .withLimitName(LIMIT1)
+        .withProperty(PROPERTY1)
+        .withDistributed(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(eventTimestamp)
+        .withCost(cost)
+        .withLimit(limit)
+        .withLimitType(LimitType.GCRA)
+        .build();
+  }
 }
@@ -4,8 +4,12 @@ import static com.google.common.truth.Truth.*;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 
+import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -38,7 +42,7 @@ public class CacheSynchronizationTest {
   @Mock private LimitUsageStorage limitUsageStorageMock;
 
   @Captor private ArgumentCaptor<List<OverrideKeyRequest>> listOfOverrideKeyRequestCaptor;
-  @Captor private ArgumentCaptor<AddAndGetRequest> addAndGetRequestCaptor;
+  @Captor private ArgumentCaptor<Collection<AddAndGetRequest>> addAndGetRequestsCaptor;
 
   private CacheSynchronization cacheSynchronization;
 
@@ -69,10 +73,10 @@ public class CacheSynchronizationTest {
 
     cacheSynchronization.run();
 
-    verify(limitUsageStorageMock).addAndGet(addAndGetRequestCaptor.capture());
+    verify(limitUsageStorageMock).addAndGet(addAndGetRequestsCaptor.capture());
 
-    AddAndGetRequest addAndGetRequest = addAndGetRequestCaptor.getValue();
-    assertThat(addAndGetRequest).isNotNull();
+    assertThat(addAndGetRequestsCaptor.getValue()).hasSize(1);
+    AddAndGetRequest addAndGetRequest = addAndGetRequestsCaptor.getValue().iterator().next();
     assertThat(addAndGetRequest.getResource()).isEqualTo(RESOURCE);
     assertThat(addAndGetRequest.getLimitName()).isEqualTo(LIMIT);
     assertThat(addAndGetRequest.getProperty()).isEqualTo(PROPERTY);
@@ -81,6 +85,88 @@ public class CacheSynchronizationTest {
     assertThat(addAndGetRequest.getCost()).isEqualTo(COST);
   }
 
+  @Test
+  public void keysAreSentInBatches() {
+    givenInMemoryCacheHasValues(
+        ImmutableMap.of(
+            new LimitKey(RESOURCE, LIMIT, PROPERTY, true, BUCKET, EXPIRATION),
+            COST,
+            new LimitKey(RESOURCE, LIMIT, PROPERTY + 2, true, BUCKET, EXPIRATION),
+            COST,
+            new LimitKey(RESOURCE, LIMIT, PROPERTY + 3, true, BUCKET, EXPIRATION),
+            COST));
+
+    new CacheSynchronization(inMemoryStorageMock, limitUsageStorageMock, 2).run();
+
+    verify(limitUsageStorageMock, times(2)).addAndGet(addAndGetRequestsCaptor.capture());
+    assertThat(addAndGetRequestsCaptor.getAllValues().get(0)).hasSize(2);
+    assertThat(addAndGetRequestsCaptor.getAllValues().get(1)).hasSize(1);
+  }
+
+  @Test
+  public void totalsAreAppliedToTheCache() {
+    LimitKey limitKey = new LimitKey(RESOURCE, LIMIT, PROPERTY, true, BUCKET, EXPIRATION);
+    Capacity capacity = new Capacity();
+    capacity.addAndGet(COST);
+    doAnswer(
+            invocation -> {
+              invocation
+                  .getArgumentAt(0, Consumer.class)
+                  .accept(new SimpleImmutableEntry<>(limitKey, capacity));
+              invocation.getArgumentAt(1, Runnable.class).run();
+              return null;
+            })
+        .when(inMemoryStorageMock)
+        .applyOnEach(any(Consumer.class), any(Runnable.class));
+    when(limitUsageStorageMock.addAndGet(anyCollectionOf(AddAndGetRequest.class)))
+        .thenReturn(ImmutableMap.of(limitKey, 10));
+
+    cacheSynchronization.run();
+
+    assertThat(capacity.getDelta()).isEqualTo(0);
+    assertThat(capacity.get()).isEqualTo(10);
+  }
+
+  @Test
+  public void onlyModifiedKeysAreSentBetweenIdleRefreshes() {
+    Clock clock = mock(Clock.class);
+    when(clock.instant()).thenReturn(BUCKET);
+    InMemoryStorage cache = new InMemoryStorage();
+    CacheSynchronization synchronization =
+        new CacheSynchronization(cache, limitUsageStorageMock, 10, Duration.ofMinutes(1), clock);
+    AddAndGetRequest firstRequest = givenRequest(PROPERTY);
+    AddAndGetRequest secondRequest = givenRequest(PROPERTY + 2);
+
+    cache.addAndGet(Arrays.asList(firstRequest, secondRequest));
+    synchronization.run();
+    cache.addAndGet(firstRequest);
+    synchronization.run();
+    synchronization.run();
+    when(clock.instant()).thenReturn(BUCKET.plus(Duration.ofMinutes(1)));
+    synchronization.run();
+
+    verify(limitUsageStorageMock, times(3)).addAndGet(addAndGetRequestsCaptor.capture());
+    assertThat(addAndGetRequestsCaptor.getAllValues().get(0)).hasSize(2);
+    assertThat(addAndGetRequestsCaptor.getAllValues().get(1)).hasSize(1);
+    assertThat(addAndGetRequestsCaptor.getAllValues().get(1).iterator().next().getProperty())
+        .isEqualTo(PROPERTY);
+    assertThat(addAndGetRequestsCaptor.getAllValues().get(2)).hasSize(2);
+    assertThat(addAndGetRequestsCaptor.getAllValues().get(2).iterator().next().getCost())
+        .isEqualTo(0);
+  }
+
+  private AddAndGetRequest givenRequest(String property) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE)
+        .withLimitName(LIMIT)
+        .withProperty(property)
+        .withDistributed(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(BUCKET)
+        .withCost(COST)
+        .build();
+  }
+
   private Map<LimitKey, Integer> givenCounters() {
     return ImmutableMap.of(new LimitKey(RESOURCE, LIMIT, PROPERTY, true, BUCKET, EXPIRATION), COST);
   }
@@ -112,10 +198,11 @@ public class CacheSynchronizationTest {
                       .entrySet()) {
                 consumer.accept(entry);
               }
+              invocation.getArgumentAt(1, Runnable.class).run();
 
               return null;
             })
         .when(inMemoryStorageMock)
-        .applyOnEach(any(Consumer.class));
+        .applyOnEach(any(Consumer.class), any(Runnable.class));
   }
 }